@@ -0,0 +1,138 @@
+package Bench;
+
+import Peer.Compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//Benchmark della compressione nei trasferimenti tra peer: confronta CPU spesa e byte inviati per ogni codec
+//per ogni file misura velocità di compressione e decompressione e rapporto di compressione, poi stima il tempo di
+//trasferimento su collegamenti di diversa banda (la compressione avviene mentre si invia, quindi conta la fase più lenta)
+//Uso: java Bench.CompressionBench [file...] [--links=10,100,1000]
+//senza file vengono generati un file di log testuale e un file di byte casuali
+public class CompressionBench {
+
+    //dimensione dei file generati
+    private static final int SAMPLE_SIZE = 16 * 1024 * 1024;
+    //ripetizioni di ogni misura: si tiene la più veloce, le prime servono anche a scaldare la JVM
+    private static final int ROUNDS = 3;
+    private static final byte[] CODECS = {Compression.NONE, Compression.DEFLATE_FAST, Compression.DEFLATE};
+
+    public static void main(String[] args) throws IOException {
+        List<Path> files = new ArrayList<>();
+        int[] linksMbit = {10, 100, 1000};
+        for (String arg : args) {
+            if (arg.startsWith("--links=")) {
+                String[] parts = arg.substring("--links=".length()).split(",");
+                linksMbit = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) linksMbit[i] = Integer.parseInt(parts[i].trim());
+            } else {
+                files.add(Paths.get(arg));
+            }
+        }
+        List<Path> generated = new ArrayList<>();
+        Path tempDir = null;
+        if (files.isEmpty()) {
+            tempDir = Files.createTempDirectory("bench");
+            generated.add(generateLog(tempDir.resolve("log.txt")));
+            generated.add(generateRandom(tempDir.resolve("random.bin")));
+            files.addAll(generated);
+        }
+
+        try {
+            StringBuilder header = new StringBuilder(String.format("%-22s %-13s %8s %12s %12s", "file", "codec", "ratio", "comp MB/s", "decomp MB/s"));
+            for (int link : linksMbit) header.append(String.format(" %11s", link + "Mbit s"));
+            System.out.println(header);
+            for (Path file : files) {
+                for (byte codec : CODECS) System.out.println(measure(file, codec, linksMbit));
+            }
+        } finally {
+            for (Path p : generated) Files.deleteIfExists(p);
+            if (tempDir != null) Files.deleteIfExists(tempDir);
+        }
+    }
+
+    //Misura un codec su un file e restituisce la riga della tabella
+    private static String measure(Path file, byte codec, int[] linksMbit) throws IOException {
+        long size = Files.size(file);
+        long bestCompress = Long.MAX_VALUE;
+        long bestDecompress = Long.MAX_VALUE;
+        long wireBytes = size;
+        Path restored = Files.createTempFile("bench", ".out");
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(restored, StandardOpenOption.WRITE)) {
+            for (int round = 0; round < ROUNDS; round++) {
+                if (codec == Compression.NONE) {
+                    bestCompress = 0;
+                    bestDecompress = 0;
+                    break;
+                }
+                //compressione verso un buffer in memoria, come se fosse il socket
+                ByteArrayOutputStream wire = new ByteArrayOutputStream((int) Math.min(size, Integer.MAX_VALUE - 8));
+                long start = System.nanoTime();
+                Compression.compress(in, 0, size, Channels.newChannel(wire), codec);
+                bestCompress = Math.min(bestCompress, System.nanoTime() - start);
+                wireBytes = wire.size();
+
+                //decompressione dal buffer verso un file, come fa il peer che scarica
+                start = System.nanoTime();
+                Compression.decompress(Channels.newChannel(new ByteArrayInputStream(wire.toByteArray())), codec, size, out, 0);
+                bestDecompress = Math.min(bestDecompress, System.nanoTime() - start);
+            }
+        } finally {
+            Files.deleteIfExists(restored);
+        }
+
+        StringBuilder row = new StringBuilder(String.format("%-22s %-13s %8.3f %12s %12s",
+                file.getFileName(), Compression.nameOf(codec), (double) wireBytes / size,
+                throughput(size, bestCompress), throughput(size, bestDecompress)));
+        for (int link : linksMbit) {
+            //la fase più lenta tra compressione, invio e decompressione determina la durata del trasferimento
+            double wireSeconds = wireBytes * 8.0 / (link * 1_000_000.0);
+            double seconds = Math.max(wireSeconds, Math.max(bestCompress, bestDecompress) / 1e9);
+            row.append(String.format(" %11.3f", seconds));
+        }
+        return row.toString();
+    }
+
+    private static String throughput(long bytes, long nanos) {
+        if (nanos == 0) return "-";
+        return String.format("%.1f", bytes / (1024.0 * 1024.0) / (nanos / 1e9));
+    }
+
+    //File di log testuale, molto comprimibile
+    private static Path generateLog(Path file) throws IOException {
+        Random random = new Random(42);
+        String[] levels = {"INFO", "DEBUG", "WARN", "ERROR"};
+        StringBuilder sb = new StringBuilder(SAMPLE_SIZE + 200);
+        for (long i = 0; sb.length() < SAMPLE_SIZE; i++) {
+            sb.append("2025-06-").append(10 + random.nextInt(20)).append(' ')
+                    .append(String.format("%02d:%02d:%02d", random.nextInt(24), random.nextInt(60), random.nextInt(60)))
+                    .append(' ').append(levels[random.nextInt(levels.length)])
+                    .append(" [peer-").append(random.nextInt(64)).append("] richiesta ").append(i)
+                    .append(" risorsa file").append(random.nextInt(1000)).append(".txt servita in ")
+                    .append(random.nextInt(500)).append(" ms\n");
+        }
+        sb.setLength(SAMPLE_SIZE);
+        Files.writeString(file, sb);
+        return file;
+    }
+
+    //File di byte casuali, non comprimibile (come un file già compresso)
+    private static Path generateRandom(Path file) throws IOException {
+        byte[] data = new byte[SAMPLE_SIZE];
+        new Random(42).nextBytes(data);
+        Files.write(file, data);
+        return file;
+    }
+}
@@ -0,0 +1,193 @@
+package Bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.LongAdder;
+
+//Piccolo harness per i benchmark, sullo stile di JMH: iterazioni di riscaldamento, iterazioni misurate
+//di durata fissa, più thread che eseguono la stessa operazione insieme, media e deviazione standard.
+//I risultati possono essere aggiunti a un file CSV per confrontarli nel tempo
+public class Harness {
+
+    //operazione misurata: riceve il numero del thread e restituisce un valore che viene accumulato,
+    //così il JIT non può eliminare il lavoro come codice inutile
+    public interface Op {
+        long run(int thread) throws Exception;
+    }
+
+    //risultato di un benchmark: media e deviazione standard delle iterazioni misurate
+    public static class Result {
+        final String name;
+        final String param;
+        final int threads;
+        final double score;
+        final double error;
+        final String unit;
+
+        Result(String name, String param, int threads, double score, double error, String unit) {
+            this.name = name;
+            this.param = param;
+            this.threads = threads;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-28s %-14s %7d %14.1f ± %-10.1f %s", name, param, threads, score, error, unit);
+        }
+    }
+
+    private final int warmupIterations;
+    private final int measureIterations;
+    private final long iterationMillis;
+    private final Path csv; //file CSV a cui aggiungere i risultati, null per non salvarli
+    private static volatile long sink; //destinazione dei valori restituiti dalle operazioni
+
+    public Harness(int warmupIterations, int measureIterations, long iterationMillis, Path csv) {
+        this.warmupIterations = warmupIterations;
+        this.measureIterations = measureIterations;
+        this.iterationMillis = iterationMillis;
+        this.csv = csv;
+    }
+
+    //Crea l'harness dalle opzioni comuni: --warmup=N --iterations=N --millis=N --csv=<file>
+    //le altre opzioni vengono restituite in rest per il benchmark
+    public static Harness fromArgs(String[] args, List<String> rest) {
+        int warmup = 3;
+        int iterations = 5;
+        long millis = 1000;
+        Path csv = null;
+        for (String arg : args) {
+            if (arg.startsWith("--warmup=")) warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            else if (arg.startsWith("--iterations=")) iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            else if (arg.startsWith("--millis=")) millis = Long.parseLong(arg.substring("--millis=".length()));
+            else if (arg.startsWith("--csv=")) csv = Path.of(arg.substring("--csv=".length()));
+            else rest.add(arg);
+        }
+        return new Harness(warmup, iterations, millis, csv);
+    }
+
+    //Misura il throughput (operazioni al secondo) di op eseguita contemporaneamente da threads thread
+    public Result throughput(String name, String param, int threads, Op op) {
+        double[] scores = new double[measureIterations];
+        for (int i = 0; i < warmupIterations + measureIterations; i++) {
+            double opsPerSecond = runIteration(threads, op);
+            if (i >= warmupIterations) scores[i - warmupIterations] = opsPerSecond;
+        }
+        return record(new Result(name, param, threads, mean(scores), stddev(scores), "ops/s"));
+    }
+
+    //Misura un valore calcolato da una singola esecuzione (ad esempio MB/s di un trasferimento)
+    public Result measure(String name, String param, String unit, ValueOp op) {
+        double[] scores = new double[measureIterations];
+        try {
+            for (int i = 0; i < warmupIterations + measureIterations; i++) {
+                double value = op.run();
+                if (i >= warmupIterations) scores[i - warmupIterations] = value;
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(name + " non riuscito: " + e.getMessage(), e);
+        }
+        return record(new Result(name, param, 1, mean(scores), stddev(scores), unit));
+    }
+
+    //operazione che restituisce direttamente il valore misurato
+    public interface ValueOp {
+        double run() throws Exception;
+    }
+
+    //Una iterazione: tutti i thread partono insieme ed eseguono op finché non scade il tempo
+    private double runIteration(int threads, Op op) {
+        LongAdder ops = new LongAdder();
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        long[] deadline = new long[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(() -> {
+                long local = 0;
+                long count = 0;
+                try {
+                    start.await();
+                    long end = deadline[0];
+                    //il tempo viene controllato ogni 64 operazioni per non misurare soprattutto nanoTime
+                    while (true) {
+                        for (int k = 0; k < 64; k++) local += op.run(thread);
+                        count += 64;
+                        if (System.nanoTime() >= end) break;
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                ops.add(count);
+                sink += local;
+            }, "bench-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + iterationMillis * 1_000_000;
+        try {
+            start.await(); //la barriera rende visibile deadline ai thread
+            for (Thread w : workers) w.join();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        long elapsed = System.nanoTime() - begin;
+        return ops.sum() / (elapsed / 1e9);
+    }
+
+    private Result record(Result result) {
+        System.out.println(result);
+        if (csv != null) appendCsv(result);
+        return result;
+    }
+
+    //Aggiunge il risultato al file CSV, scrivendo l'intestazione se il file è nuovo
+    private void appendCsv(Result r) {
+        try {
+            boolean fresh = !Files.exists(csv);
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                if (fresh) out.println("timestamp,benchmark,param,threads,score,error,unit");
+                out.printf(Locale.ROOT, "%s,%s,%s,%d,%.3f,%.3f,%s%n",
+                        LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME),
+                        r.name, r.param, r.threads, r.score, r.error, r.unit);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //Intestazione della tabella stampata prima dei risultati
+    public static void printHeader() {
+        System.out.println(String.format("%-28s %-14s %7s %14s   %-10s %s", "benchmark", "param", "threads", "score", "error", "unit"));
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) sum += v;
+        return values.length == 0 ? 0 : sum / values.length;
+    }
+
+    private static double stddev(double[] values) {
+        if (values.length < 2) return 0;
+        double m = mean(values);
+        double sum = 0;
+        for (double v : values) sum += (v - m) * (v - m);
+        return Math.sqrt(sum / (values.length - 1));
+    }
+}
@@ -0,0 +1,66 @@
+package Bench;
+
+//Istogramma delle latenze in nanosecondi, usato per calcolare i percentili
+//i valori vengono raggruppati in intervalli logaritmici (potenze di 2) divisi ciascuno in 16 parti uguali,
+//quindi l'errore di un percentile è al massimo circa il 6% con una memoria fissa e piccola.
+//Non è thread-safe: ogni peer simulato usa il proprio istogramma e alla fine gli istogrammi vengono uniti
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS; //parti in cui viene diviso ogni intervallo
+    private final long[] counts = new long[64 * SUB];
+    private long total = 0;
+    private long max = 0;
+
+    //Registra una latenza
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[index(nanos)]++;
+        total++;
+        if (nanos > max) max = nanos;
+    }
+
+    //Aggiunge i valori di un altro istogramma
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    //Valore sotto cui cade la frazione p (tra 0 e 1) delle latenze registrate
+    public long percentile(double p) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    //i valori sotto SUB hanno un intervallo ciascuno; gli altri vengono divisi secondo il bit più alto
+    private static int index(long v) {
+        if (v < SUB) return (int) v;
+        int high = 63 - Long.numberOfLeadingZeros(v);
+        int shift = high - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((v >>> shift) & (SUB - 1));
+    }
+
+    //valore massimo contenuto nell'intervallo i
+    private static long upperBound(int i) {
+        if (i < SUB) return i;
+        int shift = i / SUB - 1;
+        long base = (long) (SUB + i % SUB) << shift;
+        return base + (1L << shift) - 1;
+    }
+}
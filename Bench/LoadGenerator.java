@@ -0,0 +1,366 @@
+package Bench;
+
+import Master.DownloadLog;
+import Master.ResourceService;
+import Master.SocketListener;
+import Master.SourceSelector;
+import Peer.MasterClient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+//Generatore di carico per il master: avvia un Master nello stesso processo (oppure si collega a uno già avviato
+//con --connect) e lo fa usare da molti peer simulati, ognuno con la propria connessione TCP e un virtual thread.
+//Ogni peer si registra con hello, annuncia le sue risorse con ADD_BATCH e poi, per la durata della prova, invia
+//comandi scelti a caso secondo il mix configurato, aspettando ogni volta la risposta fino a END.
+//Alla fine stampa per ogni comando il throughput e i percentili della latenza.
+//Con più valori in --peers le prove vengono ripetute con sempre più peer, così si vede dove il master si satura
+//Con --protocol=binary i peer usano MasterClient nel formato binario (Protocol.Wire) invece delle righe di testo
+//Uso: java Bench.LoadGenerator [--peers=100,1000,5000] [--duration=10] [--warmup=3] [--resources=10000]
+//         [--resources-per-peer=20] [--mix=hello:2,add:20,download:30,check:40,listdata:8] [--list-limit=100]
+//         [--think=0] [--engine=virtual|platform] [--selector=...] [--connect=<host>:<porta>] [--csv=<file>]
+//         [--protocol=text|binary]
+public class LoadGenerator {
+
+    //comandi che i peer simulati possono inviare
+    private static final String[] COMMANDS = {"hello", "add", "download", "check", "listdata"};
+
+    //configurazione della prova
+    private int[] peerCounts = {100, 1000};
+    private long durationSeconds = 10;
+    private long warmupSeconds = 3;
+    private int resources = 10_000; //risorse distinte nella rete simulata
+    private int resourcesPerPeer = 20; //risorse annunciate da ogni peer all'avvio
+    private int[] weights = {2, 20, 30, 40, 8}; //peso di ogni comando, nello stesso ordine di COMMANDS
+    private int listLimit = 100; //righe per pagina di listdata, 0 per l'elenco completo
+    private long thinkMillis = 0; //pausa di ogni peer tra un comando e il successivo
+    private SocketListener.Engine engine = SocketListener.Engine.VIRTUAL;
+    private String selector = "least-active";
+    private String connectHost; //null: il master viene avviato nello stesso processo
+    private int connectPort;
+    private Path csv;
+    private boolean binary = false; //true: comandi in formato binario tramite MasterClient
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            if (!generator.parseOption(arg)) {
+                System.err.println("Opzione sconosciuta: " + arg);
+                return;
+            }
+        }
+        int stage = 0;
+        for (int peers : generator.peerCounts) generator.runStage(stage++, peers);
+    }
+
+    private boolean parseOption(String arg) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        if (arg.startsWith("--peers=")) peerCounts = ResourceServiceBench.parseList(value);
+        else if (arg.startsWith("--duration=")) durationSeconds = Long.parseLong(value);
+        else if (arg.startsWith("--warmup=")) warmupSeconds = Long.parseLong(value);
+        else if (arg.startsWith("--resources=")) resources = Integer.parseInt(value);
+        else if (arg.startsWith("--resources-per-peer=")) resourcesPerPeer = Integer.parseInt(value);
+        else if (arg.startsWith("--mix=")) weights = parseMix(value);
+        else if (arg.startsWith("--list-limit=")) listLimit = Integer.parseInt(value);
+        else if (arg.startsWith("--think=")) thinkMillis = Long.parseLong(value);
+        else if (arg.startsWith("--engine=")) engine = SocketListener.Engine.valueOf(value.toUpperCase());
+        else if (arg.startsWith("--selector=")) selector = value;
+        else if (arg.startsWith("--csv=")) csv = Path.of(value);
+        else if (arg.startsWith("--protocol=")) {
+            if (!value.equals("text") && !value.equals("binary")) return false;
+            binary = value.equals("binary");
+        }
+        else if (arg.startsWith("--connect=")) {
+            int colon = value.lastIndexOf(':');
+            connectHost = value.substring(0, colon);
+            connectPort = Integer.parseInt(value.substring(colon + 1));
+        } else return false;
+        return true;
+    }
+
+    //Legge il mix nella forma "comando:peso,comando:peso"; i comandi non indicati hanno peso 0
+    private static int[] parseMix(String mix) {
+        int[] parsed = new int[COMMANDS.length];
+        for (String entry : mix.split(",")) {
+            String[] kv = entry.split(":");
+            int i = List.of(COMMANDS).indexOf(kv[0].trim().toLowerCase());
+            if (i < 0 || kv.length != 2) throw new IllegalArgumentException("Voce del mix non valida: " + entry);
+            parsed[i] = Integer.parseInt(kv[1].trim());
+        }
+        return parsed;
+    }
+
+    //Una prova con un certo numero di peer simulati
+    private void runStage(int stage, int peerCount) throws Exception {
+        ResourceService service = null;
+        SocketListener listener = null;
+        Thread listenerThread = null;
+        String host = connectHost;
+        int port = connectPort;
+        if (host == null) {
+            //master nello stesso processo, configurato come Master.main ma senza lease né salvataggio su disco
+            service = new ResourceService(SourceSelector.forName(selector), new DownloadLog(null));
+            ServerSocket serverSocket = new ServerSocket(0, 4096);
+            listener = new SocketListener(serverSocket, service, engine);
+            listenerThread = new Thread(listener, "load-master");
+            listenerThread.start();
+            host = "127.0.0.1";
+            port = serverSocket.getLocalPort();
+        }
+
+        //le connessioni vengono aperte una alla volta, così la coda di accept del master non si riempie
+        List<SimulatedPeer> peers = new ArrayList<>();
+        try {
+            for (int i = 0; i < peerCount; i++) {
+                peers.add(new SimulatedPeer("load" + stage + "-" + i, 30_000 + i % 30_000, host, port));
+            }
+
+            //registrazione e annuncio delle risorse, poi tutti i peer partono insieme
+            CountDownLatch ready = new CountDownLatch(peerCount);
+            CountDownLatch start = new CountDownLatch(1);
+            long[] phases = new long[2]; //fine del riscaldamento e fine della prova, in nanoTime
+            List<Thread> threads = new ArrayList<>();
+            for (SimulatedPeer peer : peers) {
+                threads.add(Thread.ofVirtual().name(peer.name).start(() -> peer.run(ready, start, phases)));
+            }
+            ready.await();
+            long begin = System.nanoTime();
+            phases[0] = begin + warmupSeconds * 1_000_000_000L;
+            phases[1] = phases[0] + durationSeconds * 1_000_000_000L;
+            start.countDown(); //il latch rende visibili phases ai peer
+            for (Thread t : threads) t.join();
+            report(peerCount, peers);
+        } finally {
+            for (SimulatedPeer peer : peers) peer.close();
+            if (listener != null) {
+                service.shutdown();
+                listener.closeAllClients();
+                listenerThread.interrupt();
+            }
+        }
+    }
+
+    //Unisce i risultati dei peer e stampa una riga per comando
+    private void report(int peerCount, List<SimulatedPeer> peers) {
+        Map<String, LatencyHistogram> merged = new LinkedHashMap<>();
+        long errors = 0;
+        for (String c : COMMANDS) merged.put(c, new LatencyHistogram());
+        for (SimulatedPeer peer : peers) {
+            for (int c = 0; c < COMMANDS.length; c++) merged.get(COMMANDS[c]).add(peer.latencies[c]);
+            errors += peer.errors;
+        }
+
+        System.out.println();
+        System.out.println("Peer simulati: " + peerCount + ", durata: " + durationSeconds + " s, errori: " + errors);
+        System.out.println(String.format("%-10s %10s %12s %10s %10s %10s %10s %10s",
+                "comando", "richieste", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+        LatencyHistogram all = new LatencyHistogram();
+        for (Map.Entry<String, LatencyHistogram> e : merged.entrySet()) {
+            if (e.getValue().count() == 0) continue;
+            printRow(peerCount, e.getKey(), e.getValue());
+            all.add(e.getValue());
+        }
+        printRow(peerCount, "totale", all);
+    }
+
+    private void printRow(int peerCount, String command, LatencyHistogram h) {
+        double opsPerSecond = h.count() / (double) durationSeconds;
+        System.out.println(String.format(Locale.ROOT, "%-10s %10d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+                command, h.count(), opsPerSecond, h.percentile(0.50) / 1e3, h.percentile(0.90) / 1e3,
+                h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3, h.max() / 1e3));
+        if (csv != null) appendCsv(peerCount, command, h, opsPerSecond);
+    }
+
+    //Aggiunge la riga al file CSV, scrivendo l'intestazione se il file è nuovo
+    private void appendCsv(int peerCount, String command, LatencyHistogram h, double opsPerSecond) {
+        try {
+            boolean fresh = !Files.exists(csv);
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                if (fresh) out.println("timestamp,peers,command,requests,ops_per_s,p50_us,p90_us,p99_us,p999_us,max_us");
+                out.printf(Locale.ROOT, "%s,%d,%s,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f%n",
+                        LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME), peerCount, command,
+                        h.count(), opsPerSecond, h.percentile(0.50) / 1e3, h.percentile(0.90) / 1e3,
+                        h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3, h.max() / 1e3);
+            }
+        } catch (IOException e) {
+            System.err.println("Impossibile scrivere " + csv + ": " + e.getMessage());
+        }
+    }
+
+    //Un peer simulato: una connessione al master e un istogramma per ogni comando
+    //in testo usa direttamente il socket, in binario un MasterClient (che concorda il formato con hello)
+    private final class SimulatedPeer {
+        final String name;
+        final int port;
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+        final MasterClient client;
+        final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+        long errors = 0; //comandi rifiutati come non validi o connessione interrotta
+
+        SimulatedPeer(String name, int port, String masterHost, int masterPort) throws IOException {
+            this.name = name;
+            this.port = port;
+            if (binary) {
+                this.socket = null;
+                this.in = null;
+                this.out = null;
+                this.client = new MasterClient(masterHost, masterPort);
+            } else {
+                this.socket = new Socket(masterHost, masterPort);
+                this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                this.out = new PrintWriter(socket.getOutputStream(), true);
+                this.client = null;
+            }
+            for (int c = 0; c < COMMANDS.length; c++) latencies[c] = new LatencyHistogram();
+        }
+
+        void run(CountDownLatch ready, CountDownLatch start, long[] phases) {
+            boolean announced = false;
+            try {
+                announced = setup();
+            } catch (IOException e) {
+                errors++;
+            } finally {
+                ready.countDown();
+            }
+            try {
+                start.await();
+                if (!announced) return;
+                int totalWeight = 0;
+                for (int w : weights) totalWeight += w;
+                if (totalWeight == 0) return;
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long now = System.nanoTime();
+                while (now < phases[1]) {
+                    int command = pick(random.nextInt(totalWeight));
+                    long begin = System.nanoTime();
+                    send(command, random);
+                    now = System.nanoTime();
+                    //le risposte del riscaldamento non vengono contate
+                    if (begin >= phases[0]) latencies[command].record(now - begin);
+                    if (thinkMillis > 0) {
+                        Thread.sleep(thinkMillis);
+                        now = System.nanoTime();
+                    }
+                }
+            } catch (IOException e) {
+                errors++; //connessione chiusa dal master: il peer smette
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        //hello e annuncio delle risorse iniziali
+        private boolean setup() throws IOException {
+            request("hello " + name + " " + port, List.of());
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            List<String> batch = new ArrayList<>();
+            for (int i = 0; i < resourcesPerPeer; i++) batch.add("res" + random.nextInt(resources));
+            request("ADD_BATCH " + name + " " + resourcesPerPeer, batch);
+            return true;
+        }
+
+        private int pick(int r) {
+            for (int c = 0; c < weights.length; c++) {
+                if (r < weights[c]) return c;
+                r -= weights[c];
+            }
+            return weights.length - 1;
+        }
+
+        //Invia un comando e legge la risposta fino a END
+        private void send(int command, ThreadLocalRandom random) throws IOException {
+            String resource = "res" + random.nextInt(resources);
+            switch (COMMANDS[command]) {
+                case "hello":
+                    request("hello " + name + " " + port, List.of());
+                    break;
+                case "add":
+                    request("add " + resource + " " + name, List.of());
+                    break;
+                case "download":
+                    String source = request("download " + resource + " " + name, List.of());
+                    //come un peer vero, comunica l'esito così il master chiude il trasferimento assegnato
+                    if (source != null && source.startsWith("PEER ")) {
+                        String result = "DOWNLOAD_RESULT " + resource + " " + source.split(" ")[1] + " " + name + " success";
+                        if (client != null) client.send(result); //la risposta non viene attesa
+                        else out.println(result);
+                    }
+                    break;
+                case "check":
+                    request("check " + resource + " " + name, List.of());
+                    break;
+                default: //listdata
+                    request(listLimit > 0 ? "listdata limit=" + listLimit : "listdata", List.of());
+            }
+        }
+
+        //Invia un comando con le sue righe di dati, attende la risposta e ne restituisce la prima riga
+        private String request(String command, List<String> dataLines) throws IOException {
+            if (client != null) {
+                List<String> lines = MasterClient.await(client.send(command, dataLines));
+                String first = lines.isEmpty() ? null : lines.get(0);
+                if (first != null && first.startsWith("ERRORE: Comando")) errors++;
+                return first;
+            }
+            StringBuilder text = new StringBuilder(command).append('\n');
+            for (String line : dataLines) text.append(line).append('\n');
+            out.print(text);
+            out.flush();
+            return readResponse();
+        }
+
+        //Legge la risposta fino a END e restituisce la prima riga
+        private String readResponse() throws IOException {
+            String first = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("END")) return first;
+                if (first == null) {
+                    first = line;
+                    if (line.startsWith("ERRORE: Comando")) errors++;
+                }
+            }
+            throw new IOException("connessione chiusa dal master");
+        }
+
+        //Si disconnette con quit e aspetta che il master chiuda la connessione, come un peer vero
+        void close() {
+            if (client != null) {
+                client.send("quit");
+                try {
+                    client.close();
+                } catch (IOException ignored) {}
+                return;
+            }
+            try {
+                socket.setSoTimeout(2000);
+                out.println("quit");
+                while (in.readLine() != null) { } //risposte ancora in arrivo
+            } catch (IOException ignored) {}
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package Bench;
+
+import Master.DownloadLog;
+import Master.ResourceService;
+import Master.SourceSelector;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+//Benchmark delle operazioni di ResourceService con più thread contemporanei e tabelle di dimensioni diverse
+//misura addResource, handleDownload, isAssociated e una pagina di listdata (listResources, che ha sostituito
+//getAllResources). Ogni risorsa della tabella ha HOLDERS possessori scelti tra PEERS peer registrati
+//Per ogni dimensione stampa anche la memoria occupata dallo stato, divisa per il numero di associazioni risorsa-peer
+//Uso: java Bench.ResourceServiceBench [--sizes=1000,100000] [--threads=1,4,8] [--warmup=3] [--iterations=5]
+//                                     [--millis=1000] [--csv=<file>]
+public class ResourceServiceBench {
+
+    static final int PEERS = 64;
+    static final int HOLDERS = 3;
+    //righe di una pagina di listdata
+    static final int PAGE = 100;
+
+    public static void main(String[] args) {
+        List<String> rest = new ArrayList<>();
+        Harness harness = Harness.fromArgs(args, rest);
+        int[] sizes = {1_000, 100_000};
+        int[] threadCounts = {1, 4, 8};
+        for (String arg : rest) {
+            if (arg.startsWith("--sizes=")) sizes = parseList(arg.substring("--sizes=".length()));
+            else if (arg.startsWith("--threads=")) threadCounts = parseList(arg.substring("--threads=".length()));
+            else throw new IllegalArgumentException("Opzione sconosciuta: " + arg);
+        }
+
+        //le risposte vengono scritte ma scartate
+        PrintWriter discard = new PrintWriter(Writer.nullWriter());
+        Harness.printHeader();
+        for (int size : sizes) {
+            long heapBefore = usedHeap();
+            ResourceService measured = populate(size); //resta raggiungibile finché non è misurata
+            double perAssociation = (usedHeap() - heapBefore) / (double) ((long) size * HOLDERS);
+            System.out.println(String.format(Locale.ROOT, "%-28s %-14s %7s %14.1f   %-10s %s", "memoria",
+                    "size=" + size, "-", perAssociation, "", "byte/associazione"));
+            String[] resources = new String[size];
+            for (int i = 0; i < size; i++) resources[i] = "r" + i;
+            String[] peers = new String[PEERS];
+            for (int i = 0; i < PEERS; i++) peers[i] = "p" + i;
+            String param = "size=" + size;
+
+            //ogni operazione parte da una tabella appena riempita: addResource aggiunge associazioni,
+            //quindi se la tabella fosse condivisa le operazioni misurate dopo troverebbero più possessori per risorsa
+            for (int threads : threadCounts) {
+                ResourceService adds = populate(size);
+                harness.throughput("addResource", param, threads, t -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    adds.addResource(resources[random.nextInt(size)], peers[random.nextInt(PEERS)], discard);
+                    return 1;
+                });
+                ResourceService downloads = populate(size);
+                harness.throughput("handleDownload", param, threads, t -> {
+                    downloads.handleDownload(resources[ThreadLocalRandom.current().nextInt(size)], "bench", discard);
+                    return 1;
+                });
+                ResourceService lookups = populate(size);
+                harness.throughput("isAssociated", param, threads, t -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    return lookups.isAssociated(resources[random.nextInt(size)], peers[random.nextInt(PEERS)]) ? 1 : 0;
+                });
+                ResourceService lists = populate(size);
+                harness.throughput("listResources(page=" + PAGE + ")", param, threads, t ->
+                        lists.listResources("", PAGE, null).lines.size());
+            }
+        }
+        discard.close();
+    }
+
+    //Crea il servizio con PEERS peer registrati e size risorse, ognuna con HOLDERS possessori
+    static ResourceService populate(int size) {
+        ResourceService service = new ResourceService(new SourceSelector.LeastActive(), new DownloadLog(null));
+        for (int p = 0; p < PEERS; p++) service.registerPeer("p" + p, "127.0.0.1", 20000 + p);
+        List<String> batch = new ArrayList<>();
+        for (int p = 0; p < PEERS; p++) {
+            batch.clear();
+            for (int r = 0; r < size; r++) {
+                //le risorse vengono distribuite in modo che ognuna abbia HOLDERS possessori
+                if ((r + p) % PEERS < HOLDERS) batch.add("r" + r);
+            }
+            service.addResources(batch, "p" + p);
+        }
+        return service;
+    }
+
+    //Memoria occupata dopo la garbage collection (una stima: System.gc è solo una richiesta alla JVM)
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static int[] parseList(String csv) {
+        String[] parts = csv.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+}
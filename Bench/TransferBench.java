@@ -0,0 +1,91 @@
+package Bench;
+
+import Peer.ContentCache;
+import Peer.EvictionPolicy;
+import Peer.PeerHandler;
+import Peer.PeerServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+//Benchmark del trasferimento di file tra due peer sulla stessa macchina (loopback)
+//avvia un PeerServer su una cartella temporanea e scarica i file con PeerHandler.downloadFromPeer, cioè con lo
+//stesso percorso usato dal peer (manifest, blocchi verificati, file ".part"), per diverse dimensioni di file.
+//Ogni dimensione viene misurata anche con la cache del contenuto attiva sul server
+//Uso: java Bench.TransferBench [--sizes-kb=4,256,4096,65536] [--warmup=3] [--iterations=5] [--csv=<file>]
+public class TransferBench {
+
+    public static void main(String[] args) throws Exception {
+        List<String> rest = new ArrayList<>();
+        Harness harness = Harness.fromArgs(args, rest);
+        int[] sizesKb = {4, 256, 4096, 65536};
+        for (String arg : rest) {
+            if (arg.startsWith("--sizes-kb=")) sizesKb = ResourceServiceBench.parseList(arg.substring("--sizes-kb=".length()));
+            else throw new IllegalArgumentException("Opzione sconosciuta: " + arg);
+        }
+
+        Path root = Files.createTempDirectory("transfer-bench");
+        Path served = Files.createDirectories(root.resolve("served"));
+        Path downloads = Files.createDirectories(root.resolve("downloads"));
+        try {
+            Random random = new Random(42);
+            for (int kb : sizesKb) {
+                byte[] data = new byte[kb * 1024];
+                random.nextBytes(data);
+                Files.write(served.resolve("file" + kb), data);
+            }
+
+            Harness.printHeader();
+            run(harness, "download", null, served, downloads, sizesKb);
+            //cache grande abbastanza per il file più grande (un file può occupare al massimo un ottavo della cache)
+            long maxKb = 0;
+            for (int kb : sizesKb) maxKb = Math.max(maxKb, kb);
+            ContentCache cache = new ContentCache(maxKb * 1024 * 8 + 1, EvictionPolicy.forName("lru"));
+            run(harness, "download(cache)", cache, served, downloads, sizesKb);
+        } finally {
+            try (Stream<Path> files = Files.walk(root)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    //Avvia un PeerServer sulla cartella served e misura i MB/s del download di ogni file
+    private static void run(Harness harness, String name, ContentCache cache, Path served, Path downloads, int[] sizesKb)
+            throws Exception {
+        int port = freePort();
+        PeerServer server = new PeerServer(port, PeerServer.DEFAULT_MAX_UPLOADS, cache, served.toString());
+        Thread thread = new Thread(server, "bench-peer-server");
+        thread.start();
+        Thread.sleep(200); //attende che il server sia in ascolto
+        try {
+            for (int kb : sizesKb) {
+                String file = "file" + kb;
+                harness.measure(name, "size=" + kb + "KB", "MB/s", () -> {
+                    Files.deleteIfExists(downloads.resolve(file));
+                    long start = System.nanoTime();
+                    if (!PeerHandler.downloadFromPeer("127.0.0.1", port, file, downloads.toString())) {
+                        throw new IOException("download di " + file + " non riuscito");
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    return kb / 1024.0 / seconds;
+                });
+            }
+        } finally {
+            server.stopServer();
+            thread.join();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
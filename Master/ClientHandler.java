@@ -1,15 +1,61 @@
 package Master;
 
+import Protocol.Wire;
+
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 //Gestisce la comunicazione tra un singolo peer e il master
 //Ogni connessione con un peer viene servita da un thread dedicato (istanza di ClientHandler)
 //cosi il master può gestire più peer contemporaneamente
+//
+//Oltre ai comandi testuali classici (una richiesta alla volta, risposta terminata da END) il peer può inviare
+//comandi con un identificativo di richiesta, nella forma "#<id> <comando>": questi vengono eseguiti in parallelo
+//e ogni riga della loro risposta riporta lo stesso prefisso "#<id>", quindi le risposte possono arrivare in ordine diverso
+//da quello delle richieste e il peer può avere molte richieste in corso sulla stessa connessione
+//
+//Se il peer aggiunge "proto=<versione>" a hello e il master conosce quella versione, la risposta contiene anche
+//"PROTO <versione>" e dopo di essa la connessione passa al formato binario descritto in Protocol.Wire (runBinary)
 public class ClientHandler implements Runnable {
+    //numero massimo di richieste con identificativo in esecuzione contemporanea sulla stessa connessione
+    private static final int MAX_PIPELINED = 64;
+    //numero massimo di risorse accettate in un solo ADD_BATCH o REMOVE_BATCH (il peer divide gli elenchi più lunghi)
+    static final int MAX_BATCH = 100_000;
+    //numero massimo di righe in una pagina di listdata
+    private static final int MAX_PAGE = 10_000;
+    //comandi che modificano lo stato: su una replica vengono rifiutati e vanno inviati al primario
+    //(download è compreso perché assegna un trasferimento al peer sorgente; una replica risponde a sources)
+    private static final Set<String> WRITE_COMMANDS = Set.of("hello", "heartbeat", "add", "add_batch", "remove_batch",
+            "download", "download_result", "updatefail");
+    //comandi che leggono lo stato: una replica non ancora sincronizzata li rifiuta, perché risponderebbe con uno stato parziale
+    private static final Set<String> READ_COMMANDS = Set.of("sources", "check", "listdata", "listpeer");
+    //messaggi usati sia nel formato testo sia in quello binario
+    private static final String READ_ONLY = "ERRORE: Replica in sola lettura, inviare il comando al primario";
+    private static final String NOT_SYNCED = "ERRORE: Replica non sincronizzata, inviare il comando al primario";
+    private static final String UNKNOWN = "Comando sconosciuto.";
+    private static final String NOT_SAVED = "ERRORE: Modifica non salvata su disco";
+    private static final String INVALID_NAME = "ERRORE: Nome non valido (spazi o caratteri di controllo)";
+
     private final Socket clientSocket;  //rappresenta la connessione attiva tra master e peer
     private final ResourceService resourceService;//riferimento all'oggetto che gestisce le risorse
     private final boolean running = true; //flag per verificare eventuali errori di connessione
+    //posti disponibili per le richieste con identificativo: quando finiscono, la lettura si ferma finché una non termina
+    private final Semaphore pipelineSlots = new Semaphore(MAX_PIPELINED);
+    //lock sulla scrittura delle risposte: una risposta alla volta sulla connessione. ReentrantLock e non synchronized,
+    //perché le risposte sono scritte da virtual thread e un monitor li terrebbe fermi sul thread portante durante la scrittura
+    private final ReentrantLock outLock = new ReentrantLock();
+    //peer registrato da questa connessione con hello, rimosso quando la connessione si chiude
+    private volatile String registeredPeer;
+    private volatile Object registration;
+    //true quando hello ha accettato il formato binario: dopo la risposta la connessione passa ai frame
+    private volatile boolean binaryAccepted = false;
 
     //Costruttore
     public ClientHandler(Socket clientSocket, ResourceService resourceService) {
@@ -21,115 +67,714 @@ public class ClientHandler implements Runnable {
     public void run() {
         try (//si usa try per assicurarsi che in e out si chiudano automaticamente
              //crea due stream di comunicazione:
-             //in serve per leggere ciò che il Peer invia al master
-             //out serve per inviare risposte dal master al Peer
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)
+             //in serve per leggere ciò che il Peer invia al master (righe di testo e, dopo l'handshake, frame binari)
+             //out serve per inviare risposte dal master al Peer (bufferizzato: ogni risposta viene inviata con un solo flush)
+                InputStream socketIn = clientSocket.getInputStream();
+                PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())))
         ) {
+            Wire.Reader in = new Wire.Reader(socketIn);
             String line; // variabile per memorizzare temporaneamente ogni comando ricevuto
             // ciclo principale del thread: rimane in esecuzione finché il peer è connesso
             while ((line = in.readLine()) != null) {
                 // divide la stringa ricevuta in token separati da spazi
-                String[] parts = line.split("\\s+");
-                //se la riga è vuota o malformata, passa oltre
+                String[] parts = tokenize(line);
+                //se la riga è vuota, passa oltre
                 if (parts.length == 0) continue;
 
-                // --- DOWNLOAD_RESULT ---
-                // gestisce il messaggio di conferma del completamento di un download
-                if (parts[0].equalsIgnoreCase("DOWNLOAD_RESULT")) {
-                    // il comando deve contenere almeno 5 parametri
-                    if (parts.length >= 5) {
-                        String resource = parts[1]; // estrae il nome della risorsa
-                        String sourcePeer = parts[2]; // estrae il Peer sorgente
-                        String targetPeer = parts[3]; // estrae il Peer richiedente
-                        String stato = parts[4]; // esito del download
-                        // aggiorna il registro dei download nel ResourceService
-                        resourceService.updateDownloadResult(resource, sourcePeer, targetPeer, stato);
+                // --- REPLICATE ---
+                // una replica chiede lo stato e le modifiche: da qui la connessione serve solo a inviargliele
+                if (parts[0].equalsIgnoreCase("REPLICATE")) {
+                    resourceService.serveReplica(out, clientSocket.getRemoteSocketAddress().toString());
+                    break;
+                }
+
+                // --- HELLO CON FORMATO BINARIO ---
+                // le richieste ancora in corso ricevono la risposta in testo, poi hello viene eseguito subito:
+                // se il master accetta la versione, tutto ciò che segue la sua risposta è in formato binario
+                String tag = parts[0].startsWith("#") ? parts[0] : null;
+                String[] command = tag == null ? parts : Arrays.copyOfRange(parts, 1, parts.length);
+                if (requestsBinary(command)) {
+                    pipelineSlots.acquire(MAX_PIPELINED);
+                    pipelineSlots.release(MAX_PIPELINED);
+                    reply(out, tag, command);
+                    if (binaryAccepted) {
+                        runBinary(in, new BufferedOutputStream(clientSocket.getOutputStream()));
+                        break;
                     }
                     continue;
                 }
 
-                // --- ADD ---
-                // un Peer comunica al master di aggiungere (o registrare) una risorsa
-                if (parts.length >= 3 && parts[0].equalsIgnoreCase("add")) {
-                    String resourceName = parts[1]; // nome della risorsa
-                    String peerName = parts[2]; // nome del Peer
-                    // aggiorna la tabella delle risorse
-                    resourceService.addResource(resourceName, peerName, out);
-
-                    // --- DOWNLOAD ---
-                    // Un peer chiede di scaricare una risorsa
-                } else if (parts.length >= 3 && parts[0].equalsIgnoreCase("download")) {
-                    String resourceName = parts[1]; // nome della risorsa
-                    String peerName = parts[2]; // nome del peer richiedente
-                    // delega la logica di gestione al resourceService
-                    resourceService.handleDownload(resourceName, peerName, out);
-
-                    // --- LISTDATA ---
-                    //Il peer chiede l'elenco di tutte le risorse note al master
-                } else if (parts[0].equalsIgnoreCase("listdata")) {
-                    // per ogni risorsa nella tabella, stampa i peer associati
-                    resourceService.getAllResources().forEach((res, peers) ->
-                            out.println(res + ": " + String.join(", ", peers))
-                    );
-                    out.println("END");
-
-                    // --- QUIT ---
-                    // il Peer comunica la disconnessione volontaria
-                } else if (parts[0].equalsIgnoreCase("quit")) {
-                    break; // esce dal ciclo e termina il thread
-
-                    // --- CHECK ---
-                    // controlla se un peer è associato a una determinata risorsa
-                } else if (parts.length >= 3 && parts[0].equalsIgnoreCase("check")) {
-                    String resourceName = parts[1];
-                    String peerName = parts[2];
-                    // verifica tramite resourceService
-                    boolean associated = resourceService.isAssociated(resourceName, peerName);
-                    // invio il risultato al peer
-                    out.println(associated ? "ASSOCIATED" : "NOT_ASSOCIATED");
-                    out.println("END");
-
-                    // --- HELLO ---
-                    // primo messaggio inviato dal peer al momento della connessione: serve per registrarsi
-                } else if (parts[0].equalsIgnoreCase("hello") && parts.length >= 3) {
-                    String peerName = parts[1]; //nome del peer
-                    int peerPort = Integer.parseInt(parts[2]); //porta sulla quale ascolta
-                    String peerIP = clientSocket.getInetAddress().getHostAddress(); //IP
-                    //registra il peer nel resourceService
-                    resourceService.registerPeer(peerName, peerIP, peerPort);
-                    //invia conferma al peer
-                    out.println("REGISTERED " + peerName);
-                    out.println("END");
-
-                    // --- UPDATEFAIL ---
-                    // segnala che un download è fallito per colpa di un peer non disponibile
-                } else if (parts[0].equalsIgnoreCase("updatefail") && parts.length >= 3) {
-                    String fileName = parts[1]; //risorsa
-                    String peerName = parts[2]; //nome peer
-                    // rimuove l'associazione tra peer e risorsa
-                    resourceService.unregisterResource(fileName, peerName);
-                    // invia conferma
-                    out.println("OK: Risorsa rimossa dal peer " + peerName);
-                    out.println("END");
-
-                    // --- UNKNOWN COMMAND ---
-                    // caso di comando non riconosciuto
-                } else {
-                    out.println("Comando sconosciuto.");
-                    out.println("END");
+                // --- RICHIESTA CON IDENTIFICATIVO ---
+                // "#<id> <comando>": eseguita su un virtual thread, la risposta riporta il prefisso "#<id>"
+                if (tag != null) {
+                    command = readBatch(in, command);
+                    if (command.length > 0 && command[0].equalsIgnoreCase("quit")) break;
+                    long waitStart = System.nanoTime();
+                    pipelineSlots.acquire();
+                    resourceService.getMetrics().recordPipelineWait(System.nanoTime() - waitStart);
+                    String[] pipelined = command;
+                    Thread.ofVirtual().start(() -> {
+                        try {
+                            reply(out, tag, pipelined);
+                        } finally {
+                            pipelineSlots.release();
+                        }
+                    });
+                    continue;
                 }
+
+                // --- RICHIESTA CLASSICA ---
+                // eseguita subito, nell'ordine di arrivo
+                if (!reply(out, null, readBatch(in, parts))) break; // quit: esce dal ciclo e termina il thread
             }
+            //prima di chiudere il socket attende le risposte delle richieste ancora in corso
+            pipelineSlots.acquire(MAX_PIPELINED);
         } // se la connessione si interrompe in modo imprevisto
         catch (IOException e) {
             if (running) {
                 e.printStackTrace(); // stampa solo se non è stata una chiusura controllata
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } // blocco finale eseguito sempre, anche in caso di errore
         finally {
             try { // chiude il socket se ancora aperto
                 clientSocket.close();
             } catch (IOException ignored) {}
+            //il peer si è disconnesso (quit o caduta della connessione): le sue risorse non sono più disponibili
+            if (registeredPeer != null) resourceService.unregisterPeer(registeredPeer, registration);
+        }
+    }
+
+    //Divide una riga nelle parole separate da spazi o tab (senza espressioni regolari, che split compila ad ogni riga)
+    static String[] tokenize(String line) {
+        int count = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (!Character.isWhitespace(line.charAt(i)) && (i == 0 || Character.isWhitespace(line.charAt(i - 1)))) count++;
+        }
+        String[] parts = new String[count];
+        int n = 0;
+        int i = 0;
+        while (n < count) {
+            while (Character.isWhitespace(line.charAt(i))) i++;
+            int start = i;
+            while (i < line.length() && !Character.isWhitespace(line.charAt(i))) i++;
+            parts[n++] = line.substring(start, i);
+        }
+        return parts;
+    }
+
+    //true se il comando è un hello che chiede il formato binario in una versione conosciuta dal master
+    private static boolean requestsBinary(String[] parts) {
+        return parts.length >= 4 && parts[0].equalsIgnoreCase("hello") && parts[3].equals("proto=" + Wire.VERSION);
+    }
+
+    //Se il comando è "ADD_BATCH <peer> <n>" o "REMOVE_BATCH <peer> <n>", legge le n righe successive (una risorsa per riga)
+    //e le accoda ai parametri del comando; gli altri comandi vengono restituiti invariati
+    //le righe vanno lette subito dal thread della connessione, anche quando il comando verrà eseguito in parallelo
+    private static String[] readBatch(Wire.Reader in, String[] parts) throws IOException {
+        if (parts.length < 3 || !(parts[0].equalsIgnoreCase("ADD_BATCH") || parts[0].equalsIgnoreCase("REMOVE_BATCH"))) {
+            return parts;
+        }
+        int count;
+        try {
+            count = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            return parts; //conteggio non valido: dispatch risponderà con un errore
+        }
+        if (count < 0) return parts;
+        //la lista cresce con le righe che arrivano davvero: il conteggio annunciato non viene preallocato
+        List<String> command = new ArrayList<>(Arrays.asList(parts));
+        for (int i = 0; i < count; i++) {
+            String name = in.readLine();
+            if (name == null) throw new EOFException(parts[0] + " interrotto dopo " + i + " risorse");
+            //oltre MAX_BATCH le righe vengono solo consumate, e dispatch risponderà con un errore
+            //i nomi con spazi o caratteri di controllo vengono scartati da addResources
+            if (count <= MAX_BATCH) command.add(name.trim());
+        }
+        return count <= MAX_BATCH ? command.toArray(new String[0]) : parts;
+    }
+
+    //Esegue un comando e invia la risposta al peer come un unico blocco
+    //la risposta viene prima raccolta in memoria e poi scritta tenendo outLock, così le righe di
+    //richieste diverse non si mescolano; con un identificativo ogni riga riceve il prefisso e termina sempre con END
+    //ritorna false se il comando era quit
+    private boolean reply(PrintWriter out, String tag, String[] parts) {
+        //l'elenco completo di listdata non viene raccolto in memoria ma scritto man mano sulla connessione
+        ListOptions list = ListOptions.of(parts);
+        if (list != null && list.limit <= 0 && refusal("listdata") == null) {
+            streamListData(out, tag, list.prefix);
+            return true;
+        }
+        StringWriter buffer = new StringWriter();
+        PrintWriter response = new PrintWriter(buffer);
+        boolean keepGoing = true;
+        long start = System.nanoTime();
+        try {
+            keepGoing = dispatch(parts, response);
+        } catch (RuntimeException e) { //parametri malformati (es. porta non numerica): risponde con un errore
+            response.println("ERRORE: Comando non valido");
+            response.println("END");
+        }
+        response.flush();
+        String text = buffer.toString();
+        //le modifiche del comando devono essere su disco prima che il peer riceva la conferma
+        if (!resourceService.awaitDurable()) text = NOT_SAVED + "\nEND\n";
+        Metrics metrics = resourceService.getMetrics();
+        if (parts.length > 0) metrics.recordCommand(parts[0], System.nanoTime() - start);
+
+        long waitStart = System.nanoTime();
+        outLock.lock();
+        try {
+            metrics.recordReplyLockWait(System.nanoTime() - waitStart);
+            boolean ended = false;
+            //scorre le righe cercando gli a capo, senza espressione regolare né array di righe
+            int from = 0;
+            while (from < text.length()) {
+                int end = text.indexOf('\n', from);
+                if (end < 0) end = text.length();
+                String l = text.substring(from, end > from && text.charAt(end - 1) == '\r' ? end - 1 : end);
+                from = end + 1;
+                if (l.isEmpty()) continue;
+                out.println(tag == null ? l : tag + " " + l);
+                ended = l.equals("END");
+            }
+            //i comandi senza risposta (DOWNLOAD_RESULT) ricevono comunque END quando hanno un identificativo
+            if (tag != null && !ended) out.println(tag + " END");
+            //un solo flush per risposta: con una scrittura per riga il TCP (algoritmo di Nagle) tratteneva le righe
+            //successive alla prima fino all'ACK ritardato del peer, circa 40 ms per ogni risposta su più righe
+            out.flush();
+        } finally {
+            outLock.unlock();
+        }
+        return keepGoing;
+    }
+
+    //Smista un comando al ResourceService e scrive la risposta su out
+    //ritorna false se il peer ha chiesto di disconnettersi
+    private boolean dispatch(String[] parts, PrintWriter out) {
+        if (parts.length == 0) return true;
+        String name = parts[0].toLowerCase();
+
+        // --- COMANDI RIFIUTATI DA UNA REPLICA ---
+        // una replica riceve le modifiche solo dal primario, e prima di sincronizzarsi non risponde alle letture
+        String refused = refusal(name);
+        if (refused != null) {
+            out.println(refused);
+            out.println("END");
+            return true;
+        }
+
+        // --- NOMI NON VALIDI ---
+        // come nel formato binario (readFields), un nome con caratteri di controllo fa rifiutare il comando
+        if (!validNames(name, parts)) {
+            out.println(INVALID_NAME);
+            out.println("END");
+            return true;
+        }
+
+        //i comandi con meno parametri del necessario escono dallo switch e ricevono "Comando sconosciuto."
+        switch (name) {
+            // --- DOWNLOAD_RESULT ---
+            // gestisce il messaggio di conferma del completamento di un download
+            case "download_result":
+                // il comando deve contenere almeno 5 parametri
+                if (parts.length >= 5) {
+                    String resource = parts[1]; // estrae il nome della risorsa
+                    String sourcePeer = parts[2]; // estrae il Peer sorgente
+                    String targetPeer = parts[3]; // estrae il Peer richiedente
+                    String stato = parts[4]; // esito del download
+                    // aggiorna il registro dei download nel ResourceService
+                    resourceService.updateDownloadResult(resource, sourcePeer, targetPeer, stato);
+                }
+                return true;
+
+            // --- ADD ---
+            // un Peer comunica al master di aggiungere (o registrare) una risorsa
+            case "add":
+                if (parts.length < 3) break;
+                // aggiorna la tabella delle risorse (parts[1] risorsa, parts[2] peer)
+                resourceService.addResource(parts[1], parts[2], out);
+                return true;
+
+            // --- ADD_BATCH / REMOVE_BATCH ---
+            // un Peer registra (o toglie perché sparite dalla sua cartella) tutte le risorse elencate
+            // dopo "ADD_BATCH <peer> <n>" o "REMOVE_BATCH <peer> <n>"
+            case "add_batch", "remove_batch": {
+                if (parts.length < 3) break;
+                String peerName = parts[1]; // nome del Peer
+                int count = Integer.parseInt(parts[2]); // numero di risorse annunciate
+                if (count < 0 || parts.length != 3 + count) {
+                    out.println("ERRORE: Numero di risorse non valido");
+                } else {
+                    // inserisce (o rimuove) tutte le risorse in un solo passaggio e invia un'unica conferma
+                    List<String> names = Arrays.asList(parts).subList(3, parts.length);
+                    int changed = name.equals("add_batch") ? resourceService.addResources(names, peerName)
+                            : resourceService.removeResources(names, peerName);
+                    out.println("BATCH_OK " + changed + " " + count);
+                }
+                out.println("END");
+                return true;
+            }
+
+            // --- DOWNLOAD ---
+            // Un peer chiede di scaricare una risorsa
+            case "download":
+                if (parts.length < 3) break;
+                // delega la logica di gestione al resourceService (risorsa, peer richiedente)
+                resourceService.handleDownload(parts[1], parts[2], out);
+                return true;
+
+            // --- SOURCES ---
+            // Un peer chiede tutti i possessori di una risorsa per scaricarla da più sorgenti
+            // con "lookup" finale la richiesta serve solo a riempire la cache delle posizioni del peer
+            case "sources": {
+                if (parts.length < 3) break;
+                boolean lookup = parts.length >= 4 && parts[3].equalsIgnoreCase("lookup");
+                resourceService.handleSources(parts[1], parts[2], out, !lookup);
+                return true;
+            }
+
+            // --- LISTDATA ---
+            //Il peer chiede l'elenco di tutte le risorse note al master
+            case "listdata": {
+                //senza limit arriva qui solo dal comando binario TEXT: riceve la prima pagina di MAX_PAGE righe
+                ListOptions list = ListOptions.parse(parts);
+                listPage(list.prefix, list.limit, list.after, out::println);
+                out.println("END");
+                return true;
+            }
+
+            // --- LISTPEER ---
+            // elenca le risorse possedute da un peer, una per riga
+            case "listpeer": {
+                if (parts.length < 2) break;
+                List<String> owned = resourceService.getPeerResources(parts[1]);
+                if (owned.isEmpty()) out.println("Nessuna risorsa associata al peer '" + parts[1] + "'.");
+                else owned.forEach(out::println);
+                out.println("END");
+                return true;
+            }
+
+            // --- STATS ---
+            // statistiche del master: tabelle, connessioni e tempi di esecuzione dei comandi
+            case "stats":
+                resourceService.writeStats(out);
+                out.println("END");
+                return true;
+
+            // --- QUIT ---
+            // il Peer comunica la disconnessione volontaria
+            case "quit":
+                return false; // esce dal ciclo e termina il thread
+
+            // --- CHECK ---
+            // controlla se un peer è associato a una determinata risorsa
+            case "check":
+                if (parts.length < 3) break;
+                // verifica tramite resourceService e invia il risultato al peer
+                out.println(resourceService.isAssociated(parts[1], parts[2]) ? "ASSOCIATED" : "NOT_ASSOCIATED");
+                out.println("END");
+                return true;
+
+            // --- HELLO ---
+            // primo messaggio inviato dal peer al momento della connessione: serve per registrarsi
+            case "hello": {
+                if (parts.length < 3) break;
+                String peerName = parts[1]; //nome del peer
+                long lease = register(peerName, Integer.parseInt(parts[2]));
+                //invia conferma al peer, con la durata del lease se i lease sono attivi
+                out.println("REGISTERED " + peerName);
+                if (lease > 0) out.println("LEASE " + lease);
+                //il peer ha chiesto il formato binario: dopo questa risposta la connessione lo usa
+                if (requestsBinary(parts)) {
+                    out.println("PROTO " + Wire.VERSION);
+                    binaryAccepted = true;
+                }
+                out.println("END");
+                return true;
+            }
+
+            // --- HEARTBEAT ---
+            // il peer rinnova il proprio lease
+            case "heartbeat":
+                if (parts.length < 2) break;
+                if (resourceService.renewLease(parts[1])) {
+                    out.println("OK");
+                } else { // lease già scaduto: il peer deve registrarsi di nuovo
+                    out.println("ERRORE: Peer non registrato");
+                }
+                out.println("END");
+                return true;
+
+            // --- UPDATEFAIL ---
+            // segnala che un download è fallito per colpa di un peer non disponibile
+            case "updatefail":
+                if (parts.length < 3) break;
+                // chiude il trasferimento assegnato al peer e rimuove l'associazione tra peer e risorsa
+                resourceService.reportFailedSource(parts[1], parts[2], registeredPeer);
+                // invia conferma
+                out.println("OK: Risorsa rimossa dal peer " + parts[2]);
+                out.println("END");
+                return true;
+        }
+
+        // --- UNKNOWN COMMAND ---
+        // caso di comando non riconosciuto
+        out.println(UNKNOWN);
+        out.println("END");
+        return true;
+    }
+
+    //Registra il peer che ha inviato hello e ricorda la registrazione per rimuoverla alla disconnessione
+    //ritorna la durata del lease in secondi (0 se i lease non sono attivi)
+    private long register(String peerName, int peerPort) {
+        String peerIP = clientSocket.getInetAddress().getHostAddress(); //IP
+        registration = resourceService.registerPeer(peerName, peerIP, peerPort);
+        registeredPeer = peerName;
+        return resourceService.getLeaseSeconds();
+    }
+
+    //Opzioni di listdata: prefix=<inizio del nome>, limit=<righe per pagina>, after=<token della pagina precedente>
+    private static final class ListOptions {
+        String prefix = "";
+        int limit = 0; //0: tutte le risorse
+        String after = null;
+
+        static ListOptions parse(String[] parts) {
+            ListOptions o = new ListOptions();
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].startsWith("prefix=")) o.prefix = parts[i].substring("prefix=".length());
+                else if (parts[i].startsWith("limit=")) o.limit = Integer.parseInt(parts[i].substring("limit=".length()));
+                else if (parts[i].startsWith("after=")) o.after = parts[i].substring("after=".length());
+            }
+            return o;
+        }
+
+        //opzioni del comando se è listdata, altrimenti null (null anche con un limit non numerico: ci pensa dispatch)
+        static ListOptions of(String[] parts) {
+            if (parts.length == 0 || !parts[0].equalsIgnoreCase("listdata")) return null;
+            try {
+                return parse(parts);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    //Righe di una pagina di listdata (al massimo MAX_PAGE, anche senza limit) seguite da "NEXT <token>" se ci sono
+    //altre risorse; l'elenco completo viene invece scritto direttamente sulla connessione (streamListData)
+    private void listPage(String prefix, int limit, String after, Consumer<String> out) {
+        limit = limit <= 0 ? MAX_PAGE : Math.min(MAX_PAGE, limit);
+        ResourceService.Page page = resourceService.listResources(prefix, limit, after);
+        page.lines.forEach(out);
+        if (page.next != null) out.accept("NEXT " + page.next);
+    }
+
+    //listdata senza limit in formato testo: le righe vengono raccolte a pagine di MAX_PAGE mentre si scorre la tabella
+    //e ogni pagina viene scritta sulla connessione, senza raccogliere l'elenco completo in memoria.
+    //outLock viene preso solo per scrivere una pagina, non mentre si scorre la tabella: tra una pagina e l'altra
+    //possono passare le risposte delle richieste con identificativo, riconoscibili dal loro prefisso "#<id>"
+    private void streamListData(PrintWriter out, String tag, String prefix) {
+        String lead = tag == null ? "" : tag + " ";
+        long start = System.nanoTime();
+        StringBuilder page = new StringBuilder();
+        int[] lines = new int[1];
+        resourceService.forEachResource(prefix, (res, peers) -> {
+            page.append(lead).append(res).append(": ").append(String.join(", ", peers)).append('\n');
+            if (++lines[0] == MAX_PAGE) {
+                writePage(out, page);
+                lines[0] = 0;
+            }
+        });
+        page.append(lead).append("END\n");
+        writePage(out, page);
+        resourceService.getMetrics().recordCommand("listdata", System.nanoTime() - start);
+    }
+
+    //Scrive e svuota una pagina di listdata tenendo outLock
+    private void writePage(PrintWriter out, StringBuilder page) {
+        long waitStart = System.nanoTime();
+        outLock.lock();
+        try {
+            resourceService.getMetrics().recordReplyLockWait(System.nanoTime() - waitStart);
+            out.append(page);
+            out.flush();
+        } finally {
+            outLock.unlock();
+        }
+        page.setLength(0);
+    }
+
+    //listdata senza limit in formato binario: un frame MORE ogni MAX_PAGE righe e un frame OK finale con le ultime
+    //righe e il token vuoto, così in memoria c'è al massimo una pagina; come nel formato testo, outLock
+    //viene preso solo per scrivere un frame
+    private void streamListData(OutputStream out, long id, String prefix) {
+        long start = System.nanoTime();
+        List<String> page = new ArrayList<>();
+        try {
+            resourceService.forEachResource(prefix, (res, peers) -> {
+                page.add(res + ": " + String.join(", ", peers));
+                if (page.size() == MAX_PAGE) {
+                    writeLocked(out, writeLines(new Wire.Writer(Wire.MORE, id), page));
+                    page.clear();
+                }
+            });
+            writeLocked(out, writeLines(new Wire.Writer(Wire.OK, id), page).writeString(""));
+        } catch (UncheckedIOException ignored) {
+            //connessione chiusa: il thread della connessione se ne accorge alla lettura successiva
+        }
+        resourceService.getMetrics().recordCommand("listdata", System.nanoTime() - start);
+    }
+
+    //Scrive un frame con un flush tenendo outLock, così i frame delle richieste in corso non si mescolano
+    private void writeLocked(OutputStream out, Wire.Writer frame) {
+        long waitStart = System.nanoTime();
+        outLock.lock();
+        try {
+            resourceService.getMetrics().recordReplyLockWait(System.nanoTime() - waitStart);
+            frame.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    //Richiesta binaria già letta dal frame: i campi vengono copiati subito perché il buffer del frame viene riusato
+    private static final class BinaryRequest {
+        final int op;
+        final long id;
+        final String[] fields = new String[4];
+        long number;
+        List<String> names = List.of();
+        boolean invalidName = false; //un nome letto contiene spazi o caratteri di controllo
+
+        BinaryRequest(int op, long id) {
+            this.op = op;
+            this.id = id;
+        }
+    }
+
+    //Ciclo della connessione in formato binario (dopo hello con "proto=1")
+    //il thread della connessione legge i frame e ne copia i campi; ogni richiesta viene eseguita su un virtual thread,
+    //come le richieste testuali con identificativo, e la risposta è un solo frame scritto con un solo flush
+    private void runBinary(Wire.Reader in, OutputStream out) throws IOException, InterruptedException {
+        while (in.next()) {
+            BinaryRequest request = new BinaryRequest(in.readByte(), in.readVarint());
+            if (request.op == Wire.QUIT) break;
+            readFields(in, request);
+            long waitStart = System.nanoTime();
+            pipelineSlots.acquire();
+            resourceService.getMetrics().recordPipelineWait(System.nanoTime() - waitStart);
+            Thread.ofVirtual().start(() -> {
+                try {
+                    replyBinary(out, request);
+                } finally {
+                    pipelineSlots.release();
+                }
+            });
+        }
+    }
+
+    //Legge i campi della richiesta secondo il comando (vedi i codici in Protocol.Wire)
+    //i nomi di peer e risorse vengono controllati subito: uno con spazi o caratteri di controllo fa rifiutare la richiesta
+    private static void readFields(Wire.Reader in, BinaryRequest r) throws IOException {
+        String[] f = r.fields;
+        switch (r.op) {
+            case Wire.HELLO:
+                f[0] = readName(in, r);
+                r.number = in.readVarint();
+                break;
+            case Wire.HEARTBEAT, Wire.LISTPEER:
+                f[0] = readName(in, r);
+                break;
+            case Wire.ADD, Wire.DOWNLOAD, Wire.CHECK, Wire.UPDATEFAIL:
+                f[0] = readName(in, r);
+                f[1] = readName(in, r);
+                break;
+            case Wire.SOURCES:
+                f[0] = readName(in, r);
+                f[1] = readName(in, r);
+                r.number = in.readVarint();
+                break;
+            case Wire.ADD_BATCH, Wire.REMOVE_BATCH:
+                f[0] = readName(in, r);
+                r.names = readNames(in, true);
+                break;
+            case Wire.DOWNLOAD_RESULT:
+                for (int i = 0; i < 4; i++) f[i] = readName(in, r);
+                break;
+            case Wire.LISTDATA: //prefisso e token possono essere vuoti e non vengono salvati
+                f[0] = in.readString();
+                r.number = in.readVarint();
+                f[1] = in.readString();
+                break;
+            case Wire.TEXT: //le righe del batch restano tutte: il conteggio nel comando deve corrispondere
+                f[0] = in.readString();
+                r.names = readNames(in, false);
+                break;
+            default: //STATS e comandi sconosciuti non hanno campi
+        }
+    }
+
+    //Legge un nome di peer o di risorsa; se non è valido la richiesta viene segnata e riceverà un errore
+    private static String readName(Wire.Reader in, BinaryRequest r) throws IOException {
+        String name = in.readString();
+        if (!ResourceService.isValidName(name)) r.invalidName = true;
+        return name;
+    }
+
+    //n seguito da n stringhe; con onlyValid i nomi con spazi o caratteri di controllo vengono scartati
+    private static List<String> readNames(Wire.Reader in, boolean onlyValid) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_BATCH) throw new IOException("numero di risorse non valido in un comando: " + count);
+        List<String> names = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            String name = in.readString();
+            if (!onlyValid || ResourceService.isValidName(name)) names.add(name);
+        }
+        return names;
+    }
+
+    //Esegue una richiesta binaria e scrive il frame di risposta tenendo outLock
+    private void replyBinary(OutputStream out, BinaryRequest request) {
+        if (request.op == Wire.LISTDATA && request.number <= 0 && refusal("listdata") == null) {
+            streamListData(out, request.id, request.fields[0]);
+            return;
+        }
+        long start = System.nanoTime();
+        Wire.Writer response;
+        try {
+            response = execute(request);
+        } catch (RuntimeException e) { //parametri non validi: risponde con un errore
+            response = error(request.id, "ERRORE: Comando non valido");
+        }
+        if (!resourceService.awaitDurable()) response = error(request.id, NOT_SAVED);
+        resourceService.getMetrics().recordCommand(Wire.nameOf(request.op), System.nanoTime() - start);
+        try {
+            writeLocked(out, response);
+        } catch (UncheckedIOException ignored) {
+            //connessione chiusa: il thread della connessione se ne accorge alla lettura successiva
+        }
+    }
+
+    //Controlla i parametri di un comando testuale: dopo tokenize non contengono spazi, ma possono contenere caratteri di controllo
+    //le opzioni di listdata non vengono salvate; nei batch le righe con nomi non validi vengono scartate da addResources
+    private static boolean validNames(String command, String[] parts) {
+        if (command.equals("listdata")) return true;
+        int last = command.equals("add_batch") || command.equals("remove_batch") ? Math.min(parts.length, 2) : parts.length;
+        for (int i = 1; i < last; i++) {
+            if (!ResourceService.isValidName(parts[i])) return false;
         }
+        return true;
+    }
+
+    //Errore con cui una replica rifiuta il comando, null se il comando può essere eseguito
+    private String refusal(String command) {
+        if (!resourceService.isReplica()) return null;
+        if (WRITE_COMMANDS.contains(command)) return READ_ONLY;
+        if (READ_COMMANDS.contains(command) && resourceService.isStaleReplica()) return NOT_SYNCED;
+        return null;
+    }
+
+    private static Wire.Writer error(long id, String message) {
+        return new Wire.Writer(Wire.ERROR, id).writeString(message);
+    }
+
+    //Esegue il comando di una richiesta binaria e prepara la risposta (campi descritti in Protocol.Wire)
+    private Wire.Writer execute(BinaryRequest r) {
+        String[] f = r.fields;
+        String refused = refusal(Wire.nameOf(r.op));
+        if (refused != null) return error(r.id, refused);
+        if (r.invalidName) return error(r.id, INVALID_NAME);
+        Wire.Writer w = new Wire.Writer(Wire.OK, r.id);
+        switch (r.op) {
+            case Wire.HELLO:
+                w.writeVarint(register(f[0], Math.toIntExact(r.number)));
+                break;
+            case Wire.HEARTBEAT:
+                if (!resourceService.renewLease(f[0])) w.setType(Wire.NO);
+                break;
+            case Wire.ADD:
+                if (!resourceService.isRegistered(f[1])) return error(r.id, "ERRORE: Peer non registrato");
+                w.writeVarint(resourceService.addResource(f[0], f[1]) ? 1 : 0);
+                break;
+            case Wire.ADD_BATCH:
+                w.writeVarint(resourceService.addResources(r.names, f[0])).writeVarint(r.names.size());
+                break;
+            case Wire.REMOVE_BATCH:
+                w.writeVarint(resourceService.removeResources(r.names, f[0])).writeVarint(r.names.size());
+                break;
+            case Wire.DOWNLOAD: {
+                ResourceService.Lookup result = resourceService.chooseSource(f[0], f[1]);
+                if (result.error != null) return error(r.id, result.error);
+                ResourceService.Source source = result.sources.get(0);
+                w.writeString(source.name).writeString(source.ip).writeVarint(source.port);
+                break;
+            }
+            case Wire.SOURCES: {
+                ResourceService.Lookup result = resourceService.findSources(f[0], f[1], r.number == 0);
+                if (result.error != null) return error(r.id, result.error);
+                w.writeVarint(result.sources.size());
+                for (ResourceService.Source source : result.sources) {
+                    w.writeString(source.name).writeString(source.ip).writeVarint(source.port);
+                }
+                break;
+            }
+            case Wire.CHECK:
+                if (!resourceService.isAssociated(f[0], f[1])) w.setType(Wire.NO);
+                break;
+            case Wire.UPDATEFAIL:
+                resourceService.reportFailedSource(f[0], f[1], registeredPeer);
+                break;
+            case Wire.DOWNLOAD_RESULT:
+                resourceService.updateDownloadResult(f[0], f[1], f[2], f[3]);
+                break;
+            case Wire.LISTDATA: {
+                //le righe sono le stesse del testo; il token della pagina successiva è un campo a parte ("" se non c'è)
+                List<String> lines = new ArrayList<>();
+                String[] next = {""};
+                listPage(f[0], Math.toIntExact(r.number), f[1].isEmpty() ? null : f[1], line -> {
+                    if (line.startsWith("NEXT ")) next[0] = line.substring("NEXT ".length());
+                    else lines.add(line);
+                });
+                writeLines(w, lines).writeString(next[0]);
+                break;
+            }
+            case Wire.LISTPEER:
+                writeLines(w, resourceService.getPeerResources(f[0]));
+                break;
+            case Wire.STATS: {
+                StringWriter buffer = new StringWriter();
+                PrintWriter stats = new PrintWriter(buffer);
+                resourceService.writeStats(stats);
+                stats.flush();
+                writeLines(w, buffer.toString().lines().toList());
+                break;
+            }
+            case Wire.TEXT: {
+                //comando testuale qualsiasi: stessa esecuzione del formato testo, righe della risposta senza END
+                List<String> parts = new ArrayList<>(Arrays.asList(tokenize(f[0])));
+                parts.addAll(r.names);
+                StringWriter buffer = new StringWriter();
+                PrintWriter text = new PrintWriter(buffer);
+                dispatch(parts.toArray(new String[0]), text);
+                text.flush();
+                writeLines(w, buffer.toString().lines().filter(l -> !l.isEmpty() && !l.equals("END")).toList());
+                break;
+            }
+            default:
+                return error(r.id, UNKNOWN);
+        }
+        return w;
+    }
+
+    //n seguito da n righe
+    private static Wire.Writer writeLines(Wire.Writer w, List<String> lines) {
+        w.writeVarint(lines.size());
+        for (String line : lines) w.writeString(line);
+        return w;
     }
 }
@@ -0,0 +1,159 @@
+package Master;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//Registro dei download del master
+//gli eventi recenti stanno in un buffer circolare di dimensione fissa, quindi la memoria non cresce con il tempo;
+//ogni evento viene anche accodato a un thread in background che lo aggiunge a un file su disco, ruotato quando
+//supera una certa dimensione. L'orario viene salvato come numero e formattato solo quando il registro viene letto
+public class DownloadLog implements Closeable {
+    //formato dell'orario mostrato dal comando log
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    //eventi mantenuti in memoria
+    private static final int RING_CAPACITY = 10_000;
+    //eventi in attesa di essere scritti su disco: se la coda è piena l'evento resta solo in memoria
+    private static final int QUEUE_CAPACITY = 8192;
+    //dimensione oltre la quale il file viene ruotato, e numero di file vecchi conservati
+    private static final long MAX_FILE_BYTES = 10L * 1024 * 1024;
+    private static final int MAX_ROTATED_FILES = 5;
+
+    //un singolo download (riuscito o no)
+    private static final class Event {
+        final long seq; //numero dell'evento, per riconoscere la casella del buffer che gli appartiene
+        final long timeMillis;
+        final String resource;
+        final String source;
+        final String target;
+        final String esito;
+
+        Event(long seq, long timeMillis, String resource, String source, String target, String esito) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.resource = resource;
+            this.source = source;
+            this.target = target;
+            this.esito = esito;
+        }
+    }
+
+    private final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<>(RING_CAPACITY);
+    private final AtomicLong written = new AtomicLong(); //eventi aggiunti in totale, indica la prossima casella
+    private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder(); //eventi non scritti su disco perché la coda era piena
+    private final Path file; //file su disco, null se la scrittura su disco è disattivata
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    //crea il registro; se file è null gli eventi restano solo in memoria
+    public DownloadLog(Path file) {
+        this.file = file;
+        if (file != null) {
+            writer = new Thread(this::writeLoop, "download-log-writer");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            writer = null;
+        }
+    }
+
+    //Aggiunge un evento: non prende lock e non fa I/O
+    //il contatore avanza prima che la casella sia scritta: recent() riconosce dal numero dell'evento
+    //una casella non ancora scritta (o già riscritta da un evento successivo) e la salta
+    public void add(String resource, String source, String target, String esito) {
+        long index = written.getAndIncrement();
+        Event event = new Event(index, System.currentTimeMillis(), resource, source, target, esito);
+        ring.set((int) (index % RING_CAPACITY), event);
+        if (file != null && !queue.offer(event)) dropped.increment();
+    }
+
+    //Restituisce gli eventi recenti (al massimo RING_CAPACITY), dal più vecchio al più recente, già formattati
+    public List<String> recent() {
+        long end = written.get();
+        long start = Math.max(0, end - RING_CAPACITY);
+        List<String> lines = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            Event e = ring.get((int) (i % RING_CAPACITY));
+            if (e != null && e.seq == i) lines.add(format(e));
+        }
+        return lines;
+    }
+
+    //Eventi persi dal file su disco perché il thread di scrittura era in ritardo
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    //Riga mostrata dal comando log, nello stesso formato usato in precedenza
+    private static String format(Event e) {
+        String timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(e.timeMillis), ZoneId.systemDefault()).format(TIMESTAMP_FORMAT);
+        return "[" + timestamp + "] " + e.resource + " da: " + e.source + " a: " + e.target + " [" + e.esito + "]";
+    }
+
+    //Ciclo del thread di scrittura: svuota la coda a blocchi e aggiunge record compatti separati da tabulazioni
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Event first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch);
+            } catch (InterruptedException e) {
+                running = false;
+                queue.drainTo(batch);
+            }
+            if (batch.isEmpty()) continue;
+            try {
+                rotateIfNeeded();
+                try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (Event e : batch) {
+                        w.write(e.timeMillis + "\t" + e.resource + "\t" + e.source + "\t" + e.target + "\t" + e.esito + "\n");
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[DownloadLog] Scrittura non riuscita: " + e.getMessage());
+            }
+            batch.clear();
+        }
+    }
+
+    //Se il file ha superato la dimensione massima, lo rinomina in .1 e sposta i più vecchi (.1 -> .2 ...)
+    private void rotateIfNeeded() throws IOException {
+        if (!Files.exists(file) || Files.size(file) < MAX_FILE_BYTES) return;
+        Path dir = file.toAbsolutePath().getParent();
+        String name = file.getFileName().toString();
+        Files.deleteIfExists(dir.resolve(name + "." + MAX_ROTATED_FILES));
+        for (int i = MAX_ROTATED_FILES - 1; i >= 1; i--) {
+            Path older = dir.resolve(name + "." + i);
+            if (Files.exists(older)) Files.move(older, dir.resolve(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(file, dir.resolve(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    //Ferma il thread di scrittura dopo aver scritto gli eventi ancora in coda
+    @Override
+    public void close() {
+        running = false;
+        if (writer == null) return;
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package Master;
+
+import java.util.Arrays;
+
+//Insieme di interi non negativi in un solo array (indirizzamento aperto con scansione lineare)
+//usato dall'indice inverso del ResourceService per gli identificativi delle risorse di un peer:
+//circa 8 byte per elemento, contro una cinquantina di un ConcurrentHashMap.newKeySet di stringhe.
+//I metodi sono synchronized: le modifiche arrivano già una alla volta (dentro compute), il lock serve alle letture
+public class IntSet {
+    private static final int FREE = -1; //posizione vuota
+
+    private int[] table = newTable(8);
+    private int size = 0;
+
+    private static int[] newTable(int capacity) {
+        int[] t = new int[capacity];
+        Arrays.fill(t, FREE);
+        return t;
+    }
+
+    //posizione iniziale del valore (i valori consecutivi vengono sparsi nella tabella)
+    private static int slot(int value, int mask) {
+        int h = value * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    //ritorna false se il valore era già presente
+    public synchronized boolean add(int value) {
+        if (value < 0) throw new IllegalArgumentException("valore negativo: " + value);
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        while (table[i] != FREE) {
+            if (table[i] == value) return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        size++;
+        if (size * 2 > table.length) grow(); //la tabella resta piena al massimo a metà
+        return true;
+    }
+
+    //ritorna false se il valore non era presente
+    public synchronized boolean remove(int value) {
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        while (table[i] != value) {
+            if (table[i] == FREE) return false;
+            i = (i + 1) & mask;
+        }
+        //sposta indietro i valori successivi che non si troverebbero più partendo dalla loro posizione iniziale
+        int gap = i;
+        for (int j = (i + 1) & mask; table[j] != FREE; j = (j + 1) & mask) {
+            int home = slot(table[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = FREE;
+        size--;
+        return true;
+    }
+
+    public synchronized boolean contains(int value) {
+        int mask = table.length - 1;
+        for (int i = slot(value, mask); table[i] != FREE; i = (i + 1) & mask) {
+            if (table[i] == value) return true;
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    //Copia degli elementi (in nessun ordine particolare), da scorrere senza tenere il lock
+    public synchronized int[] toArray() {
+        int[] values = new int[size];
+        int n = 0;
+        for (int v : table) {
+            if (v != FREE) values[n++] = v;
+        }
+        return values;
+    }
+
+    private void grow() {
+        int[] old = table;
+        table = newTable(old.length * 2);
+        int mask = table.length - 1;
+        for (int v : old) {
+            if (v == FREE) continue;
+            int i = slot(v, mask);
+            while (table[i] != FREE) i = (i + 1) & mask;
+            table[i] = v;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package Master;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+//Gestisce i lease dei peer registrati con una "hashed timing wheel"
+//ogni peer ha una scadenza che viene rinnovata da hello e heartbeat. La ruota è un array circolare di caselle,
+//una per ogni tick: un peer sta nella casella in cui cade la sua scadenza e ad ogni tick il thread della ruota
+//controlla solo la casella corrente, quindi il costo non dipende dal numero totale di peer.
+//Un rinnovo non toglie il peer dalla vecchia casella: quando quella casella viene visitata, il peer viene
+//semplicemente spostato nella casella della scadenza aggiornata
+public class LeaseManager implements Runnable {
+    //durata di un tick della ruota
+    private static final long TICK_MILLIS = 1000;
+    //numero di caselle della ruota (un giro completo dura WHEEL_SIZE tick)
+    private static final int WHEEL_SIZE = 64;
+
+    private final long leaseMillis; //durata di un lease
+    private final Consumer<String> onExpire; //chiamato con il nome del peer quando il lease scade
+    //scadenza attuale di ogni peer (in millisecondi)
+    private final ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<>();
+    //caselle della ruota, ognuna con i peer la cui scadenza cade in quel tick
+    private final List<Set<String>> wheel = new ArrayList<>();
+    private volatile boolean running = true;
+
+    public LeaseManager(long leaseMillis, Consumer<String> onExpire) {
+        this.leaseMillis = leaseMillis;
+        this.onExpire = onExpire;
+        for (int i = 0; i < WHEEL_SIZE; i++) wheel.add(ConcurrentHashMap.newKeySet());
+    }
+
+    //Avvia il thread della ruota
+    public void start() {
+        Thread thread = new Thread(this, "lease-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //Ferma il thread della ruota
+    public void stop() {
+        running = false;
+    }
+
+    //Durata del lease in secondi, comunicata al peer nella risposta a hello
+    public long getLeaseSeconds() {
+        return leaseMillis / 1000;
+    }
+
+    //Concede o rinnova il lease del peer
+    public void renew(String peer) {
+        long deadline = System.currentTimeMillis() + leaseMillis;
+        deadlines.put(peer, deadline);
+        wheel.get(slotFor(deadline)).add(peer);
+    }
+
+    //Indica se il peer ha un lease attivo
+    public boolean isLeased(String peer) {
+        return deadlines.containsKey(peer);
+    }
+
+    //Revoca il lease (il peer si è disconnesso): il peer non scadrà più
+    public void revoke(String peer) {
+        deadlines.remove(peer);
+    }
+
+    //Casella della ruota visitata subito dopo la scadenza indicata
+    //si usa il tick successivo, così quando la casella viene controllata la scadenza è già passata
+    private static int slotFor(long deadline) {
+        return (int) ((deadline / TICK_MILLIS + 1) % WHEEL_SIZE);
+    }
+
+    @Override
+    public void run() {
+        long lastTick = System.currentTimeMillis() / TICK_MILLIS;
+        while (running) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long currentTick = now / TICK_MILLIS;
+            //se il thread è rimasto fermo più di un tick, visita anche le caselle saltate (al massimo un giro)
+            for (long tick = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1); tick <= currentTick; tick++) {
+                expireSlot(wheel.get((int) (tick % WHEEL_SIZE)), now);
+            }
+            lastTick = currentTick;
+        }
+    }
+
+    //Controlla i peer di una casella: quelli scaduti vengono rimossi, gli altri spostati nella casella della loro scadenza
+    private void expireSlot(Set<String> slot, long now) {
+        List<String> due = new ArrayList<>(slot);
+        slot.removeAll(due);
+        for (String peer : due) {
+            Long deadline = deadlines.get(peer);
+            if (deadline == null) continue; //lease revocato
+            if (deadline <= now) {
+                //remove con il valore letto: se nel frattempo il peer ha rinnovato, il rinnovo l'ha già rimesso nella ruota
+                if (deadlines.remove(peer, deadline)) onExpire.accept(peer);
+            } else {
+                //scadenza rinnovata o più lontana di un giro: il peer passa alla casella giusta
+                wheel.get(slotFor(deadline)).add(peer);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package Master;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//Tiene traccia del carico di upload di ogni peer sorgente
+//un trasferimento è "in corso" dal momento in cui il master risponde PEER fino a DOWNLOAD_RESULT o updatefail
+//del peer richiedente; il contatore dei download serviti cresce ad ogni DOWNLOAD_RESULT con esito positivo.
+//Solo i trasferimenti assegnati dal master vengono chiusi: i download da più sorgenti o da posizioni in cache
+//non sono mai stati contati come in corso
+public class LoadTracker {
+    //trasferimenti in corso per ogni peer sorgente
+    private final ConcurrentHashMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    //download completati con successo per ogni peer sorgente
+    private final ConcurrentHashMap<String, LongAdder> served = new ConcurrentHashMap<>();
+    //trasferimenti assegnati a ogni peer richiedente: risorsa -> peer sorgente
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> assigned = new ConcurrentHashMap<>();
+
+    //Il master ha indicato al richiedente il peer sorgente per scaricare la risorsa
+    public void started(String requester, String resource, String source) {
+        inFlight.computeIfAbsent(source, p -> new AtomicInteger()).incrementAndGet();
+        String previous = assigned.computeIfAbsent(requester, p -> new ConcurrentHashMap<>()).put(resource, source);
+        //il richiedente ha chiesto di nuovo la stessa risorsa senza chiudere il trasferimento precedente
+        if (previous != null) release(previous);
+    }
+
+    //Il download della risorsa da parte del richiedente è terminato (con successo o no)
+    //chiude il trasferimento assegnato dal master, se c'era, e in caso di successo conta un download servito
+    //per ogni sorgente che ha contribuito
+    public void finished(String requester, String resource, Collection<String> sources, boolean success) {
+        ConcurrentHashMap<String, String> requests = assigned.get(requester);
+        String source = requests == null ? null : requests.remove(resource);
+        if (source != null) release(source);
+        if (success) {
+            for (String s : sources) served.computeIfAbsent(s, p -> new LongAdder()).increment();
+        }
+    }
+
+    //Il richiedente segnala che la sorgente non ha fornito la risorsa (updatefail)
+    //chiude il trasferimento solo se era assegnato proprio a quella sorgente
+    public void failed(String requester, String resource, String source) {
+        ConcurrentHashMap<String, String> requests = assigned.get(requester);
+        if (requests != null && requests.remove(resource, source)) release(source);
+    }
+
+    //un trasferimento in meno per la sorgente (senza scendere sotto zero se la sorgente è stata rimossa e registrata di nuovo)
+    private void release(String source) {
+        AtomicInteger active = inFlight.get(source);
+        if (active != null) active.updateAndGet(n -> Math.max(0, n - 1));
+    }
+
+    //Numero di trasferimenti in corso dal peer
+    public int active(String peer) {
+        AtomicInteger active = inFlight.get(peer);
+        return active == null ? 0 : active.get();
+    }
+
+    //Numero di download serviti con successo dal peer
+    public long served(String peer) {
+        LongAdder count = served.get(peer);
+        return count == null ? 0 : count.sum();
+    }
+
+    //Dimentica un peer che ha lasciato la rete, sia come sorgente sia come richiedente:
+    //i trasferimenti che aveva richiesto non verranno più chiusi, quindi vengono tolti dalle loro sorgenti
+    public void remove(String peer) {
+        inFlight.remove(peer);
+        served.remove(peer);
+        ConcurrentHashMap<String, String> requests = assigned.remove(peer);
+        if (requests != null) requests.values().forEach(this::release);
+    }
+
+    //Restituisce, in ordine di nome, i peer con il loro carico nel formato "in corso / serviti"
+    public Map<String, String> snapshot() {
+        Map<String, String> result = new TreeMap<>();
+        inFlight.keySet().forEach(p -> result.put(p, active(p) + " in corso / " + served(p) + " serviti"));
+        served.keySet().forEach(p -> result.put(p, active(p) + " in corso / " + served(p) + " serviti"));
+        return result;
+    }
+}
@@ -1,7 +1,10 @@
 package Master;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.ServerSocket;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Scanner;
 
 
@@ -11,15 +14,103 @@ public class Master {
 
     public static void main(String[] args) {
         //se l'utente non specifica la porta, stampa l'uso corretto e termina
-        if (args.length != 1) {
-            System.err.println("Uso corretto: java Master <porta>");
+        if (args.length < 1) {
+            printUsage();
             return;
         }
         //al contrario, se l'utente inserisce la porta la legge e la converte in intero
         int port = Integer.parseInt(args[0]);
+        //motore delle connessioni: virtual thread (predefinito) o un thread di piattaforma per peer
+        SocketListener.Engine engine = SocketListener.Engine.VIRTUAL;
+        //strategia di scelta del peer sorgente nei download (predefinita: il peer con meno trasferimenti in corso)
+        SourceSelector selector = new SourceSelector.LeastActive();
+        //durata dei lease dei peer in secondi (0 disattiva i lease)
+        long leaseSeconds = 30;
+        //file su disco del registro dei download ("none" lo tiene solo in memoria)
+        String downloadLogFile = "master-downloads.log";
+        //cartella in cui salvare lo stato (journal e snapshot) per ripartire dopo un riavvio ("none" lo disattiva)
+        String stateDir = "master-state";
+        //primario da seguire come replica in sola lettura (null: questo master è il primario)
+        String replicaOf = null;
+        String primaryHost = null;
+        int primaryPort = -1;
+        for (int i = 1; i < args.length; i++) { //opzioni facoltative
+            if (args[i].startsWith("--engine=")) {
+                try {
+                    engine = SocketListener.Engine.valueOf(args[i].substring("--engine=".length()).toUpperCase());
+                } catch (IllegalArgumentException e) { //motore diverso da virtual e platform
+                    System.err.println("Opzione sconosciuta: " + args[i]);
+                    printUsage();
+                    return;
+                }
+            } else if (args[i].startsWith("--selector=")) {
+                try {
+                    selector = SourceSelector.forName(args[i].substring("--selector=".length()));
+                } catch (IllegalArgumentException e) { //strategia non tra quelle elencate nell'uso
+                    System.err.println(e.getMessage());
+                    printUsage();
+                    return;
+                }
+            } else if (args[i].startsWith("--lease=")) {
+                try {
+                    leaseSeconds = Long.parseLong(args[i].substring("--lease=".length()));
+                } catch (NumberFormatException e) {
+                    leaseSeconds = -1;
+                }
+                if (leaseSeconds < 0) { //non numerico o negativo (0 disattiva i lease)
+                    System.err.println("Durata del lease non valida: " + args[i]);
+                    printUsage();
+                    return;
+                }
+            } else if (args[i].startsWith("--download-log=")) {
+                downloadLogFile = args[i].substring("--download-log=".length());
+            } else if (args[i].startsWith("--state-dir=")) {
+                stateDir = args[i].substring("--state-dir=".length());
+            } else if (args[i].startsWith("--replica-of=")) {
+                replicaOf = args[i].substring("--replica-of=".length());
+                int colon = replicaOf.lastIndexOf(':');
+                if (colon > 0) {
+                    primaryHost = replicaOf.substring(0, colon);
+                    try {
+                        primaryPort = Integer.parseInt(replicaOf.substring(colon + 1));
+                    } catch (NumberFormatException e) {
+                        primaryPort = -1;
+                    }
+                }
+                if (primaryPort < 1 || primaryPort > 65535) { //manca l'host o la porta non è valida
+                    System.err.println("Indirizzo del primario non valido: " + args[i]);
+                    printUsage();
+                    return;
+                }
+            } else {
+                System.err.println("Opzione sconosciuta: " + args[i]);
+                printUsage();
+                return;
+            }
+        }
 
         //crea l'oggetto resourceService, che gestisce tutti i peer registrati e le risorse
-        ResourceService resourceService = new ResourceService();
+        DownloadLog downloadLog = new DownloadLog(downloadLogFile.equals("none") ? null : Paths.get(downloadLogFile));
+        ResourceService resourceService = new ResourceService(selector, downloadLog);
+        if (replicaOf != null) {
+            //una replica riceve tutto lo stato dal primario: non lo salva su disco e non gestisce i lease
+            //(entrambi partono con il comando promote)
+            resourceService.startReplica(primaryHost, primaryPort);
+            System.out.println("Replica in sola lettura di " + replicaOf + " (comando promote per diventare primario).");
+        }
+        //ripristina lo stato salvato prima di accettare connessioni
+        else if (!stateDir.equals("none")) {
+            try {
+                long replayed = resourceService.enablePersistence(Paths.get(stateDir));
+                System.out.println("Stato ripristinato da " + stateDir + ": " + resourceService.getPeerCount() + " peer, "
+                        + resourceService.getResourceCount() + " risorse (" + replayed + " modifiche dal journal).");
+            } catch (IOException e) {
+                System.err.println("Impossibile ripristinare lo stato da " + stateDir + ": " + e.getMessage());
+                return;
+            }
+        }
+        //i peer che non inviano heartbeat entro il lease vengono rimossi con tutte le loro risorse
+        if (leaseSeconds > 0 && replicaOf == null) resourceService.startLeases(leaseSeconds);
 
         //ServerSocket mette il master in ascolto di nuove connessioni
         //Scanner legge i comandi digitati dall'utente
@@ -33,7 +124,7 @@ public class Master {
             //prende nel costruttore serverSocket per chiamare accept(), creando cosi la connessione
             //e resourceService che tiene traccia dei peer registrati e delle risorse associate
             //Listener fa quindi da dispatcher, riceve connessioni e smista le richieste ai worker thread
-            SocketListener listener = new SocketListener(serverSocket, resourceService);
+            SocketListener listener = new SocketListener(serverSocket, resourceService, engine);
 
             //crea un nuovo thread che eseguirà il codice del SocketListener in parallelo
             //così il master ascolta i peer in background mentre resta libero per ricevere comandi dalla console
@@ -54,12 +145,14 @@ public class Master {
                     //Comando listdata
                     //Mostra tutte le risorse e per ognuna i peer associati
                     case "listdata":
-                        if (resourceService.getAllResources().isEmpty()) { //se la mappa è vuota, stampa avviso
+                        //per ogni risorsa stampa la lista dei peer associati, leggendo la tabella una sola volta
+                        int[] printed = new int[1];
+                        resourceService.forEachResource("", (res, peers) -> {
+                            System.out.println(res + ": " + String.join(", ", peers));
+                            printed[0]++;
+                        });
+                        if (printed[0] == 0) { //se non ci sono risorse, stampa avviso
                             System.out.println("Nessuna risorsa disponibile.");
-                        } else { //altrimenti, per ogni risorsa stampa la lista dei peer associati
-                            resourceService.getAllResources().forEach((res, peers) ->
-                                    System.out.println(res + ": " + String.join(", ", peers))
-                            );
                         }
                         break;
 
@@ -67,17 +160,64 @@ public class Master {
                     //Mostra il registro dei download effettuati (avvenuti correttamente e non)
                     case "log":
                         System.out.println("Risorse scaricate:");
-                        if (resourceService.getDownloadLog().isEmpty()) { //se l'arrayList è vuoto, stampa avviso
+                        //legge una sola volta i download recenti dal buffer circolare
+                        List<String> downloads = resourceService.getDownloadLog();
+                        if (downloads.isEmpty()) { //se il registro è vuoto, stampa avviso
                             System.out.println("Nessun download effettuato.");
                         } else { //Altrimenti, stampa tutti i download
-                            resourceService.getDownloadLog().forEach(System.out::println);
+                            downloads.forEach(System.out::println);
                         }
                         break;
 
+                    //Comando load
+                    //Mostra per ogni peer sorgente i trasferimenti in corso e i download serviti
+                    case "load":
+                        if (resourceService.getLoad().isEmpty()) {
+                            System.out.println("Nessun download servito.");
+                        } else {
+                            resourceService.getLoad().forEach((peer, carico) ->
+                                    System.out.println(peer + ": " + carico)
+                            );
+                        }
+                        break;
+
+                    //Comando stats
+                    //Mostra le statistiche del master: tabelle, connessioni e tempi dei comandi
+                    case "stats":
+                        PrintWriter console = new PrintWriter(System.out);
+                        resourceService.writeStats(console);
+                        console.flush();
+                        break;
+
+                    //Comando promote
+                    //La replica smette di seguire il primario (ad esempio perché non risponde più) e accetta le scritture
+                    case "promote":
+                        if (!resourceService.promote()) {
+                            System.out.println("Questo master è già il primario.");
+                            break;
+                        }
+                        //da primario le modifiche vanno salvate su disco: lo stato ricevuto dal primario sostituisce quello salvato
+                        if (!stateDir.equals("none")) {
+                            try {
+                                resourceService.startPersistence(Paths.get(stateDir));
+                                System.out.println("Stato salvato in " + stateDir + ".");
+                            } catch (IOException e) {
+                                System.err.println("Impossibile salvare lo stato in " + stateDir + ": " + e.getMessage());
+                            }
+                        }
+                        //i peer ricevuti dal primario devono ora rinnovare il lease con questo master
+                        if (leaseSeconds > 0) resourceService.startLeases(leaseSeconds);
+                        System.out.println("Promosso a primario: " + resourceService.getPeerCount() + " peer, "
+                                + resourceService.getResourceCount() + " risorse.");
+                        break;
+
                     //Comando quit
                     // termina l'esecuzione del master
                     case "quit":
                         running = false; //lo imposta per uscire dal ciclo
+                        //salva lo stato, ferma i lease e scrive su disco gli ultimi download registrati
+                        //(prima di chiudere le connessioni, così i peer restano nello stato salvato)
+                        resourceService.shutdown();
                         //chiude tutte le connessioni con i peer
                         listener.closeAllClients();
 
@@ -98,4 +238,11 @@ public class Master {
             if (running) e.printStackTrace();
         }
     }
+
+    //Stampa l'uso corretto del master, con tutte le opzioni facoltative
+    private static void printUsage() {
+        System.err.println("Uso corretto: java Master <porta> [--engine=virtual|platform]"
+                + " [--selector=first|round-robin|least-active|two-choices] [--lease=<secondi>]"
+                + " [--download-log=<file>|none] [--state-dir=<cartella>|none] [--replica-of=<host>:<porta>]");
+    }
 }
@@ -0,0 +1,120 @@
+package Master;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+//Metriche del master, mostrate dal comando STATS e dal comando "stats" della console
+//per ogni comando del protocollo conta le richieste e registra il tempo di esecuzione in un istogramma;
+//inoltre tiene le connessioni aperte e il tempo passato ad aspettare i lock delle connessioni.
+//Tutti i contatori sono LongAdder (un contatore per thread/core, sommati solo quando vengono letti),
+//quindi registrare una misura non prende lock e i thread dei peer non si contendono la stessa variabile
+public class Metrics {
+
+    //comandi con metriche proprie; gli altri vengono contati in "altro"
+    private static final String[] COMMANDS = {"hello", "heartbeat", "add", "add_batch", "remove_batch", "download",
+            "download_result", "sources", "check", "listdata", "listpeer", "updatefail", "stats", "altro"};
+
+    //Istogramma dei tempi in nanosecondi: l'intervallo i contiene i valori tra 2^i e 2^(i+1)-1
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[63 - Long.numberOfLeadingZeros(nanos | 1)].increment();
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        //Stima del percentile p (tra 0 e 1): il limite superiore dell'intervallo in cui cade
+        public long percentile(double p) {
+            long[] counts = new long[buckets.length];
+            long n = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                n += counts[i];
+            }
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min((2L << i) - 1, max.get());
+            }
+            return max.get();
+        }
+
+        //una riga con richieste, media, p50, p99 e massimo in microsecondi
+        String format(String name) {
+            long n = count();
+            double mean = n == 0 ? 0 : total.sum() / (double) n;
+            return String.format(Locale.ROOT, "%-16s %10d %10.1f %10.1f %10.1f %10.1f", name, n, mean / 1e3,
+                    percentile(0.50) / 1e3, percentile(0.99) / 1e3, max.get() / 1e3);
+        }
+    }
+
+    private final Histogram[] commands = new Histogram[COMMANDS.length];
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    //attesa del lock sulla connessione per scrivere una risposta (richieste con identificativo in parallelo)
+    private final Histogram replyLockWait = new Histogram();
+    //attesa di un posto libero per le richieste con identificativo (MAX_PIPELINED già in esecuzione)
+    private final Histogram pipelineWait = new Histogram();
+
+    public Metrics() {
+        for (int i = 0; i < commands.length; i++) commands[i] = new Histogram();
+    }
+
+    //Registra il tempo di esecuzione di un comando
+    public void recordCommand(String command, long nanos) {
+        commands[indexOf(command)].record(nanos);
+    }
+
+    private static int indexOf(String command) {
+        for (int i = 0; i < COMMANDS.length - 1; i++) {
+            if (COMMANDS[i].equalsIgnoreCase(command)) return i;
+        }
+        return COMMANDS.length - 1;
+    }
+
+    public void connectionOpened() {
+        openConnections.increment();
+        acceptedConnections.increment();
+    }
+
+    public void connectionClosed() {
+        openConnections.decrement();
+    }
+
+    public void recordReplyLockWait(long nanos) {
+        replyLockWait.record(nanos);
+    }
+
+    public void recordPipelineWait(long nanos) {
+        pipelineWait.record(nanos);
+    }
+
+    //Scrive le metriche su out, una per riga
+    public void writeTo(PrintWriter out) {
+        out.println("connessioni aperte: " + openConnections.sum() + " (accettate in totale: " + acceptedConnections.sum() + ")");
+        out.println(String.format("%-16s %10s %10s %10s %10s %10s", "comando", "richieste", "media us", "p50 us", "p99 us", "max us"));
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (commands[i].count() > 0) out.println(commands[i].format(COMMANDS[i]));
+        }
+        out.println(replyLockWait.format("attesa-risposta"));
+        out.println(pipelineWait.format("attesa-pipeline"));
+    }
+}
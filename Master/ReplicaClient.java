@@ -0,0 +1,115 @@
+package Master;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+//Lato replica: si collega al primario con REPLICATE e applica al ResourceService locale lo snapshot e le modifiche ricevute
+//se la connessione cade (o il primario tace per più di TIMEOUT_MILLIS) riprova ogni secondo e riparte da uno snapshot nuovo.
+//Il ritardo della replica è la differenza tra l'ultimo numero di modifica annunciato dal primario e l'ultimo applicato
+public class ReplicaClient implements Runnable {
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final ResourceService resourceService;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+
+    private volatile boolean synced = false; //true dopo il primo snapshot completo della connessione attuale
+    private volatile long applied = 0; //numero dell'ultima modifica applicata
+    private volatile long primary = 0; //ultimo numero annunciato dal primario
+    private volatile long lastContact = 0; //ultima riga ricevuta dal primario
+
+    public ReplicaClient(String host, int port, ResourceService resourceService) {
+        this.host = host;
+        this.port = port;
+        this.resourceService = resourceService;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                s.setSoTimeout(TIMEOUT_MILLIS);
+                PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                out.println("REPLICATE");
+                follow(in);
+            } catch (IOException e) {
+                if (running) System.err.println("[Replica] Connessione al primario " + host + ":" + port + " persa: " + e.getMessage());
+            }
+            synced = false;
+            if (!running) break;
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    //Legge lo snapshot e poi le modifiche finché la connessione resta aperta
+    private void follow(BufferedReader in) throws IOException {
+        String line;
+        boolean inSnapshot = false;
+        while ((line = in.readLine()) != null) {
+            lastContact = System.currentTimeMillis();
+            if (line.startsWith("R ")) {
+                int space = line.indexOf(' ', 2);
+                resourceService.applyReplicated(line.substring(space + 1));
+                applied = Math.max(applied, Long.parseLong(line.substring(2, space)));
+            } else if (line.startsWith("T ")) {
+                primary = Math.max(primary, Long.parseLong(line.substring(2).trim()));
+            } else if (line.startsWith("SNAPSHOT ")) {
+                //lo stato locale viene sostituito da quello del primario
+                synced = false;
+                resourceService.clearReplicatedState();
+                inSnapshot = true;
+                applied = Long.parseLong(line.substring("SNAPSHOT ".length()).trim());
+                primary = Math.max(primary, applied);
+            } else if (line.equals("SNAPSHOT_END")) {
+                inSnapshot = false;
+                synced = true;
+                System.out.println("[Replica] Sincronizzata con " + host + ":" + port + ": " + resourceService.getPeerCount()
+                        + " peer, " + resourceService.getResourceCount() + " risorse.");
+            } else if (inSnapshot) {
+                resourceService.applyReplicated(line);
+            }
+        }
+        throw new IOException("connessione chiusa dal primario");
+    }
+
+    //true se lo snapshot della connessione attuale è stato applicato per intero
+    public boolean isSynced() {
+        return synced;
+    }
+
+    //Modifiche ricevute dal primario e non ancora applicate
+    public long getLag() {
+        return Math.max(0, primary - applied);
+    }
+
+    //Ferma la replica (comando promote o chiusura del master)
+    public void stop() {
+        running = false;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    //Riga mostrata da STATS
+    public String status() {
+        long age = lastContact == 0 ? -1 : System.currentTimeMillis() - lastContact;
+        return "replica di " + host + ":" + port + (synced ? ", sincronizzata" : ", non sincronizzata")
+                + ", modifiche applicate: " + applied + ", ritardo: " + getLag() + " modifiche"
+                + (age < 0 ? "" : ", ultimo contatto " + age + " ms fa");
+    }
+}
@@ -0,0 +1,139 @@
+package Master;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Lato primario della replica: invia alle repliche collegate lo stato attuale e poi ogni modifica
+//le modifiche sono le stesse righe scritte nel journal ("P nome ip porta", "U nome", "A risorsa peer", "D risorsa peer",
+//con i campi codificati da StateStore.record), numerate in ordine. Una replica che si collega riceve prima uno snapshot, scritto mentre il master continua a lavorare:
+//le modifiche avvenute durante lo snapshot sono già in coda e vengono inviate dopo, e poiché ogni riga imposta un valore
+//riapplicarle non cambia il risultato (come per journal e snapshot su disco).
+//Protocollo dopo il comando REPLICATE: "SNAPSHOT <n>", righe dello snapshot, "SNAPSHOT_END", poi "R <n> <modifica>"
+//per ogni modifica e "T <n>" ogni secondo, con l'ultimo numero assegnato dal primario (usato per misurare il ritardo)
+public class ReplicationSource {
+    //modifiche massime in coda per una replica: oltre, la replica è troppo lenta e viene scollegata (ripartirà da uno snapshot)
+    private static final int MAX_BACKLOG = 1_000_000;
+    //righe inviate prima di un flush
+    private static final int BATCH = 10_000;
+    private static final long TICK_MILLIS = 1000;
+
+    //una replica collegata: modifiche da inviare e ultimo numero inviato
+    private static final class Subscriber {
+        final String address;
+        final BlockingQueue<String> queue = new LinkedBlockingQueue<>(MAX_BACKLOG);
+        volatile boolean overflow = false;
+        volatile long sent = 0;
+
+        Subscriber(String address) {
+            this.address = address;
+        }
+    }
+
+    private final AtomicLong sequence = new AtomicLong(); //numero dell'ultima modifica
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private volatile boolean stopped = false;
+    //repliche collegate dall'avvio: una modifica che legge un valore diverso prima e dopo la sua compute
+    //può essere stata numerata senza arrivare alla nuova replica (vedi joins)
+    private final AtomicLong joins = new AtomicLong();
+
+    //Numero di repliche collegate finora, letto da chi modifica lo stato prima e dopo la compute
+    //una modifica pubblicata prima che una replica si aggiunga ai subscribers può non essere ancora nella mappa
+    //quando lo snapshot la legge: se il numero è cambiato, chi ha fatto la modifica ripubblica il valore attuale
+    //della voce con la stessa compute (ResourceService.refreshPeer e refreshAssociation), senza fermare le altre modifiche
+    public long joins() {
+        return joins.get();
+    }
+
+    //Numera la modifica e la accoda per ogni replica
+    //viene chiamata dentro compute, così le modifiche della stessa chiave arrivano nell'ordine in cui sono state applicate
+    public void publish(String record) {
+        long n = sequence.incrementAndGet();
+        if (stopped || subscribers.isEmpty()) return;
+        String line = "R " + n + " " + record;
+        for (Subscriber s : subscribers) {
+            if (!s.queue.offer(line)) s.overflow = true;
+        }
+    }
+
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    //Serve una replica sulla connessione out finché la connessione resta aperta
+    //snapshot scrive lo stato attuale; il thread della connessione resta occupato a inviare le modifiche
+    public void serve(PrintWriter out, String address, StateStore.Source snapshot) throws IOException {
+        Subscriber s = new Subscriber(address);
+        subscribers.add(s); //prima dello snapshot, così nessuna modifica successiva va persa
+        joins.incrementAndGet(); //dopo l'aggiunta: le modifiche che non hanno visto la replica vedono il numero cambiare
+        try {
+            long start = sequence.get();
+            out.println("SNAPSHOT " + start);
+            snapshot.writeTo(new StateStore.Apply() {
+                @Override
+                public void peer(String name, String ip, int port) {
+                    out.println(StateStore.record('P', name, ip, String.valueOf(port)));
+                }
+
+                @Override
+                public void peerGone(String name) {}
+
+                @Override
+                public void add(String resource, String peer) {
+                    out.println(StateStore.record('A', resource, peer));
+                }
+
+                @Override
+                public void remove(String resource, String peer) {}
+            });
+            out.println("SNAPSHOT_END");
+            out.flush();
+            s.sent = start;
+
+            List<String> batch = new ArrayList<>(BATCH);
+            long lastTick = System.currentTimeMillis();
+            while (!stopped && !out.checkError()) {
+                if (s.overflow) throw new IOException("replica " + address + " troppo lenta");
+                String first = s.queue.poll(TICK_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    s.queue.drainTo(batch, BATCH - 1);
+                    for (String line : batch) out.println(line);
+                    String last = batch.get(batch.size() - 1);
+                    s.sent = Long.parseLong(last.substring(2, last.indexOf(' ', 2)));
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= TICK_MILLIS) {
+                    out.println("T " + sequence.get());
+                    lastTick = now;
+                }
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscribers.remove(s);
+        }
+    }
+
+    //Smette di inviare modifiche alle repliche (chiusura del master)
+    //va chiamato prima di chiudere le connessioni dei peer, così le repliche mantengono i peer e possono essere promosse
+    public void stop() {
+        stopped = true;
+    }
+
+    //Righe mostrate da STATS: repliche collegate e modifiche ancora da inviare a ciascuna
+    public void writeStats(PrintWriter out) {
+        out.println("replica: primario, modifiche: " + sequence.get() + ", repliche collegate: " + subscribers.size());
+        for (Subscriber s : subscribers) {
+            out.println("  " + s.address + ": inviate fino a " + s.sent + ", in coda " + s.queue.size());
+        }
+    }
+}
@@ -1,31 +1,210 @@
 package Master;
 
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 
+//Tiene lo stato condiviso del master: peer registrati, risorse e registro dei download
+//tutte le strutture sono concorrenti, quindi i metodi non sono synchronized: le letture non prendono lock
+//e le modifiche di una risorsa avvengono in modo atomico con compute/computeIfPresent solo sulla sua voce.
+//Nessun metodo scrive sul socket mentre modifica le mappe
+//
+//I nomi di peer e risorse vengono trasformati in identificativi interi (SymbolTable): gli insiemi dei possessori
+//e l'indice inverso contengono solo interi, i nomi tornano stringhe solo nelle risposte ai peer
 public class ResourceService {
-    //mappa per associare ad ogni risorsa la lista dei peer che la possiedono
-    private final Map<String, List<String>> resourceTable;
-    //lista che memorizza tutti i download effettuati dai peer (con orario ed esito)
-    private final List<String> downloadLog;
+    //identificativi dei nomi dei peer, assegnati solo ai peer registrati quando ricevono la prima risorsa
+    //e rilasciati quando il peer non è più registrato e non possiede più nulla (vedi linkPeer e unlinkPeer)
+    private final SymbolTable peerIds = new SymbolTable();
+    //identificativi dei nomi delle risorse (rilasciati quando una risorsa non ha più possessori)
+    private final SymbolTable resourceIds = new SymbolTable();
+    //mappa per associare ad ogni risorsa i peer che la possiedono (identificativi in un array ordinato
+    //o, per le risorse con molti possessori, in un IntSet: vedi Holders)
+    private final ConcurrentHashMap<String, Object> resourceTable;
+    //nomi delle risorse in ordine alfabetico, aggiornati insieme a resourceTable dentro compute
+    //usati da listdata per scorrere le risorse a pagine, senza copiare la tabella
+    private final ConcurrentSkipListSet<String> resourceNames = new ConcurrentSkipListSet<>();
+    //indice inverso: per ogni peer gli identificativi delle risorse che possiede, aggiornato insieme a resourceTable dentro compute
+    //permette di rimuovere un peer e di elencare le sue risorse senza scorrere tutta la tabella
+    private final ConcurrentHashMap<String, IntSet> peerResources = new ConcurrentHashMap<>();
+    //registro dei download effettuati dai peer (con orario ed esito): buffer circolare in memoria più file su disco
+    private final DownloadLog downloadLog;
 
     //mappa che associa ad ogni peer le sue informazioni
-    private final Map<String, PeerInfo> peers;
+    private final ConcurrentHashMap<String, PeerInfo> peers;
 
-    //costruttore
+    //strategia di scelta del peer sorgente e carico di upload di ogni peer
+    private final SourceSelector selector;
+    private final LoadTracker load = new LoadTracker();
+    //lease dei peer registrati, null se i lease sono disattivati
+    private volatile LeaseManager leases;
+    //salvataggio su disco delle modifiche (journal e snapshot), null se disattivato
+    private volatile StateStore store;
+    //metriche del master (tempi dei comandi, connessioni, attese sui lock), aggiornate da ClientHandler e SocketListener
+    private final Metrics metrics = new Metrics();
+    //invio delle modifiche alle repliche collegate (comando REPLICATE)
+    private final ReplicationSource replication = new ReplicationSource();
+    //collegamento al primario se questo master è una replica in sola lettura, null se è il primario
+    private volatile ReplicaClient replica;
+    //applica le modifiche ricevute (dal disco o dal primario) senza scriverle di nuovo nel journal
+    private final StateStore.Apply replayer = new Replayer();
+    //prima e ultima riga del journal accodate da ogni thread dopo l'ultima awaitDurable
+    private final ThreadLocal<StateStore.Entry[]> lastJournaled = ThreadLocal.withInitial(() -> new StateStore.Entry[2]);
+
+    //costruttore, con la strategia predefinita che sceglie il peer meno carico
     public ResourceService() {
-        this.resourceTable = new HashMap<>();
-        this.downloadLog = new ArrayList<>();
-        this.peers = new HashMap<>();
+        this(new SourceSelector.LeastActive());
+    }
+
+    //costruttore con la strategia di scelta del peer sorgente, con il registro dei download solo in memoria
+    public ResourceService(SourceSelector selector) {
+        this(selector, new DownloadLog(null));
+    }
+
+    //costruttore con la strategia di scelta del peer sorgente e il registro dei download
+    public ResourceService(SourceSelector selector, DownloadLog downloadLog) {
+        this.resourceTable = new ConcurrentHashMap<>();
+        this.downloadLog = downloadLog;
+        this.peers = new ConcurrentHashMap<>();
+        this.selector = selector;
+    }
+
+    //Possessori di una risorsa in un solo array di interi: in posizione 0 l'identificativo della risorsa,
+    //poi gli identificativi dei peer in ordine crescente. L'array non viene mai modificato: ogni aggiunta o rimozione
+    //ne crea uno nuovo dentro compute, così le letture senza lock vedono sempre un insieme completo.
+    //Una risorsa ha di solito pochi possessori, quindi copiare l'array costa poco e ogni associazione occupa 4 byte;
+    //tenere tutto nello stesso array evita un oggetto (e un accesso alla memoria) in più per ogni lettura.
+    //Oltre LARGE_LIMIT possessori copiare l'array ad ogni aggiunta renderebbe quadratica la costruzione dell'insieme:
+    //la risorsa passa a un oggetto Large con un IntSet modificato sul posto (dentro compute), che le letture copiano
+    //con toArray. Torna un array quando i possessori scendono sotto la metà del limite
+    private static final class Holders {
+        private static final int SCAN_LIMIT = 17; //risorsa e fino a 16 possessori
+        private static final int LARGE_LIMIT = 256;
+
+        //risorsa con molti possessori
+        private static final class Large {
+            final int resourceId;
+            final IntSet peers = new IntSet();
+
+            Large(int resourceId) {
+                this.resourceId = resourceId;
+            }
+        }
+
+        private Holders() {}
+
+        static Object create(int resourceId) {
+            return new int[]{resourceId};
+        }
+
+        static int resourceId(Object holders) {
+            return holders instanceof Large large ? large.resourceId : ((int[]) holders)[0];
+        }
+
+        //con pochi possessori scorre tutto l'array senza uscire prima: la ricerca binaria sbaglia spesso la previsione
+        //dei salti e su array così corti costa di più
+        static boolean contains(Object holders, int peer) {
+            if (peer < 0) return false;
+            if (holders instanceof Large large) return large.peers.contains(peer);
+            int[] array = (int[]) holders;
+            if (array.length <= SCAN_LIMIT) {
+                boolean found = false;
+                for (int i = 1; i < array.length; i++) found |= array[i] == peer;
+                return found;
+            }
+            return Arrays.binarySearch(array, 1, array.length, peer) >= 0;
+        }
+
+        //con il peer aggiunto (chiamato dentro compute, se il peer non c'è); un Large viene modificato sul posto
+        static Object with(Object holders, int peer) {
+            if (holders instanceof Large large) {
+                large.peers.add(peer);
+                return large;
+            }
+            int[] array = (int[]) holders;
+            if (array.length > LARGE_LIMIT) {
+                Large large = new Large(array[0]);
+                for (int i = 1; i < array.length; i++) large.peers.add(array[i]);
+                large.peers.add(peer);
+                return large;
+            }
+            int i = -Arrays.binarySearch(array, 1, array.length, peer) - 1;
+            int[] updated = new int[array.length + 1];
+            System.arraycopy(array, 0, updated, 0, i);
+            updated[i] = peer;
+            System.arraycopy(array, i, updated, i + 1, array.length - i);
+            return updated;
+        }
+
+        //senza il peer (chiamato dentro compute, se il peer c'è); un Large viene modificato sul posto
+        static Object without(Object holders, int peer) {
+            if (holders instanceof Large large) {
+                large.peers.remove(peer);
+                return large.peers.size() < LARGE_LIMIT / 2 ? peers(large) : large;
+            }
+            int[] array = (int[]) holders;
+            int i = Arrays.binarySearch(array, 1, array.length, peer);
+            int[] updated = new int[array.length - 1];
+            System.arraycopy(array, 0, updated, 0, i);
+            System.arraycopy(array, i + 1, updated, i, array.length - i - 1);
+            return updated;
+        }
+
+        static boolean isEmpty(Object holders) {
+            return holders instanceof Large large ? large.peers.isEmpty() : ((int[]) holders).length == 1;
+        }
+
+        //array con la risorsa in posizione 0 e i peer in ordine crescente, da leggere senza lock
+        //(per un array è lo stesso oggetto, per un Large una copia)
+        static int[] peers(Object holders) {
+            if (!(holders instanceof Large large)) return (int[]) holders;
+            int[] ids = large.peers.toArray();
+            Arrays.sort(ids);
+            int[] array = new int[ids.length + 1];
+            array[0] = large.resourceId;
+            System.arraycopy(ids, 0, array, 1, ids.length);
+            return array;
+        }
+    }
+
+    //Nomi dei possessori attuali della risorsa, nell'ordine degli identificativi (vuota se la risorsa non esiste)
+    //la lettura è senza lock, ma un insieme appena sostituito può contenere un peer tolto nel frattempo, il cui
+    //identificativo può essere già stato riassegnato a un altro peer: il nome letto sarebbe quello sbagliato.
+    //Per questo si confronta il numero di rilasci della tabella dei peer prima e dopo la lettura; se cambia si riprova,
+    //e al secondo tentativo si legge con il lock della risorsa, dove tutti gli identificativi sono validi
+    private List<String> holderNames(String resourceName) {
+        long releases = peerIds.releases();
+        Object holders = resourceTable.get(resourceName);
+        if (holders == null) return List.of();
+        List<String> names = namesOf(holders);
+        if (peerIds.releases() == releases) return names;
+        List<String> locked = new ArrayList<>();
+        resourceTable.computeIfPresent(resourceName, (res, current) -> {
+            locked.addAll(namesOf(current));
+            return current;
+        });
+        return locked;
+    }
+
+    private List<String> namesOf(Object holders) {
+        int[] ids = Holders.peers(holders);
+        List<String> names = new ArrayList<>(ids.length - 1);
+        for (int i = 1; i < ids.length; i++) {
+            String name = peerIds.nameOf(ids[i]);
+            if (name != null) names.add(name);
+        }
+        return names;
     }
 
     //classe interna per memorizzare informazioni di ogni Peer (IP, porta)
     private static class PeerInfo {
-        String ip;
-        int port;
+        final String ip;
+        final int port;
 
         PeerInfo(String ip, int port) {
             this.ip = ip;
@@ -35,163 +214,544 @@ public class ResourceService {
 
     //Metodo di registrazione di un peer
     //aggiunge un peer alla mappa peers, ognuno identificato da nome,IP,porta
-    //essendo synchronized evita condizioni di race se più thread aggiungo peer contemporaneamente
-    public synchronized void registerPeer(String name, String ip, int port) {
-        peers.put(name, new PeerInfo(ip, port));
+    //la put su ConcurrentHashMap è atomica, quindi più thread possono registrare peer contemporaneamente
+    //restituisce la registrazione creata, usata dalla connessione per rimuovere il peer solo se è ancora la sua
+    public Object registerPeer(String name, String ip, int port) {
+        PeerInfo info = new PeerInfo(ip, port);
+        //compute rende atomiche la sostituzione e la scrittura nel journal
+        long joins = replication.joins();
+        peers.compute(name, (n, old) -> {
+            journal(StateStore.record('P', name, ip, String.valueOf(port)));
+            //la registrazione concede il lease; il rinnovo avviene dentro compute, così expirePeer
+            //(che controlla il lease con lo stesso lock) non può rimuovere una registrazione appena fatta
+            LeaseManager l = leases;
+            if (l != null) l.renew(n);
+            return info;
+        });
+        if (replication.joins() != joins) refreshPeer(name);
+        return info;
+    }
+
+    //Attiva i lease: un peer che non rinnova entro leaseSeconds secondi viene rimosso con tutte le sue risorse
+    public void startLeases(long leaseSeconds) {
+        LeaseManager l = new LeaseManager(leaseSeconds * 1000, this::expirePeer);
+        //i peer già registrati ricevono subito un lease
+        peers.keySet().forEach(l::renew);
+        leases = l;
+        l.start();
+    }
+
+    //Durata del lease in secondi, 0 se i lease sono disattivati
+    public long getLeaseSeconds() {
+        LeaseManager l = leases;
+        return l == null ? 0 : l.getLeaseSeconds();
+    }
+
+    //Rinnova il lease del peer (comando heartbeat)
+    //ritorna false se il peer non è registrato: in quel caso deve ripetere hello e riannunciare le risorse
+    public boolean renewLease(String peerName) {
+        return peers.computeIfPresent(peerName, (n, info) -> {
+            LeaseManager l = leases;
+            if (l != null) l.renew(n);
+            return info;
+        }) != null;
+    }
+
+    //Rimuove il peer quando la connessione che lo aveva registrato si chiude
+    //se nel frattempo il peer si è registrato di nuovo (nuova connessione), la nuova registrazione resta valida
+    public void unregisterPeer(String name, Object registration) {
+        if (removePeer(name, registration)) {
+            removePeerResources(name);
+        }
+    }
+
+    //Chiamato dal LeaseManager quando il lease del peer scade
+    private void expirePeer(String name) {
+        if (removePeer(name, null)) {
+            removePeerResources(name);
+        }
+    }
+
+    //Rimuove il peer dalla mappa: solo se è ancora registration oppure, con registration null (lease scaduto),
+    //solo se nel frattempo nessun hello o heartbeat ha concesso un nuovo lease alla registrazione attuale
+    private boolean removePeer(String name, Object registration) {
+        boolean[] removed = new boolean[1];
+        long joins = replication.joins();
+        peers.computeIfPresent(name, (n, info) -> {
+            if (registration != null && info != registration) return info;
+            LeaseManager l = leases;
+            if (registration == null && l != null && l.isLeased(n)) return info;
+            //il lease della registrazione rimossa viene revocato con lo stesso lock: un hello successivo ne riceve uno nuovo
+            if (l != null) l.revoke(n);
+            removed[0] = true;
+            journal(StateStore.record('U', name));
+            return null;
+        });
+        if (removed[0] && replication.joins() != joins) refreshPeer(name);
+        return removed[0];
+    }
+
+    //Rimuove tutte le associazioni di un peer che ha lasciato la rete
+    //grazie all'indice inverso visita solo le risorse del peer, non tutta la tabella
+    private void removePeerResources(String name) {
+        load.remove(name);
+        IntSet owned = peerResources.get(name);
+        if (owned != null) {
+            for (int resourceId : owned.toArray()) {
+                //l'identificativo può essere stato riassegnato a un'altra risorsa: dissociate lo controlla
+                String resourceName = resourceIds.nameOf(resourceId);
+                if (resourceName != null) dissociate(resourceName, name, resourceId, true);
+            }
+        }
+        //un peer che non possedeva nulla non passa da unlinkPeer
+        releasePeerId(name);
+    }
+
+    //Aggiorna l'indice inverso quando il peer diventa possessore della risorsa (chiamato dentro compute)
+    //l'identificativo del peer viene letto o assegnato con il lock della sua voce, lo stesso usato per rilasciarlo,
+    //quindi non può essere rilasciato mentre viene aggiunto ai possessori.
+    //Ritorna l'identificativo del peer, -1 se il peer non è registrato (non può ricevere risorse)
+    private int linkPeer(int resourceId, String peerName) {
+        int[] peerId = {-1};
+        peerResources.compute(peerName, (p, owned) -> {
+            if (!peers.containsKey(p)) return owned;
+            peerId[0] = peerIds.intern(p);
+            if (owned == null) owned = new IntSet();
+            owned.add(resourceId);
+            return owned;
+        });
+        return peerId[0];
+    }
+
+    //Aggiorna l'indice inverso quando il peer non possiede più la risorsa (chiamato dentro compute)
+    //se il peer non è più registrato e questa era la sua ultima risorsa, il suo identificativo viene rilasciato
+    private void unlinkPeer(int resourceId, String peerName) {
+        peerResources.computeIfPresent(peerName, (p, owned) -> {
+            owned.remove(resourceId);
+            if (!owned.isEmpty()) return owned;
+            if (!peers.containsKey(p)) peerIds.release(peerIds.idOf(p));
+            return null;
+        });
+    }
+
+    //Rilascia l'identificativo di un peer non più registrato che non possiede risorse
+    //il controllo avviene con il lock della voce del peer nell'indice inverso, come in linkPeer
+    private void releasePeerId(String peerName) {
+        peerResources.compute(peerName, (p, owned) -> {
+            if (owned == null && !peers.containsKey(p)) {
+                int id = peerIds.idOf(p);
+                if (id >= 0) peerIds.release(id);
+            }
+            return owned;
+        });
+    }
+
+    //Metodo che elenca in ordine alfabetico le risorse possedute da un peer (comando listpeer)
+    //legge solo l'indice inverso del peer
+    //come per i possessori (holderNames), un identificativo di risorsa riassegnato durante la lettura fa ripetere
+    //la lettura con il lock della voce del peer
+    public List<String> getPeerResources(String peerName) {
+        long releases = resourceIds.releases();
+        IntSet owned = peerResources.get(peerName);
+        if (owned == null) return new ArrayList<>();
+        List<String> list = resourceNamesOf(owned);
+        if (resourceIds.releases() != releases) {
+            list = new ArrayList<>();
+            List<String> locked = list;
+            peerResources.computeIfPresent(peerName, (p, current) -> {
+                locked.addAll(resourceNamesOf(current));
+                return current;
+            });
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    private List<String> resourceNamesOf(IntSet owned) {
+        List<String> list = new ArrayList<>(owned.size());
+        for (int resourceId : owned.toArray()) {
+            String resourceName = resourceIds.nameOf(resourceId);
+            if (resourceName != null) list.add(resourceName);
+        }
+        return list;
     }
 
     //Metodo per la gestione dei download
     //decide da quale peer scaricare la risorsa e invia le informazioni del peer sorgente al peer richiedente
     //prende in input il nome della risorsa, il peer richiedente e out come stream di output
-    //essendo synchronized evita che più thread inviino richieste di download contemporaneamente
-    public synchronized void handleDownload(String resourceName, String requestingPeer, PrintWriter out) {
-        //cerca nella resourceTable chi possiede la risorsa richiesta e crea una lista dei peer possessori
-        List<String> resourcePeers = resourceTable.get(resourceName);
-        //Rimuove i peer non più registrati (disconnessi) dalla lista di chi ha la risorsa
-        if (resourcePeers != null) {
-            resourcePeers.removeIf(p -> !peers.containsKey(p));
-            // Se la lista diventa vuota, elimina anche la risorsa dalla tabella
-            if (resourcePeers.isEmpty()) {
-                resourceTable.remove(resourceName);
-            }
+    //la scelta avviene senza lock: la risposta viene prima calcolata e poi scritta sul socket
+    public void handleDownload(String resourceName, String requestingPeer, PrintWriter out) {
+        Lookup result = chooseSource(resourceName, requestingPeer);
+        //la risposta viene scritta solo dopo aver letto le mappe, con il messaggio di fine
+        out.println(result.error != null ? result.error : result.sources.get(0).toString());
+        out.println("END");
+    }
+
+    //Sorgente indicata al peer richiedente
+    public static final class Source {
+        public final String name;
+        public final String ip;
+        public final int port;
+
+        Source(String name, PeerInfo info) {
+            this.name = name;
+            this.ip = info.ip;
+            this.port = info.port;
+        }
+
+        //riga della risposta testuale
+        @Override
+        public String toString() {
+            return "PEER " + name + " " + ip + " " + port;
+        }
+    }
+
+    //Esito di download e sources: le sorgenti trovate oppure il messaggio di errore
+    public static final class Lookup {
+        public final String error; //null se ci sono sorgenti
+        public final List<Source> sources;
+
+        Lookup(String error, List<Source> sources) {
+            this.error = error;
+            this.sources = sources;
         }
 
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        static Lookup error(String message) {
+            return new Lookup(message, List.of());
+        }
+    }
 
+    //Sceglie il peer sorgente per un download (usato dal comando testuale e da quello binario)
+    public Lookup chooseSource(String resourceName, String requestingPeer) {
+        //Rimuove i peer non più registrati (disconnessi) dalla lista di chi ha la risorsa
+        List<String> resourcePeers = pruneDeparted(resourceName);
+
+        Lookup response;
         //se la risorsa non esiste o nessuno la possiede
-        if (resourcePeers == null || resourcePeers.isEmpty()) {
-            //invia al peer richiedente avviso
-            out.println("ERRORE: Risorsa non trovata");
+        if (resourcePeers.isEmpty()) {
+            response = Lookup.error("ERRORE: Risorsa non trovata");
             //registra nel log del master il messaggio relativo al tentativo di download
-            downloadLog.add("[" + timestamp + "] " + resourceName + " da: N/A a: " + requestingPeer + " [FALLITO - non disponibile]");
-            //invia al peer il messaggio di fine
-            out.println("END");
-            return;
+            logDownload(resourceName, "N/A", requestingPeer, "FALLITO - non disponibile");
         }
-        //Se la lista resourcePeer contiene il nome del peer richiedente significa che il peer possiede già la risorsa
-        if (resourcePeers.contains(requestingPeer)) {
-            //invia al peer messaggio di errore
-            out.println("ERRORE: Il peer possiede già la risorsa");
-            //registra nel log il tentativo di download
-            downloadLog.add("[" + timestamp + "] " + resourceName + " da: " + requestingPeer + " a: " + requestingPeer + " [FALLITO - già posseduta]");
-            //invia al peer il messaggio di fine
-            out.println("END");
-            return;
-        }
-
-        // apre uno stream sulla lista dei peer possessori e fa un ulteriore controllo
-        String sourcePeer = resourcePeers.stream()
-                //filtra la lista, eliminando il peer richiedente e quelli non ancora registrati nella lista dei peer attivi
-                .filter(p -> !p.equals(requestingPeer) && peers.containsKey(p))
-                //prende il primo elemento
-                .findFirst()
-                //se non trova nessun, assegna null al peer sorgente
-                .orElse(null);
-
-        //se il peer sorgente è null, nessun altro ha la risorsa
-        if (sourcePeer == null) {
-            //invia al peer richiedente messaggio di errore
-            out.println("ERRORE: Nessun altro peer disponibile");
-            //registra nel log il tentativo di download
-            downloadLog.add("[" + timestamp + "] " + resourceName + " da: N/A a: " + requestingPeer + " [FALLITO - nessun sorgente]");
-            //messaggio di fine
-            out.println("END");
-            return;
-        }
-        //se è stato trovato un peer sorgente, recupera le sue informazioni
-        PeerInfo info = peers.get(sourcePeer);
-        if (info == null) { //se il peer sorgente non ha informazioni a lui associate in PeerInfo
-            //messaggio di errore al peer richiedente
-            out.println("ERRORE: Il peer sorgente non è registrato correttamente");
-            //messaggio di fine
-            out.println("END");
-            return;
-        }
-
-        //altrimenti, invia le info del peer sorgente al richiedente
-        out.println("PEER " + sourcePeer + " " + info.ip + " " + info.port);
-        //messaggio di fine
+        //Se l'insieme resourcePeers contiene il nome del peer richiedente significa che il peer possiede già la risorsa
+        else if (resourcePeers.contains(requestingPeer)) {
+            response = Lookup.error("ERRORE: Il peer possiede già la risorsa");
+            logDownload(resourceName, requestingPeer, requestingPeer, "FALLITO - già posseduta");
+        } else {
+            // apre uno stream sui peer possessori e fa un ulteriore controllo
+            List<String> candidates = resourcePeers.stream()
+                    //filtra, eliminando il peer richiedente e quelli non ancora registrati nella lista dei peer attivi
+                    .filter(p -> !p.equals(requestingPeer) && peers.containsKey(p))
+                    .collect(Collectors.toList());
+            //la strategia configurata sceglie tra i candidati; se non ce ne sono, il peer sorgente è null
+            String sourcePeer = candidates.isEmpty() ? null : selector.select(candidates, load);
+            //se è stato trovato un peer sorgente, recupera le sue informazioni
+            PeerInfo info = sourcePeer == null ? null : peers.get(sourcePeer);
+
+            if (sourcePeer == null) { //se il peer sorgente è null, nessun altro ha la risorsa
+                response = Lookup.error("ERRORE: Nessun altro peer disponibile");
+                logDownload(resourceName, "N/A", requestingPeer, "FALLITO - nessun sorgente");
+            } else if (info == null) { //il peer sorgente si è disconnesso nel frattempo
+                response = Lookup.error("ERRORE: Il peer sorgente non è registrato correttamente");
+            } else { //altrimenti, invia le info del peer sorgente al richiedente
+                response = new Lookup(null, List.of(new Source(sourcePeer, info)));
+                //il trasferimento resta in corso fino a DOWNLOAD_RESULT o updatefail del richiedente
+                load.started(requestingPeer, resourceName, sourcePeer);
+            }
+        }
+        return response;
+    }
+
+    //Rimuove dai possessori della risorsa i peer che non sono più registrati
+    //restituisce i nomi dei possessori rimasti (vuota se la risorsa non ha più possessori)
+    private List<String> pruneDeparted(String resourceName) {
+        List<String> resourcePeers = holderNames(resourceName);
+        if (replica != null) return resourcePeers; //una replica non modifica lo stato: lo farà il primario
+        boolean pruned = false;
+        for (String p : resourcePeers) {
+            //togliendo l'ultima risorsa del peer, unlinkPeer ne rilascia anche l'identificativo
+            if (!peers.containsKey(p)) pruned |= unregisterResource(resourceName, p);
+        }
+        return pruned ? holderNames(resourceName) : resourcePeers;
+    }
+
+    //Metodo per il download da più sorgenti
+    //invia al peer richiedente tutti i peer attivi che possiedono la risorsa (una riga "PEER" per ciascuno)
+    //così il peer può scaricare parti diverse del file da più sorgenti in parallelo
+    public void handleSources(String resourceName, String requestingPeer, PrintWriter out) {
+        handleSources(resourceName, requestingPeer, out, true);
+    }
+
+    //come sopra; con logFailures false (richieste "lookup" del prefetch) le risorse non trovate non finiscono
+    //nel registro dei download, perché non sono tentativi di download
+    public void handleSources(String resourceName, String requestingPeer, PrintWriter out, boolean logFailures) {
+        Lookup result = findSources(resourceName, requestingPeer, logFailures);
+        if (result.error != null) out.println(result.error);
+        result.sources.forEach(out::println);
         out.println("END");
+    }
 
+    //Tutti i possessori registrati della risorsa, escluso il richiedente (usato dal comando testuale e da quello binario)
+    public Lookup findSources(String resourceName, String requestingPeer, boolean logFailures) {
+        List<String> resourcePeers = pruneDeparted(resourceName);
+
+        //se la risorsa non esiste o nessuno la possiede
+        if (resourcePeers.isEmpty()) {
+            if (logFailures) logDownload(resourceName, "N/A", requestingPeer, "FALLITO - non disponibile");
+            return Lookup.error("ERRORE: Risorsa non trovata");
+        }
+        //il peer richiedente possiede già la risorsa
+        if (resourcePeers.contains(requestingPeer)) {
+            if (logFailures) logDownload(resourceName, requestingPeer, requestingPeer, "FALLITO - già posseduta");
+            return Lookup.error("ERRORE: Il peer possiede già la risorsa");
+        }
+        //aggiunge tutti i possessori registrati, escluso il richiedente
+        List<Source> sources = new ArrayList<>();
+        for (String p : resourcePeers) {
+            PeerInfo info = peers.get(p);
+            if (p.equals(requestingPeer) || info == null) continue;
+            sources.add(new Source(p, info));
+        }
+        if (sources.isEmpty()) {
+            if (logFailures) logDownload(resourceName, "N/A", requestingPeer, "FALLITO - nessun sorgente");
+            return Lookup.error("ERRORE: Nessun altro peer disponibile");
+        }
+        return new Lookup(null, sources);
     }
 
     //Metodo per l'aggiunta di una risorsa
     //prende in input il nome della risorsa che il peer vuole registrare, il nome del peer che fa la richiesta, lo strem per inviare messaggi al peer
-    //essendo synchronized garantisce che un solo thread alla volta possa eseguire il metodo
-    public synchronized void addResource(String resourceName, String peerName, PrintWriter out) {
-        // Controlla se la risorsa è già presente nella tabella
-        //Se non esiste, crea una lista vuota per i peer futuri
-        resourceTable.putIfAbsent(resourceName, new ArrayList<>());
-
-        //Prende la lista dei peer associati alla risorsa (anche se appena creata)
-        List<String> peers = resourceTable.get(resourceName);
-
-        //Controlla se il peer richiedente è presente nella lista dei peer associati alla risorsa
-        if (peers.contains(peerName)) { //Se lo è, invia al peer un messaggio e non aggiunge il nome del peer alla lista
+    //le aggiunte su risorse diverse procedono in parallelo
+    public void addResource(String resourceName, String peerName, PrintWriter out) {
+        //solo un peer registrato può possedere risorse
+        if (!isRegistered(peerName)) {
+            out.println("ERRORE: Peer non registrato");
+        }
+        //Controlla se il peer richiedente era già presente tra i peer associati alla risorsa
+        else if (!addResource(resourceName, peerName)) { //Se lo era, invia al peer un messaggio
             out.println("Risorsa '" + resourceName + "' è già associata al peer '" + peerName + "'.");
-        } else {
-            peers.add(peerName); //Se non lo è, aggiunge il peer alla lista dei peer associati alla risorsa e manda un messaggio al peer
+        } else { //Se non lo era, è stato aggiunto: manda un messaggio al peer
             out.println("Risorsa '" + resourceName + "' ora associata al peer '" + peerName + "'.");
-
         }
         //segnala la fine dell'operazione
         out.println("END");
     }
 
+    //Associa la risorsa al peer, ritorna false se era già associata o se il peer non è registrato
+    //(usato anche dal comando binario)
+    public boolean addResource(String resourceName, String peerName) {
+        return associate(resourceName, peerName, true);
+    }
+
+    //true se il peer è registrato
+    public boolean isRegistered(String peerName) {
+        return peers.containsKey(peerName);
+    }
+
+    //Metodo per la registrazione di più risorse dello stesso peer (comando ADD_BATCH)
+    //inserisce tutte le risorse in un solo passaggio e restituisce quante erano nuove per il peer
+    public int addResources(List<String> resourceNames, String peerName) {
+        int added = 0;
+        for (String resourceName : resourceNames) {
+            if (!isValidName(resourceName)) continue; //le righe del batch possono contenere spazi: il nome viene scartato
+            if (associate(resourceName, peerName, true)) added++;
+        }
+        return added;
+    }
+
+    //Un nome di peer o di risorsa è valido se non è vuoto e non contiene spazi o caratteri di controllo
+    //(i comandi testuali e il journal separano i campi con gli spazi)
+    public static boolean isValidName(String name) {
+        if (name.isEmpty()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c) || Character.isSpaceChar(c)) return false;
+        }
+        return true;
+    }
+
+    //Aggiunge il peer ai possessori della risorsa, ritorna false se era già associato o se il peer non è registrato
+    //compute blocca solo la voce di questa risorsa; con journaled la modifica va nel journal e alle repliche
+    private boolean associate(String resourceName, String peerName, boolean journaled) {
+        boolean[] added = new boolean[1];
+        //Se la risorsa non esiste, le assegna un identificativo e crea l'insieme dei possessori con il peer richiedente
+        long joins = replication.joins();
+        resourceTable.compute(resourceName, (res, holders) -> {
+            int resourceId = holders == null ? resourceIds.intern(res) : Holders.resourceId(holders);
+            //l'indice inverso viene aggiornato prima dei possessori: così si ottiene l'identificativo del peer
+            int peerId = linkPeer(resourceId, peerName);
+            if (peerId < 0) { //peer non registrato: una risorsa appena creata viene scartata
+                if (holders == null) resourceIds.release(resourceId);
+                return holders;
+            }
+            if (holders == null) {
+                holders = Holders.create(resourceId);
+                resourceNames.add(res);
+            }
+            added[0] = !Holders.contains(holders, peerId);
+            if (!added[0]) return holders;
+            if (journaled) journal(StateStore.record('A', resourceName, peerName));
+            return Holders.with(holders, peerId);
+        });
+        if (added[0] && journaled && replication.joins() != joins) refreshAssociation(resourceName, peerName);
+        return added[0];
+    }
+
     //Metodo booleano per verificare se un peer possiede una risorsa
     //prende in input il nome della risorsa e il peer che vogliamo verificare
     public boolean isAssociated(String resourceName, String peerName) {
-        //Prende dalla mappa la lista dei peer che possiedono la risorsa
+        long releases = peerIds.releases();
+        //un nome di peer mai visto non ha identificativo: non può possedere nulla
+        int peerId = peerIds.idOf(peerName);
+        if (peerId < 0) return false;
+        //Prende dalla mappa l'insieme dei peer che possiedono la risorsa (lettura senza lock)
         //Se la risorsa non esiste nella tabella, ritorna null
-        List<String> peers = resourceTable.get(resourceName);
+        Object holders = resourceTable.get(resourceName);
 
-        //Se la risorsa esiste nella tabella e il peer è nella lista dei peer che possiedono la risorsa ritorna true, altrimenti false
-        return peers != null && peers.contains(peerName);
+        //Se la risorsa esiste nella tabella e il peer è tra i possessori ritorna true, altrimenti false
+        boolean found = holders != null && Holders.contains(holders, peerId);
+        if (peerIds.releases() == releases) return found;
+        //un identificativo è stato rilasciato durante la lettura (vedi holderNames): si ricontrolla con il lock della risorsa
+        boolean[] held = new boolean[1];
+        resourceTable.computeIfPresent(resourceName, (res, current) -> {
+            held[0] = Holders.contains(current, peerIds.idOf(peerName));
+            return current;
+        });
+        return held[0];
     }
 
-    //Metodo per restituire una copia di resourceTable, in modo che il chiamante non la modifichi accidentalmente
-    //ritorna una mappa in cui per ogni risorsa si ha la lista dei peer che la possiedono
-    //synchronized
-    public synchronized Map<String, List<String>> getAllResources() {
-        //crea una nuova mappa vuota
-        Map<String, List<String>> copy = new HashMap<>();
-        //cicla tutte le risorse nella mappa e per ognuna
-        for (String res : resourceTable.keySet()) {
-            //crea un nuovo arraylist dove copia la lista dei peer e inserisce tutto nella nuova mappa
-            copy.put(res, new ArrayList<>(resourceTable.get(res)));
+    //Una pagina di listdata: righe "risorsa: peer1, peer2" e il token per chiedere la pagina successiva
+    public static class Page {
+        public final List<String> lines;
+        public final String next; //null se non ci sono altre risorse
+
+        Page(List<String> lines, String next) {
+            this.lines = lines;
+            this.next = next;
+        }
+    }
+
+    //Metodo per elencare le risorse a pagine, in ordine alfabetico
+    //prende il prefisso dei nomi (vuoto per tutte), il numero massimo di righe e il token ricevuto con la pagina
+    //precedente (null per la prima). Le risorse vengono lette una alla volta dall'indice dei nomi, senza copiare la tabella
+    //e senza lock: una risorsa aggiunta o rimossa durante la lettura può comparire o no, ma nessuna viene ripetuta
+    public Page listResources(String prefix, int limit, String afterToken) {
+        String after = afterToken == null ? null : decodeToken(afterToken);
+        //si parte dopo l'ultima risorsa della pagina precedente, oppure dalla prima con il prefisso
+        NavigableSet<String> view = after != null && after.compareTo(prefix) >= 0
+                ? resourceNames.tailSet(after, false) : resourceNames.tailSet(prefix, true);
+        List<String> lines = new ArrayList<>(Math.min(limit, 256));
+        String last = null;
+        for (String res : view) {
+            if (!res.startsWith(prefix)) break; //le risorse con il prefisso sono consecutive
+            if (lines.size() == limit) return new Page(lines, encodeToken(last));
+            String line = formatResource(res);
+            if (line == null) continue;
+            lines.add(line);
+            last = res;
         }
-        //restituisce la copia completa
-        return copy;
+        return new Page(lines, null);
+    }
+
+    //Scorre tutte le risorse con il prefisso indicato in ordine alfabetico, senza copiarle
+    //usato dal comando listdata senza limite e dalla console del master
+    public void forEachResource(String prefix, BiConsumer<String, List<String>> action) {
+        for (String res : resourceNames.tailSet(prefix, true)) {
+            if (!res.startsWith(prefix)) break;
+            List<String> holders = holderNames(res);
+            if (!holders.isEmpty()) action.accept(res, holders);
+        }
+    }
+
+    //Riga di listdata per una risorsa, null se nel frattempo non ha più possessori
+    private String formatResource(String res) {
+        List<String> holders = holderNames(res);
+        if (holders.isEmpty()) return null;
+        return res + ": " + String.join(", ", holders);
+    }
+
+    //il token è il nome dell'ultima risorsa inviata, codificato in modo da non contenere spazi
+    private static String encodeToken(String name) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeToken(String token) {
+        return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
     }
 
     //Metodo per rimuovere l'associazione tra una risorsa e un peer specifico
     //prende in input il nome della risorsa e il nome del peer
-    //synchronized
-    public synchronized void unregisterResource(String resourceName, String peerName) {
-        //crea una lista con i peer associati alla risorsa
-        List<String> list = resourceTable.get(resourceName);
-        //se esiste, rimuove il peer dalla lista
-        if (list != null) {
-            list.remove(peerName);
-            //se la lista diventa vuota, elimina completamente la risorsa dalla mappa
-            if (list.isEmpty()) {
-                resourceTable.remove(resourceName);
-            }
+    //computeIfPresent rende atomiche la rimozione e l'eventuale eliminazione della risorsa
+    //ritorna true se il peer era associato alla risorsa
+    public boolean unregisterResource(String resourceName, String peerName) {
+        return dissociate(resourceName, peerName, true);
+    }
+
+    //Toglie il peer dai possessori della risorsa; con journaled la modifica va nel journal e alle repliche
+    private boolean dissociate(String resourceName, String peerName, boolean journaled) {
+        return dissociate(resourceName, peerName, -1, journaled);
+    }
+
+    //come sopra; con expectedId >= 0 la risorsa viene modificata solo se ha ancora quell'identificativo
+    //(removePeerResources risale al nome dall'identificativo, che nel frattempo può essere stato riassegnato)
+    private boolean dissociate(String resourceName, String peerName, int expectedId, boolean journaled) {
+        if (peerIds.idOf(peerName) < 0) return false; //peer senza identificativo: non possiede nulla
+        boolean[] removed = new boolean[1];
+        //se la risorsa esiste, rimuove il peer dai suoi possessori
+        long joins = replication.joins();
+        resourceTable.computeIfPresent(resourceName, (res, holders) -> {
+            if (expectedId >= 0 && Holders.resourceId(holders) != expectedId) return holders;
+            //letto con il lock della risorsa: se il peer la possiede, il suo identificativo non può essere rilasciato
+            int peerId = peerIds.idOf(peerName);
+            removed[0] = Holders.contains(holders, peerId);
+            if (!removed[0]) return holders;
+            int resourceId = Holders.resourceId(holders);
+            Object updated = Holders.without(holders, peerId);
+            unlinkPeer(resourceId, peerName);
+            if (journaled) journal(StateStore.record('D', resourceName, peerName));
+            //se l'insieme diventa vuoto, elimina completamente la risorsa dalla mappa e ne rilascia l'identificativo
+            if (!Holders.isEmpty(updated)) return updated;
+            resourceNames.remove(res);
+            resourceIds.release(resourceId);
+            return null;
+        });
+        if (removed[0] && journaled && replication.joins() != joins) refreshAssociation(resourceName, peerName);
+        return removed[0];
+    }
+
+    //Metodo per rimuovere più associazioni dello stesso peer (comando REMOVE_BATCH)
+    //restituisce quante risorse erano effettivamente associate al peer
+    public int removeResources(List<String> resourceNames, String peerName) {
+        int removed = 0;
+        for (String resourceName : resourceNames) {
+            if (unregisterResource(resourceName, peerName)) removed++;
         }
+        return removed;
+    }
+
+    //Gestisce updatefail: il peer sorgente non ha fornito la risorsa
+    //chiude il trasferimento che il master gli aveva assegnato per il richiedente (null se la connessione
+    //non ha inviato hello) e rimuove l'associazione
+    public void reportFailedSource(String resourceName, String peerName, String requestingPeer) {
+        if (requestingPeer != null) load.failed(requestingPeer, resourceName, peerName);
+        unregisterResource(resourceName, peerName);
+    }
+
+    //Restituisce il carico di upload di ogni peer sorgente (trasferimenti in corso e download serviti)
+    public Map<String, String> getLoad() {
+        return load.snapshot();
     }
 
-    //Metodo che restituisce una copia del log dei download
-    //crea un nuovo arraylist usando il contenuto di downloadLog
-    //synchronized
-    public synchronized List<String> getDownloadLog() {
-        return new ArrayList<>(downloadLog);
+    //Metodo che restituisce i download recenti, già formattati
+    //l'orario viene formattato solo ora, al momento della lettura
+    public List<String> getDownloadLog() {
+        return downloadLog.recent();
     }
 
     // Aggiorna il log del download con l'esito finale di un'operazione di download
     //prende in input il nome della risorsa, il nome del peer sorgente, il nome del peer richiedente e lo stato del download
-    //synchronized perchè più thread ClientHandler possono tentare di aggiornare il log contemporaneamente
-    public synchronized void updateDownloadResult(String resourceName, String sourcePeer, String targetPeer, String stato) {
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    //il registro non usa lock, quindi più thread ClientHandler possono aggiornarlo contemporaneamente
+    public void updateDownloadResult(String resourceName, String sourcePeer, String targetPeer, String stato) {
        //se il parametro stato è successo salva "OK", altrimenti "FALLITO"
         String newStatus = stato.equalsIgnoreCase("success") ? "OK" : "FALLITO";
 
@@ -199,10 +759,228 @@ public class ResourceService {
         String logSource = (sourcePeer == null || sourcePeer.isEmpty()) ? "N/A" : sourcePeer;
         //se lo stato è "fallito", allora aggiunge una nota "non disponibile"
         String extra = newStatus.equals("FALLITO") ? " - non disponibile" : "";
+        //chiude il trasferimento assegnato dal master al richiedente; con il download da più sorgenti
+        //i peer sono separati da virgole e ognuno conta come download servito
+        List<String> sources = logSource.equals("N/A") ? List.of() : Arrays.asList(sourcePeer.split(","));
+        load.finished(targetPeer, resourceName, sources, newStatus.equals("OK"));
 
         // aggiunge direttamente la riga finale nel log
-        downloadLog.add("[" + timestamp + "] " + resourceName + " da: " + logSource + " a: " + targetPeer + " [" + newStatus + extra + "]");
+        logDownload(resourceName, logSource, targetPeer, newStatus + extra);
     }
 
-}
+    //Aggiunge un evento al registro dei download con l'orario corrente
+    private void logDownload(String resourceName, String sourcePeer, String targetPeer, String esito) {
+        downloadLog.add(resourceName, sourcePeer, targetPeer, esito);
+    }
+
+    //Attiva il salvataggio su disco dello stato nella cartella indicata
+    //prima riapplica lo stato salvato (snapshot e journal), così dopo un riavvio il master conosce già peer e risorse
+    //e può rispondere subito: i peer ripristinati ricevono un lease e restano se tornano a inviare heartbeat
+    public long enablePersistence(Path dir) throws IOException {
+        StateStore s = new StateStore(dir, this::writeSnapshot);
+        long replayed = s.restore(replayer);
+        //le associazioni di peer non più registrati vengono scartate
+        for (String res : resourceTable.keySet()) {
+            holderNames(res).forEach(p -> {
+                if (!peers.containsKey(p)) unregisterResource(res, p);
+            });
+        }
+        store = s;
+        return replayed;
+    }
+
+    //Attiva il salvataggio su disco partendo dallo stato già in memoria (replica appena promossa a primario):
+    //lo stato salvato nella cartella non viene riapplicato ma sostituito da uno snapshot dello stato attuale
+    public void startPersistence(Path dir) throws IOException {
+        StateStore s = new StateStore(dir, this::writeSnapshot);
+        //store viene impostato prima dello snapshot: le modifiche fatte mentre viene scritto finiscono nel journal
+        store = s;
+        try {
+            s.start();
+        } catch (IOException e) {
+            store = null;
+            s.close();
+            throw e;
+        }
+    }
+
+    //Applica le modifiche salvate o ricevute dal primario direttamente alle mappe, senza journal
+    private class Replayer implements StateStore.Apply {
+        @Override
+        public void peer(String name, String ip, int port) {
+            peers.put(name, new PeerInfo(ip, port));
+        }
+
+        @Override
+        public void peerGone(String name) {
+            peers.remove(name);
+            releasePeerId(name);
+        }
+
+        @Override
+        public void add(String resource, String peer) {
+            associate(resource, peer, false);
+        }
+
+        @Override
+        public void remove(String resource, String peer) {
+            dissociate(resource, peer, false);
+        }
+    }
+
+    //Trasforma questo master in una replica in sola lettura del primario indicato
+    //le modifiche arrivano solo dal primario; i comandi di scrittura dei peer vengono rifiutati
+    public void startReplica(String host, int port) {
+        ReplicaClient client = new ReplicaClient(host, port, this);
+        replica = client;
+        Thread t = new Thread(client, "replica-client");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    //true se questo master è una replica in sola lettura
+    public boolean isReplica() {
+        return replica != null;
+    }
+
+    //true se questo master è una replica che non ha ancora ricevuto uno snapshot completo del primario
+    //(avvio, o connessione persa): il suo stato è vuoto o parziale e non deve rispondere alle letture
+    public boolean isStaleReplica() {
+        ReplicaClient r = replica;
+        return r != null && !r.isSynced();
+    }
+
+    //Promuove la replica a primario: smette di seguire il vecchio primario e accetta di nuovo le scritture
+    //ritorna false se questo master era già un primario
+    public boolean promote() {
+        ReplicaClient client = replica;
+        if (client == null) return false;
+        client.stop();
+        replica = null;
+        return true;
+    }
+
+    //Applica una modifica ricevuta dal primario (stesso formato del journal)
+    void applyReplicated(String record) {
+        StateStore.applyRecord(record, replayer);
+    }
+
+    //Svuota lo stato prima di applicare un nuovo snapshot del primario
+    //durante la sincronizzazione le letture possono vedere uno stato parziale
+    void clearReplicatedState() {
+        peers.clear();
+        resourceTable.clear();
+        resourceNames.clear();
+        peerResources.clear();
+        //non resta nessun identificativo in uso: le tabelle dei nomi ripartono da zero
+        resourceIds.clear();
+        peerIds.clear();
+    }
 
+    //Serve una replica sulla connessione (comando REPLICATE): snapshot e poi tutte le modifiche successive
+    public void serveReplica(PrintWriter out, String address) throws IOException {
+        replication.serve(out, address, this::writeSnapshot);
+    }
+
+    //Numero di peer registrati e di risorse conosciute (mostrato all'avvio dopo il ripristino)
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    public int getResourceCount() {
+        return resourceTable.size();
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    //Scrive le statistiche del master (comando STATS e console): dimensione delle tabelle, code su disco e metriche
+    public void writeStats(PrintWriter out) {
+        out.println("peer registrati: " + peers.size() + ", risorse: " + resourceTable.size()
+                + ", peer con risorse: " + peerResources.size());
+        out.println("nomi: " + peerIds.size() + " peer, " + resourceIds.size() + " risorse (identificativi assegnati: "
+                + resourceIds.assigned() + ")");
+        StateStore s = store;
+        out.println("journal in coda: " + (s == null ? "disattivato" : s.pending())
+                + ", eventi del registro persi: " + downloadLog.getDropped());
+        ReplicaClient r = replica;
+        if (r != null) out.println(r.status());
+        else replication.writeStats(out);
+        metrics.writeTo(out);
+    }
+
+    //Scrive lo stato attuale per lo snapshot: prima i peer, poi le associazioni risorsa-peer
+    private void writeSnapshot(StateStore.Apply sink) {
+        peers.forEach((name, info) -> sink.peer(name, info.ip, info.port));
+        for (String res : resourceTable.keySet()) holderNames(res).forEach(p -> sink.add(res, p));
+    }
+
+    //Ripubblica alle repliche lo stato attuale del peer (registrato o no), con il lock della sua voce:
+    //usato quando una replica si è collegata durante la modifica, che potrebbe mancare sia dallo snapshot sia dalla coda.
+    //Le modifiche successive della stessa voce prendono lo stesso lock, quindi arrivano dopo questa riga
+    private void refreshPeer(String name) {
+        peers.compute(name, (n, info) -> {
+            replication.publish(info == null ? StateStore.record('U', n)
+                    : StateStore.record('P', n, info.ip, String.valueOf(info.port)));
+            return info;
+        });
+    }
+
+    //Come refreshPeer per l'associazione tra la risorsa e il peer
+    private void refreshAssociation(String resourceName, String peerName) {
+        resourceTable.compute(resourceName, (res, holders) -> {
+            boolean held = holders != null && Holders.contains(holders, peerIds.idOf(peerName));
+            replication.publish(StateStore.record(held ? 'A' : 'D', res, peerName));
+            return holders;
+        });
+    }
+
+    //Accoda una modifica al journal, se il salvataggio su disco è attivo, e la invia alle repliche
+    //la riga viene ricordata per il thread che ha fatto la modifica (vedi awaitDurable)
+    private void journal(String record) {
+        StateStore s = store;
+        StateStore.Entry entry = s == null ? null : s.append(record);
+        if (entry != null) {
+            StateStore.Entry[] pending = lastJournaled.get();
+            if (pending[0] == null) pending[0] = entry;
+            pending[1] = entry;
+        }
+        replication.publish(record);
+    }
+
+    //Attende che le modifiche fatte da questo thread siano scritte su disco (se il salvataggio è attivo)
+    //chiamato dal ClientHandler prima di inviare la risposta: una modifica confermata al peer è già nel journal.
+    //Le richieste che arrivano insieme vengono scritte con una sola force (group commit dello StateStore)
+    //ritorna false se la scrittura non è riuscita
+    public boolean awaitDurable() {
+        StateStore.Entry[] pending = lastJournaled.get();
+        StateStore.Entry first = pending[0];
+        StateStore.Entry last = pending[1];
+        if (first == null) return true;
+        pending[0] = pending[1] = null;
+        StateStore s = store;
+        if (s == null) return true; //salvataggio chiuso (terminazione): l'ultimo snapshot contiene la modifica
+        try {
+            return s.awaitWritten(first, last);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    //Chiude il servizio alla terminazione del master: scrive l'ultimo snapshot e gli ultimi eventi del registro
+    //va chiamato prima di chiudere le connessioni, così la disconnessione dei peer non viene salvata né inviata alle repliche
+    public void shutdown() {
+        StateStore s = store;
+        store = null;
+        if (s != null) s.close();
+        LeaseManager l = leases;
+        if (l != null) l.stop();
+        ReplicaClient r = replica;
+        if (r != null) r.stop();
+        replication.stop();
+        downloadLog.close();
+    }
+
+}
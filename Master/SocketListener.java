@@ -2,27 +2,45 @@ package Master;
 
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 //Accetta le connessioni dai peer tramite ServerSocket
 //Crea un thread dedicato per ogni peer per gestire le richieste in modo concorrente
 //Smista i comandi del peer a ResourceService, che mantiene lo stato delle risorse e dei peer associati
+//Il tipo di thread dipende dal motore scelto all'avvio: con i virtual thread il master può tenere aperte
+//decine di migliaia di connessioni inattive senza altrettanti thread del sistema operativo
 
 public class SocketListener implements Runnable {
     //socket del master che ascolta le connessioni in entrata
     private final ServerSocket serverSocket;
     //riferimento alla classe ResourceService
     private final ResourceService resourceService;
-    //lista dei socket attivi, usata per chiuderli tutti in caso di quit
-    private final List<Socket> clients = new ArrayList<>();
+    //insieme dei socket attivi, usato per chiuderli tutti in caso di quit
+    //ogni socket viene rimosso quando la sua connessione termina
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    //esecutore che crea un thread per ogni connessione (virtual thread o thread di piattaforma)
+    private final ExecutorService executor;
     //booleano per controllare se il listener deve continuare ad accettare connesioni
     private boolean running = true;
 
+    //motori disponibili per servire le connessioni
+    public enum Engine { VIRTUAL, PLATFORM }
+
     //Costruttore
     public SocketListener(ServerSocket serverSocket, ResourceService resourceService) {
+        this(serverSocket, resourceService, Engine.VIRTUAL);
+    }
+
+    //Costruttore con il motore delle connessioni scelto all'avvio del master
+    public SocketListener(ServerSocket serverSocket, ResourceService resourceService, Engine engine) {
         this.serverSocket = serverSocket;
         this.resourceService = resourceService;
+        this.executor = engine == Engine.VIRTUAL
+                ? Executors.newVirtualThreadPerTaskExecutor() //un virtual thread leggero per connessione
+                : Executors.newCachedThreadPool(); //un thread del sistema operativo per connessione
     }
     @Override
     //metodo eseguito su un thread separato: gestisce in modo continuo le nuove connessioni in arrivo dai peer
@@ -33,22 +51,25 @@ public class SocketListener implements Runnable {
                 //Blocca l'esecuzione fino a quando un peer non prova a connettersi al master
                 //A quel punto, accept() crea un nuovo oggetto Socket che rappresenta quella specifica connessione
                 Socket clientSocket = serverSocket.accept();
-                //Solo un thread alla volta può modificare la lista clients
-                synchronized (clients) {
-                    //Aggiunge il nuovo socket del peer alla lista dei socket attivi
-                    clients.add(clientSocket);
-                }
+                //Aggiunge il nuovo socket del peer all'insieme dei socket attivi
+                clients.add(clientSocket);
+                resourceService.getMetrics().connectionOpened();
                 //Crea un nuovo oggetto ClientHandler per gestire la comunicazione con il peer appena connesso
                 //gli passa il socket del peer (clientSocket) e il riferimento a resourceService
                 //che contiene lo stato condiviso (peer registrati e risorse disponibili)
                 ClientHandler handler = new ClientHandler(clientSocket, resourceService);
-                //crea un nuovo thread che eseguirà in parallelo il codice del ClientHandler
+                //l'esecutore avvia un nuovo thread che eseguirà in parallelo il codice del ClientHandler
                 //questo consente al master di gestire più peer contemporaneamente, senza bloccare
-                //l'accettazione di nuove connessioni
-                Thread clientThread = new Thread(handler);
-                //avvia il thread del ClientHandler, che comincerà a leggere i comandi del peer e a rispondergli.
+                //l'accettazione di nuove connessioni. Quando il peer si disconnette il socket esce dall'insieme
                 //Dopo questa chiamata, il Master torna immediatamente in attesa di nuovi peer su accept()
-                clientThread.start();
+                executor.execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        clients.remove(clientSocket);
+                        resourceService.getMetrics().connectionClosed();
+                    }
+                });
 
             } catch (IOException e) {
                 if (running) {//Se running è true, significa che non stiamo chiudendo il server intenzionalmente
@@ -62,13 +83,12 @@ public class SocketListener implements Runnable {
     //Metodo per spegnere tutti i socket attivi
     public void closeAllClients() {
         running = false; //socketListener non deve accettare più connessioni
-        //modifica la lista dei socket attivi
-        synchronized (clients) {
-            for (Socket s : clients) {
-                //cicla e chiude tutti i socket uno per uno
-                try { s.close(); } catch (IOException ignored) {}
-            }
+        //cicla e chiude tutti i socket attivi uno per uno
+        for (Socket s : clients) {
+            try { s.close(); } catch (IOException ignored) {}
         }
+        //i thread dei peer terminano da soli dopo la chiusura dei socket
+        executor.shutdown();
         try {//chiude il serverSocket del master, così che non accetti più connessioni
             serverSocket.close();
         } catch (IOException ignored) {}
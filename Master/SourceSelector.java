@@ -0,0 +1,73 @@
+package Master;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Strategia con cui handleDownload sceglie il peer sorgente tra quelli che possiedono la risorsa
+//i candidati passati a select sono già filtrati (registrati e diversi dal peer richiedente) e non sono mai vuoti
+public interface SourceSelector {
+
+    String select(List<String> candidates, LoadTracker load);
+
+    //Restituisce la strategia corrispondente al nome usato nell'opzione --selector
+    static SourceSelector forName(String name) {
+        switch (name.toLowerCase()) {
+            case "first": return new First();
+            case "round-robin": return new RoundRobin();
+            case "least-active": return new LeastActive();
+            case "two-choices": return new TwoChoices();
+            default: throw new IllegalArgumentException("Strategia sconosciuta: " + name);
+        }
+    }
+
+    //Comportamento originale: sempre il primo possessore
+    class First implements SourceSelector {
+        @Override
+        public String select(List<String> candidates, LoadTracker load) {
+            return candidates.get(0);
+        }
+    }
+
+    //A turno tra tutti i possessori
+    class RoundRobin implements SourceSelector {
+        private final AtomicLong next = new AtomicLong();
+
+        @Override
+        public String select(List<String> candidates, LoadTracker load) {
+            return candidates.get((int) Math.floorMod(next.getAndIncrement(), (long) candidates.size()));
+        }
+    }
+
+    //Il possessore con meno trasferimenti in corso, a parità quello che ha servito meno download
+    class LeastActive implements SourceSelector {
+        @Override
+        public String select(List<String> candidates, LoadTracker load) {
+            String best = null;
+            for (String p : candidates) {
+                if (best == null || load.active(p) < load.active(best)
+                        || (load.active(p) == load.active(best) && load.served(p) < load.served(best))) {
+                    best = p;
+                }
+            }
+            return best;
+        }
+    }
+
+    //"Power of two choices": sceglie due possessori a caso e prende il meno carico
+    //quasi bilanciato come LeastActive ma senza leggere il carico di tutti i candidati
+    class TwoChoices implements SourceSelector {
+        @Override
+        public String select(List<String> candidates, LoadTracker load) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int size = candidates.size();
+            int first = random.nextInt(size);
+            if (size == 1) return candidates.get(first);
+            //il secondo indice è sempre diverso dal primo
+            int second = (first + 1 + random.nextInt(size - 1)) % size;
+            String a = candidates.get(first);
+            String b = candidates.get(second);
+            return load.active(b) < load.active(a) ? b : a;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package Master;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+//Salvataggio su disco dello stato del master (peer registrati e associazioni risorsa-peer)
+//ogni modifica viene accodata come riga di testo al journal da un thread in background, che scrive le righe
+//accumulate in un solo blocco e poi chiama force una volta sola (group commit). Chi ha accodato una modifica
+//può attendere con awaitWritten che sia su disco: il ClientHandler risponde al peer solo dopo, quindi una modifica
+//confermata non si perde con un crash del master. Accodare e attendere non prendono lock (niente synchronized):
+//i ClientHandler sono virtual thread e un monitor li terrebbe fermi sul thread portante per tutta la force.
+//I campi di ogni riga sono separati da uno spazio; spazi, caratteri di controllo e '%' dentro un campo
+//vengono scritti come "%XX" (record e applyRecord), così un nome qualsiasi non altera la riga.
+//Periodicamente il thread passa a un nuovo file di journal e scrive una fotografia compatta di tutto lo stato (snapshot),
+//prima su un file temporaneo e poi con una rinomina atomica; lo snapshot è scritto da un thread a parte, così il
+//thread del journal continua a scrivere le modifiche nel frattempo. All'avvio si legge lo snapshot (mappato in memoria)
+//e si riapplicano i journal successivi: ogni operazione imposta un valore, quindi riapplicarla due volte non cambia il risultato
+public class StateStore implements Closeable {
+    //ogni quanto viene scritto uno snapshot, se nel frattempo ci sono state modifiche
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 60_000;
+    //numero di modifiche dopo cui lo snapshot viene scritto subito
+    private static final long SNAPSHOT_RECORDS = 100_000;
+    //intestazione del file di snapshot ("LSNP") e tipi di record
+    private static final int SNAPSHOT_MAGIC = 0x4C534E50;
+    private static final byte REC_PEER = 'P';
+    private static final byte REC_ADD = 'A';
+    private static final byte REC_END = 'E';
+
+    //operazioni sullo stato: usate per riapplicare snapshot e journal e per scrivere lo snapshot
+    public interface Apply {
+        void peer(String name, String ip, int port); //peer registrato
+        void peerGone(String name); //peer rimosso
+        void add(String resource, String peer); //risorsa associata al peer
+        void remove(String resource, String peer); //associazione rimossa
+    }
+
+    //fornisce lo stato attuale, chiamando peer e add per ogni elemento
+    public interface Source {
+        void writeTo(Apply sink) throws IOException;
+    }
+
+    //riga accodata: chi l'ha accodata attende done, completato dal thread di scrittura dopo la force
+    public static final class Entry {
+        private final String record;
+        private final long failuresBefore; //blocchi persi prima che la riga fosse accodata
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Entry(String record, long failuresBefore) {
+            this.record = record;
+            this.failuresBefore = failuresBefore;
+        }
+    }
+
+    private final Path dir; //cartella con snapshot e journal
+    private final Source source;
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>(); //righe in attesa di essere scritte
+    private final AtomicLong appended = new AtomicLong(); //righe accodate
+    private volatile long written = 0; //righe scritte (o perse), aggiornato solo dal thread di scrittura
+    private final AtomicLong failures = new AtomicLong(); //blocchi di righe persi per un errore di scrittura
+    private final AtomicBoolean sleeping = new AtomicBoolean(); //il thread di scrittura attende nuove righe
+    private Thread writer;
+    private volatile boolean running = true;
+    private Thread snapshotter; //thread che scrive l'ultimo snapshot, usato solo dal thread di scrittura e da close
+    private FileChannel journal; //journal attuale, usato solo dal thread di scrittura
+    private long generation; //numero del journal attuale
+    private long recordsSinceSnapshot; //modifiche scritte dall'ultimo snapshot
+    private long lastSnapshot; //momento dell'ultimo snapshot
+
+    public StateStore(Path dir, Source source) {
+        this.dir = dir;
+        this.source = source;
+    }
+
+    //Ripristina lo stato salvato applicandolo a target, poi apre un nuovo journal e avvia il thread di scrittura
+    //restituisce il numero di righe del journal riapplicate dopo lo snapshot
+    public long restore(Apply target) throws IOException {
+        Files.createDirectories(dir);
+        long firstJournal = 0;
+        Path snapshot = dir.resolve("snapshot.bin");
+        if (Files.exists(snapshot)) {
+            //lo snapshot numero G è stato scritto dopo il passaggio al journal G: per sicurezza si riparte dal journal G-1
+            firstJournal = readSnapshot(snapshot, target) - 1;
+        }
+        //journal ordinati per numero
+        TreeMap<Long, Path> journals = listJournals();
+        long replayed = 0;
+        for (var entry : journals.tailMap(firstJournal, true).entrySet()) {
+            replayed += replayJournal(entry.getValue(), target);
+        }
+        generation = Math.max(firstJournal + 1, journals.isEmpty() ? 0 : journals.lastKey()) + 1;
+        journal = openJournal(generation);
+        //se sono state riapplicate delle righe, il primo snapshot viene scritto subito e compatta i vecchi journal
+        recordsSinceSnapshot = replayed + journals.size();
+        lastSnapshot = 0;
+        startWriter();
+        return replayed;
+    }
+
+    //Inizia il salvataggio senza riapplicare nulla (replica promossa a primario, che ha già lo stato in memoria)
+    //lo snapshot dello stato attuale viene scritto subito, prima di avviare il thread di scrittura: sostituisce
+    //lo snapshot vecchio e i journal vecchi vengono eliminati, così un riavvio non li riapplica
+    public void start() throws IOException {
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> journals = listJournals();
+        generation = (journals.isEmpty() ? 0 : journals.lastKey()) + 1;
+        journal = openJournal(generation);
+        rotateJournal();
+        writeSnapshot(generation);
+        startWriter();
+    }
+
+    private void startWriter() {
+        writer = new Thread(this::writeLoop, "state-store-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //Accoda una modifica al journal, senza aspettare la scrittura su disco
+    //viene chiamata dentro compute, così le righe della stessa chiave sono nell'ordine in cui sono state applicate
+    //restituisce la riga da passare ad awaitWritten (null se il salvataggio è già stato chiuso)
+    public Entry append(String record) {
+        if (!running) return null;
+        Entry entry = new Entry(record, failures.get());
+        queue.offer(entry);
+        appended.incrementAndGet();
+        //sveglia il thread di scrittura solo se sta aspettando: mentre scrive, le righe si accumulano per il blocco successivo
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) LockSupport.unpark(writer);
+        return entry;
+    }
+
+    //Attende che le righe accodate da first a last dallo stesso thread siano state scritte su disco con force
+    //ritorna false se nel frattempo un blocco non è stato scritto (la modifica potrebbe non essere salvata)
+    public boolean awaitWritten(Entry first, Entry last) throws InterruptedException {
+        while (true) {
+            try {
+                last.done.get(1, TimeUnit.SECONDS); //un virtual thread in attesa libera il thread portante
+                return failures.get() == first.failuresBefore;
+            } catch (TimeoutException e) {
+                //il salvataggio è stato chiuso e il thread di scrittura non c'è più: la riga non verrà scritta
+                Thread w = writer;
+                if (!running && (w == null || !w.isAlive())) failRemaining();
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+    }
+
+    //Scarta le righe rimaste in coda e sveglia chi le attende (il thread di scrittura non le scriverà)
+    private void failRemaining() {
+        Entry entry;
+        boolean lost = false;
+        while ((entry = queue.poll()) != null) {
+            if (!lost) failures.incrementAndGet(); //prima di completare: chi si sveglia vede già l'errore
+            lost = true;
+            entry.done.complete(null);
+        }
+    }
+
+    //Numero di modifiche accodate e non ancora scritte (mostrato da STATS)
+    public int pending() {
+        return (int) Math.max(0, appended.get() - written);
+    }
+
+    //Ciclo del thread di scrittura: scrive a blocchi le modifiche in coda e ogni tanto avvia uno snapshot
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            Entry entry;
+            while ((entry = queue.poll()) != null) batch.add(entry);
+            if (batch.isEmpty()) {
+                //nessuna riga: aspetta al massimo 200 ms (per lo snapshot periodico) o che append lo svegli
+                sleeping.set(true);
+                if (queue.isEmpty() && running) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+                sleeping.set(false);
+            } else {
+                boolean ok = false;
+                try {
+                    writeBatch(batch);
+                    recordsSinceSnapshot += batch.size();
+                    ok = true;
+                } catch (IOException e) {
+                    System.err.println("[StateStore] Scrittura del journal non riuscita: " + e.getMessage());
+                }
+                if (!ok) failures.incrementAndGet();
+                written += batch.size();
+                for (Entry e : batch) e.done.complete(null);
+                batch.clear();
+            }
+            boolean due = System.currentTimeMillis() - lastSnapshot >= SNAPSHOT_INTERVAL_MILLIS;
+            boolean idle = snapshotter == null || !snapshotter.isAlive(); //uno snapshot alla volta
+            if (idle && (recordsSinceSnapshot >= SNAPSHOT_RECORDS || (recordsSinceSnapshot > 0 && due))) {
+                try {
+                    rotateJournal();
+                    long gen = generation;
+                    snapshotter = new Thread(() -> {
+                        try {
+                            writeSnapshot(gen);
+                        } catch (IOException e) {
+                            //i journal vecchi non vengono eliminati: il riavvio riparte dallo snapshot precedente
+                            System.err.println("[StateStore] Scrittura dello snapshot non riuscita: " + e.getMessage());
+                        }
+                    }, "state-store-snapshot");
+                    snapshotter.setDaemon(true);
+                    snapshotter.start();
+                } catch (IOException e) {
+                    System.err.println("[StateStore] Passaggio al nuovo journal non riuscito: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    //Scrive le righe nel journal e le rende durature con una sola force
+    private void writeBatch(List<Entry> batch) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : batch) sb.append(entry.record).append('\n');
+        ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) journal.write(buffer);
+        journal.force(false);
+    }
+
+    //Passa a un nuovo journal, prima di scrivere lo snapshot con il nuovo numero (chiamato dal thread di scrittura)
+    private void rotateJournal() throws IOException {
+        long newGeneration = generation + 1;
+        FileChannel next = openJournal(newGeneration);
+        journal.close();
+        journal = next;
+        generation = newGeneration;
+        recordsSinceSnapshot = 0;
+        lastSnapshot = System.currentTimeMillis();
+    }
+
+    //Scrive lo snapshot dello stato attuale con il numero newGeneration, poi elimina i journal non più necessari
+    //lo stato viene letto mentre i ClientHandler continuano a modificarlo: le modifiche fatte nel frattempo
+    //finiscono nel nuovo journal e vengono riapplicate al riavvio
+    private void writeSnapshot(long newGeneration) throws IOException {
+        Path tmp = dir.resolve("snapshot.tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeLong(newGeneration);
+            source.writeTo(new Apply() {
+                @Override
+                public void peer(String name, String ip, int port) {
+                    try {
+                        data.writeByte(REC_PEER);
+                        writeString(data, name);
+                        writeString(data, ip);
+                        data.writeInt(port);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public void peerGone(String name) {
+                    //uno snapshot contiene solo lo stato presente
+                }
+
+                @Override
+                public void add(String resource, String peer) {
+                    try {
+                        data.writeByte(REC_ADD);
+                        writeString(data, resource);
+                        writeString(data, peer);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public void remove(String resource, String peer) {
+                    //uno snapshot contiene solo lo stato presente
+                }
+            });
+            data.writeByte(REC_END);
+            data.flush();
+            fos.getFD().sync();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.move(tmp, dir.resolve("snapshot.bin"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        //restano solo il journal precedente (per le modifiche in corso durante il passaggio) e quello attuale
+        for (var entry : listJournals().headMap(newGeneration - 1).entrySet()) {
+            Files.deleteIfExists(entry.getValue());
+        }
+    }
+
+    //Legge lo snapshot mappandolo in memoria e lo applica a target, restituisce il suo numero di generazione
+    private static long readSnapshot(Path file, Apply target) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 12 || buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("snapshot non valido: " + file);
+            }
+            long generation = buffer.getLong();
+            while (true) {
+                byte type = buffer.get();
+                if (type == REC_END) return generation;
+                if (type == REC_PEER) {
+                    target.peer(readString(buffer), readString(buffer), buffer.getInt());
+                } else if (type == REC_ADD) {
+                    target.add(readString(buffer), readString(buffer));
+                } else {
+                    throw new IOException("record sconosciuto nello snapshot: " + type);
+                }
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("snapshot troncato: " + file);
+        }
+    }
+
+    //Riapplica le righe di un journal, restituisce quante sono state lette
+    //un'ultima riga senza a capo è stata interrotta da un crash e viene ignorata
+    private static long replayJournal(Path file, Apply target) throws IOException {
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        long count = 0;
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            if (applyRecord(content.substring(start, end), target)) count++;
+            start = end + 1;
+        }
+        return count;
+    }
+
+    //Costruisce una riga del journal: il tipo seguito dai campi, separati da spazi e codificati con escape
+    //usata anche per le righe inviate alle repliche
+    public static String record(char type, String... fields) {
+        StringBuilder sb = new StringBuilder().append(type);
+        for (String field : fields) {
+            sb.append(' ');
+            escape(sb, field);
+        }
+        return sb.toString();
+    }
+
+    //Aggiunge il campo a sb scrivendo '%', lo spazio e i caratteri di controllo come "%XX"
+    private static void escape(StringBuilder sb, String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '%' || c <= ' ' || c == 0x7F) {
+                sb.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    //Inverso di escape
+    private static String unescape(String field) {
+        if (field.indexOf('%') < 0) return field;
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '%' && i + 2 < field.length()) {
+                sb.append((char) Integer.parseInt(field.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    //Applica a target una riga del journal ("P nome ip porta", "U nome", "A risorsa peer", "D risorsa peer"),
+    //costruita con record; usata anche dalle repliche, che ricevono dal primario le modifiche nello stesso formato
+    //ritorna false se la riga non è riconosciuta o è malformata (viene saltata)
+    public static boolean applyRecord(String record, Apply target) {
+        String[] parts = record.split(" ");
+        try {
+            for (int i = 1; i < parts.length; i++) parts[i] = unescape(parts[i]);
+            switch (parts[0]) {
+                case "P" -> target.peer(parts[1], parts[2], Integer.parseInt(parts[3]));
+                case "U" -> target.peerGone(parts[1]);
+                case "A" -> target.add(parts[1], parts[2]);
+                case "D" -> target.remove(parts[1], parts[2]);
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    //Journal presenti nella cartella, ordinati per numero
+    private TreeMap<Long, Path> listJournals() throws IOException {
+        TreeMap<Long, Path> journals = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "journal-*.log")) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                try {
+                    journals.put(Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())), p);
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        return journals;
+    }
+
+    private FileChannel openJournal(long gen) throws IOException {
+        return FileChannel.open(dir.resolve("journal-" + gen + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        //una lunghezza oltre la fine del file non va usata per allocare l'array
+        if (length < 0 || length > buffer.remaining()) throw new IOException("snapshot corrotto: lunghezza " + length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //Ferma il thread di scrittura dopo aver scritto le modifiche in coda e un ultimo snapshot
+    @Override
+    public void close() {
+        running = false; //le righe accodate dopo questo punto vengono scartate da failRemaining
+        if (writer == null) {
+            //il salvataggio non è mai partito: le righe accodate nel frattempo non verranno scritte
+            failRemaining();
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException ignored) {}
+            }
+            return;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+            if (writer.isAlive()) {
+                //il thread di scrittura è bloccato: chi attende una riga non ancora scritta non deve restare fermo
+                failRemaining();
+                return;
+            }
+            failRemaining(); //righe accodate mentre il thread terminava
+            if (snapshotter != null) snapshotter.join();
+            if (recordsSinceSnapshot > 0) {
+                rotateJournal();
+                writeSnapshot(generation);
+            }
+            journal.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("[StateStore] Snapshot finale non riuscito: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package Master;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Tabella dei nomi: assegna ad ogni nome (di peer o di risorsa) un identificativo intero, a partire da 0
+//le tabelle del ResourceService salvano solo gli identificativi, quindi ogni nome è memorizzato una volta sola
+//e i confronti sono tra interi; i nomi vengono ricostruiti solo quando servono nelle risposte.
+//Gli identificativi rilasciati vengono riassegnati, così l'array dei nomi non cresce oltre i nomi presenti insieme.
+//La ricerca del nome è senza lock; solo l'assegnazione e il rilascio di un identificativo prendono il lock della tabella.
+//Chi legge identificativi senza lock da un insieme che potrebbe essere vecchio confronta releases() prima e dopo:
+//se nel frattempo c'è stato un rilascio, un identificativo letto potrebbe già indicare un altro nome
+public class SymbolTable {
+    //numero massimo di identificativi (la lunghezza massima di un array)
+    private static final int MAX_IDS = Integer.MAX_VALUE - 8;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    //nome di ogni identificativo (null se rilasciato); l'array viene sostituito quando si riempie
+    private volatile String[] names = new String[1024];
+    private int next = 0; //primo identificativo mai assegnato, protetto dal lock
+    private int live = 0; //nomi presenti, protetto dal lock
+    //identificativi rilasciati, in una coda circolare: vengono riassegnati nell'ordine di rilascio,
+    //quindi quello appena rilasciato è l'ultimo a essere riusato. Protetta dal lock
+    private int[] free = new int[64];
+    private int freeHead = 0;
+    private int freeCount = 0;
+    //numero di rilasci (e di svuotamenti), aumentato prima che l'identificativo possa essere riassegnato
+    private volatile long releases = 0;
+
+    //Identificativo del nome, assegnato se il nome non ne ha ancora uno
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) return id;
+            int n;
+            String[] current = names;
+            if (freeCount > 0) { //riusa l'identificativo rilasciato da più tempo
+                n = free[freeHead];
+                freeHead = (freeHead + 1) % free.length;
+                freeCount--;
+            } else {
+                if (next == MAX_IDS) throw new IllegalStateException("troppi nomi nella tabella: " + next);
+                n = next++;
+                //raddoppia la capacità senza superare MAX_IDS (n * 2 andrebbe in overflow oltre 2^30)
+                if (n == current.length) current = Arrays.copyOf(current, (int) Math.min((long) n * 2, MAX_IDS));
+            }
+            current[n] = name;
+            names = current; //scrittura volatile: chi riceve l'identificativo vede anche il nome
+            ids.put(name, n);
+            live++;
+            return n;
+        }
+    }
+
+    //Identificativo del nome, -1 se il nome non è nella tabella (non ne assegna uno nuovo)
+    public int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    //Nome dell'identificativo, null se è stato rilasciato
+    public String nameOf(int id) {
+        String[] current = names;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    //Toglie il nome dalla tabella; l'identificativo potrà essere assegnato a un altro nome
+    //chi chiama deve garantire che nessuno assegni lo stesso nome nello stesso momento e che l'identificativo
+    //non sia più salvato nelle tabelle (il ResourceService lo fa dentro compute)
+    public synchronized void release(int id) {
+        String name = nameOf(id);
+        if (name == null) return;
+        ids.remove(name, id);
+        String[] current = names;
+        current[id] = null;
+        names = current;
+        releases++; //con il lock: un solo thread alla volta lo aumenta
+        live--;
+        if (freeCount == free.length) { //la coda è piena: la raddoppia mantenendo l'ordine
+            int[] grown = new int[(int) Math.min((long) free.length * 2, MAX_IDS)];
+            for (int i = 0; i < freeCount; i++) grown[i] = free[(freeHead + i) % free.length];
+            free = grown;
+            freeHead = 0;
+        }
+        free[(freeHead + freeCount) % free.length] = id;
+        freeCount++;
+    }
+
+    //Svuota la tabella (la replica riceve uno snapshot nuovo dal primario)
+    public synchronized void clear() {
+        ids.clear();
+        releases++;
+        names = new String[1024];
+        next = 0;
+        live = 0;
+        free = new int[64];
+        freeHead = 0;
+        freeCount = 0;
+    }
+
+    //Numero di rilasci dalla creazione della tabella (letto senza lock)
+    public long releases() {
+        return releases;
+    }
+
+    //Nomi presenti nella tabella
+    public synchronized int size() {
+        return live;
+    }
+
+    //Identificativi in uso o in attesa di essere riassegnati (la lunghezza usata dell'array dei nomi)
+    public synchronized int assigned() {
+        return next;
+    }
+}
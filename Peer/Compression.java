@@ -0,0 +1,192 @@
+package Peer;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+//Compressione dei trasferimenti tra peer, negoziata nella richiesta
+//chi scarica elenca i codec che accetta ("GET <nome> <offset> <lunghezza> ACCEPT deflate-fast,deflate") e il peer
+//sorgente risponde con un byte che indica il codec scelto, poi comprime i dati mentre li invia.
+//I codec disponibili sono Deflate (livello predefinito) e Deflate veloce (livello 1), il più vicino a un codec LZ
+//veloce tra quelli inclusi nella JDK. I file già compressi vengono inviati senza compressione
+public class Compression {
+
+    //codici dei codec, inviati in un byte dopo la lunghezza
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+    public static final byte DEFLATE_FAST = 2;
+    //parola chiave della richiesta che precede l'elenco dei codec accettati
+    static final String ACCEPT = "ACCEPT";
+
+    //estensioni di file che sono già compressi
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "gz", "tgz", "zip", "jar", "7z", "xz", "bz2", "zst", "lz4", "rar",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "avi", "ogg", "flac", "pdf");
+    //byte letti dall'inizio del file per stimare se la compressione conviene
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    //la compressione viene usata solo se il campione si riduce almeno di questa frazione
+    private static final double MIN_SAVING = 0.1;
+    //dimensione dei buffer usati per comprimere e decomprimere
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    //codec accettati da questo peer quando scarica, in ordine di preferenza (null = nessuna compressione)
+    private static volatile String accepted = null;
+    //esito della stima sul campione per ogni file, ricalcolato se il file cambia
+    private static final ConcurrentHashMap<Path, long[]> compressibleCache = new ConcurrentHashMap<>();
+
+    //Imposta i codec accettati in download (opzione --compress del peer); "none" disattiva la compressione
+    static void setAccepted(String codecs) {
+        accepted = codecs == null || codecs.equalsIgnoreCase("none") ? null : codecs.toLowerCase(Locale.ROOT);
+    }
+
+    static String getAccepted() {
+        return accepted;
+    }
+
+    //Codice di un codec dal suo nome, -1 se sconosciuto
+    static byte codecFor(String name) {
+        switch (name) {
+            case "deflate": return DEFLATE;
+            case "deflate-fast": return DEFLATE_FAST;
+            case "none": return NONE;
+            default: return -1;
+        }
+    }
+
+    //Nome del codec
+    public static String nameOf(byte codec) {
+        return codec == DEFLATE ? "deflate" : codec == DEFLATE_FAST ? "deflate-fast" : "none";
+    }
+
+    //Sceglie il codec per inviare il file: il primo codec accettato dal richiedente tra quelli conosciuti,
+    //oppure NONE se il file è già compresso
+    static byte choose(String acceptList, Path file) {
+        for (String name : acceptList.split(",")) {
+            byte codec = codecFor(name.trim().toLowerCase(Locale.ROOT));
+            if (codec > NONE) return isCompressible(file) ? codec : NONE;
+        }
+        return NONE;
+    }
+
+    //Indica se conviene comprimere il file: no per le estensioni già compresse, altrimenti si comprime un campione
+    static boolean isCompressible(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) return false;
+        try {
+            long size = Files.size(file);
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            long[] cached = compressibleCache.get(file);
+            if (cached != null && cached[0] == size && cached[1] == lastModified) return cached[2] == 1;
+            boolean compressible = sampleSaving(file) >= MIN_SAVING;
+            compressibleCache.put(file, new long[]{size, lastModified, compressible ? 1 : 0});
+            return compressible;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    //Frazione di byte risparmiata comprimendo (velocemente) l'inizio del file
+    private static double sampleSaving(Path file) throws IOException {
+        byte[] sample;
+        try (InputStream in = Files.newInputStream(file)) {
+            sample = in.readNBytes(SAMPLE_BYTES);
+        }
+        if (sample.length == 0) return 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] out = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) compressed += deflater.deflate(out);
+            return 1.0 - (double) compressed / sample.length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static Deflater newDeflater(byte codec) {
+        return new Deflater(codec == DEFLATE_FAST ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+    }
+
+    //Comprime count byte del file a partire da offset e li scrive sul canale man mano che vengono letti
+    public static void compress(FileChannel file, long offset, long count, WritableByteChannel channel, byte codec) throws IOException {
+        Deflater deflater = newDeflater(codec);
+        try {
+            //lo stream non viene chiuso: il canale appartiene al chiamante
+            OutputStream raw = Channels.newOutputStream(channel);
+            DeflaterOutputStream out = new DeflaterOutputStream(raw, deflater, BUFFER_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = offset;
+            long end = offset + count;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+                int n = file.read(buffer, position);
+                if (n < 0) throw new EOFException("file accorciato durante l'invio");
+                out.write(buffer.array(), 0, n);
+                position += n;
+            }
+            out.finish();
+            raw.flush();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //Decomprime nel buffer i byte ricevuti dal canale, fino a riempirlo (usato per i blocchi del download da più sorgenti)
+    //legge anche la fine dello stream compresso: la connessione viene riusata per il blocco successivo e non devono
+    //restarci byte di questa risposta. Il peer sorgente non invia nulla finché non riceve la richiesta successiva,
+    //quindi il buffer di lettura di InflaterInputStream non può prendere byte della risposta dopo
+    public static void decompress(ReadableByteChannel channel, byte codec, ByteBuffer target) throws IOException {
+        if (codec != DEFLATE && codec != DEFLATE_FAST) throw new IOException("codec sconosciuto: " + codec);
+        Inflater inflater = new Inflater();
+        try {
+            InputStream in = new InflaterInputStream(Channels.newInputStream(channel), inflater, BUFFER_SIZE);
+            while (target.hasRemaining()) {
+                int n = in.read(target.array(), target.arrayOffset() + target.position(), target.remaining());
+                if (n < 0) throw new IOException("dati compressi incompleti: mancano " + target.remaining() + " byte");
+                target.position(target.position() + n);
+            }
+            if (in.read() >= 0) throw new IOException("dati compressi più lunghi della lunghezza annunciata");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    //Decomprime size byte ricevuti dal canale e li scrive nel file a partire da position
+    //ritorna il numero di byte scritti
+    public static long decompress(ReadableByteChannel channel, byte codec, long size, FileChannel file, long position) throws IOException {
+        if (codec != DEFLATE && codec != DEFLATE_FAST) throw new IOException("codec sconosciuto: " + codec);
+        Inflater inflater = new Inflater();
+        try {
+            InputStream in = new InflaterInputStream(Channels.newInputStream(channel), inflater, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long received = 0;
+            while (received < size) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+                if (n < 0) throw new IOException("connessione chiusa dopo " + received + "/" + size + " byte");
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+                while (data.hasRemaining()) file.write(data, position + received + data.position());
+                received += n;
+            }
+            return received;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package Peer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+//Cache in memoria del contenuto dei file serviti più spesso dal PeerServer
+//il contenuto sta in ByteBuffer diretti (fuori dallo heap), letti una sola volta dal disco: le richieste successive
+//dello stesso file vengono inviate dalla memoria, senza I/O su disco e senza allocare buffer per la richiesta.
+//Una voce vale solo finché dimensione e data di modifica del file restano uguali; quando la cache è piena la
+//politica di rimpiazzo sceglie quale file togliere
+public class ContentCache {
+
+    //voce della cache: contenuto del file e dati usati per capire se il file è cambiato
+    private static final class Entry {
+        final ByteBuffer content; //buffer diretto in sola lettura
+        final long size;
+        final long lastModified;
+
+        Entry(ByteBuffer content, long size, long lastModified) {
+            this.content = content;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final long capacity; //byte massimi occupati dai file in cache
+    private final long maxEntry; //i file più grandi non entrano in cache
+    private final EvictionPolicy policy;
+    private final Map<String, Entry> entries = new HashMap<>(); //protetta dal lock della cache (this)
+    private long used = 0; //byte occupati
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ContentCache(long capacity, EvictionPolicy policy) {
+        this.capacity = capacity;
+        //un solo file non può occupare più di un ottavo della cache, né superare la dimensione massima di un ByteBuffer
+        this.maxEntry = Math.min(capacity / 8, Integer.MAX_VALUE);
+        this.policy = policy;
+    }
+
+    //Restituisce il contenuto del file (una vista indipendente, da cui leggere senza modificare la cache)
+    //se il file non è in cache o è cambiato lo legge da channel e prova ad aggiungerlo;
+    //ritorna null se il file è troppo grande per la cache. Va chiamato con il lock in lettura sul file
+    public ByteBuffer get(String key, FileChannel channel, long size, long lastModified) throws IOException {
+        synchronized (this) {
+            policy.onAccess(key);
+            Entry entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                hits.increment();
+                return entry.content.duplicate();
+            }
+            if (entry != null) remove(key); //il file è cambiato sul disco
+        }
+        misses.increment();
+        if (size > maxEntry) return null;
+
+        //la lettura dal disco avviene fuori dal lock della cache
+        ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+        while (content.hasRemaining()) {
+            if (channel.read(content, content.position()) < 0) return null; //file accorciato nel frattempo
+        }
+        content.flip();
+        ByteBuffer readOnly = content.asReadOnlyBuffer();
+
+        synchronized (this) {
+            //se un'altra richiesta l'ha già aggiunto, si tiene la voce esistente
+            Entry existing = entries.get(key);
+            if (existing == null || existing.lastModified != lastModified || existing.size != size) {
+                if (existing != null) remove(key);
+                insert(key, new Entry(readOnly, size, lastModified));
+            }
+        }
+        return readOnly.duplicate();
+    }
+
+    //Aggiunge la voce, togliendo i file scelti dalla politica finché c'è spazio
+    //se la politica non ammette il file nuovo al posto della vittima, la cache resta com'è
+    private void insert(String key, Entry entry) {
+        while (used + entry.size > capacity) {
+            String victim = policy.victim();
+            if (victim == null || !policy.admit(key, victim)) return;
+            remove(victim);
+            evictions.increment();
+        }
+        entries.put(key, entry);
+        used += entry.size;
+        policy.onInsert(key);
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            used -= removed.size;
+            policy.onRemove(key);
+        }
+    }
+
+    //Riepilogo mostrato dal comando "cache" del peer
+    public synchronized String stats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        double ratio = h + m == 0 ? 0 : 100.0 * h / (h + m);
+        return String.format("File in cache: %d (%d/%d KB), hit: %d, miss: %d (%.1f%% hit), rimossi: %d",
+                entries.size(), used / 1024, capacity / 1024, h, m, ratio, evictions.sum());
+    }
+
+    //Chiave della cache per un file
+    static String keyOf(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+}
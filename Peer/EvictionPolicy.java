@@ -0,0 +1,114 @@
+package Peer;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+//Politica di rimpiazzo della ContentCache: decide quale file togliere quando la cache è piena
+//e se un file nuovo merita di entrare al posto di quello scelto. I metodi sono chiamati con il lock della cache
+public interface EvictionPolicy {
+
+    //il file è stato richiesto (anche se non è in cache)
+    void onAccess(String key);
+
+    //il file è entrato in cache
+    void onInsert(String key);
+
+    //il file è uscito dalla cache
+    void onRemove(String key);
+
+    //file da togliere per fare spazio, null se la cache è vuota
+    String victim();
+
+    //indica se candidate deve entrare in cache al posto di victim
+    boolean admit(String candidate, String victim);
+
+    //Crea la politica dal nome usato nell'opzione --cache-policy
+    static EvictionPolicy forName(String name) {
+        switch (name.toLowerCase()) {
+            case "lru": return new Lru();
+            case "tinylfu": return new TinyLfu();
+            default: throw new IllegalArgumentException("Politica della cache sconosciuta: " + name);
+        }
+    }
+
+    //Least Recently Used: esce il file richiesto meno di recente, ogni file nuovo entra
+    class Lru implements EvictionPolicy {
+        //file in cache dal meno al più recente
+        protected final LinkedHashSet<String> order = new LinkedHashSet<>();
+
+        @Override
+        public void onAccess(String key) {
+            if (order.remove(key)) order.add(key);
+        }
+
+        @Override
+        public void onInsert(String key) {
+            order.add(key);
+        }
+
+        @Override
+        public void onRemove(String key) {
+            order.remove(key);
+        }
+
+        @Override
+        public String victim() {
+            Iterator<String> it = order.iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+
+        @Override
+        public boolean admit(String candidate, String victim) {
+            return true;
+        }
+    }
+
+    //TinyLFU: stessa scelta della vittima di LRU, ma un file nuovo entra solo se è stato richiesto almeno
+    //quanto la vittima. Le frequenze sono stimate con un count-min sketch di dimensione fissa, dimezzato periodicamente
+    //così che contino soprattutto le richieste recenti. Un file richiesto una volta sola non scaccia un file popolare
+    class TinyLfu extends Lru {
+        private static final int WIDTH = 1 << 14; //contatori per riga (potenza di 2)
+        private static final int DEPTH = 4; //righe, ognuna con una funzione di hash diversa
+        private static final int MAX_COUNT = 15; //i contatori si fermano a 15, come in un contatore a 4 bit
+        private static final int RESET_AFTER = WIDTH * 10; //incrementi dopo cui tutti i contatori vengono dimezzati
+
+        private final byte[][] counters = new byte[DEPTH][WIDTH];
+        private int additions = 0;
+
+        @Override
+        public void onAccess(String key) {
+            super.onAccess(key);
+            for (int i = 0; i < DEPTH; i++) {
+                int idx = index(key, i);
+                if (counters[i][idx] < MAX_COUNT) counters[i][idx]++;
+            }
+            if (++additions >= RESET_AFTER) reset();
+        }
+
+        //a parità di frequenza entra il file nuovo: con ">" due file richiesti allo stesso modo (ad esempio entrambi
+        //arrivati al massimo di 15) non si sostituirebbero mai e la cache resterebbe ferma sui primi file entrati
+        @Override
+        public boolean admit(String candidate, String victim) {
+            return frequency(candidate) >= frequency(victim);
+        }
+
+        //frequenza stimata: il minimo tra i contatori del file nelle varie righe
+        private int frequency(String key) {
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) min = Math.min(min, counters[i][index(key, i)]);
+            return min;
+        }
+
+        private static int index(String key, int row) {
+            int h = key.hashCode() * (0x9E3779B9 + 2 * row + 1);
+            h ^= h >>> 16;
+            return h & (WIDTH - 1);
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int j = 0; j < WIDTH; j++) row[j] >>= 1;
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package Peer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//Registro dei lock per le risorse locali, condiviso tra PeerServer (letture) e Peer (scritture)
+//più upload dello stesso file possono procedere insieme con il lock in lettura,
+//mentre chi scrive il file (download o add) prende il lock in scrittura ed esclude tutti gli altri.
+//Una voce del registro esiste solo finché qualcuno tiene o attende il lock: le richieste di altri peer
+//per nomi qualsiasi non fanno crescere il registro.
+//Si usa con acquireRead/acquireWrite e poi release sull'oggetto restituito, in un blocco finally
+public class FileLocks {
+
+    //un lock per ogni nome di risorsa in uso, con il numero di thread che lo tengono o lo attendono
+    private static final ConcurrentHashMap<String, Entry> locks = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        int users = 0; //modificato solo dentro compute
+    }
+
+    private FileLocks() {}
+
+    //Prende il lock in lettura della risorsa (attende chi la sta scrivendo)
+    public static Held acquireRead(String resourceName) {
+        return acquire(resourceName, false);
+    }
+
+    //Prende il lock in scrittura della risorsa (attende tutti gli altri)
+    public static Held acquireWrite(String resourceName) {
+        return acquire(resourceName, true);
+    }
+
+    //La voce viene contata prima di attendere il lock, così non può essere tolta dal registro nel frattempo
+    private static Held acquire(String name, boolean write) {
+        Entry e = retain(name);
+        Lock lock = write ? e.lock.writeLock() : e.lock.readLock();
+        lock.lock();
+        return new Held(name, lock);
+    }
+
+    //Crea la voce se manca e conta un utilizzatore in più
+    private static Entry retain(String name) {
+        return locks.compute(name, (k, e) -> {
+            if (e == null) e = new Entry();
+            e.users++;
+            return e;
+        });
+    }
+
+    //Conta un utilizzatore in meno e toglie la voce quando non ne restano
+    private static void forget(String name) {
+        locks.computeIfPresent(name, (k, e) -> --e.users == 0 ? null : e);
+    }
+
+    //Lock preso su una risorsa, da rilasciare una sola volta con release
+    public static final class Held {
+        private final String name;
+        private Lock lock; //null dopo release
+
+        private Held(String name, Lock lock) {
+            this.name = name;
+            this.lock = lock;
+        }
+
+        public void release() {
+            if (lock == null) throw new IllegalMonitorStateException("lock di '" + name + "' già rilasciato");
+            Lock l = lock;
+            lock = null;
+            l.unlock();
+            forget(name);
+        }
+    }
+}
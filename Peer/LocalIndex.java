@@ -0,0 +1,144 @@
+package Peer;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+//Indice in memoria dei file presenti nella cartella delle risorse locali
+//la cartella viene osservata con un WatchService: gli eventi vengono raccolti e, quando la cartella resta ferma
+//per DEBOUNCE_MILLIS (o al massimo dopo MAX_DELAY_MILLIS), le differenze vengono inviate al listener in un solo blocco
+//di aggiunte e rimozioni. Così "listdata local" legge dalla memoria e il master resta allineato senza riscansioni
+public class LocalIndex {
+
+    //tempo di quiete dopo l'ultimo evento prima di inviare le differenze
+    private static final long DEBOUNCE_MILLIS = 500;
+    //attesa massima prima di inviare le differenze anche se gli eventi continuano ad arrivare
+    private static final long MAX_DELAY_MILLIS = 3000;
+
+    //riceve le risorse comparse e sparite dalla cartella rispetto all'ultimo invio
+    public interface DeltaListener {
+        void onDelta(List<String> added, List<String> removed);
+    }
+
+    private final Path folder; //cartella osservata
+    private final ConcurrentSkipListSet<String> files = new ConcurrentSkipListSet<>(); //nomi dei file, in ordine
+    private final DeltaListener listener;
+    private WatchService watcher;
+    private volatile boolean running = true;
+
+    public LocalIndex(String resourcesPath, DeltaListener listener) {
+        this.folder = Paths.get(resourcesPath);
+        this.listener = listener;
+    }
+
+    //Riempie l'indice con il contenuto attuale della cartella e avvia il thread che la osserva
+    //il contenuto iniziale non viene inviato al listener: il peer lo annuncia da sé all'avvio
+    public void start() throws IOException {
+        watcher = folder.getFileSystem().newWatchService();
+        //la registrazione avviene prima della scansione, così nessun file creato nel mezzo va perso
+        folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        files.addAll(scan());
+        Thread thread = new Thread(this::watch, "local-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //Ferma l'osservazione della cartella
+    public void stop() {
+        running = false;
+        try {
+            if (watcher != null) watcher.close();
+        } catch (IOException ignored) {}
+    }
+
+    //Nomi delle risorse locali in ordine alfabetico, letti dalla memoria
+    public List<String> list() {
+        return new ArrayList<>(files);
+    }
+
+    //Indica se la risorsa è presente nella cartella locale
+    public boolean contains(String name) {
+        return files.contains(name);
+    }
+
+    //Segna come presente una risorsa appena creata o scaricata dal peer stesso
+    //il peer la registra già sul master, quindi l'evento del WatchService non produrrà un secondo annuncio
+    public void markPresent(String name) {
+        files.add(name);
+    }
+
+    //I file temporanei dei download in corso non sono risorse
+    private static boolean isResource(String name) {
+        return !name.endsWith(".part");
+    }
+
+    //Legge il contenuto della cartella (usata all'avvio e quando il WatchService perde eventi)
+    private Set<String> scan() throws IOException {
+        Set<String> names = new TreeSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                if (Files.isRegularFile(p) && isResource(name)) names.add(name);
+            }
+        }
+        return names;
+    }
+
+    //Ciclo del thread che osserva la cartella
+    private void watch() {
+        Set<String> pending = new HashSet<>(); //nomi toccati dagli eventi dall'ultimo invio
+        long firstEvent = 0; //momento del primo evento non ancora inviato
+        while (running) {
+            WatchKey key;
+            try {
+                key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            if (key != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        //eventi persi: si confronta l'intera cartella con l'indice
+                        pending.addAll(files);
+                        try {
+                            pending.addAll(scan());
+                        } catch (IOException ignored) {}
+                        continue;
+                    }
+                    String name = ((Path) event.context()).getFileName().toString();
+                    if (isResource(name)) pending.add(name);
+                }
+                if (!key.reset()) return; //la cartella non è più accessibile
+                if (firstEvent == 0 && !pending.isEmpty()) firstEvent = System.currentTimeMillis();
+            }
+            //invia quando la cartella è ferma oppure quando gli eventi durano da troppo tempo
+            boolean quiet = key == null;
+            boolean overdue = firstEvent != 0 && System.currentTimeMillis() - firstEvent >= MAX_DELAY_MILLIS;
+            if (!pending.isEmpty() && (quiet || overdue)) {
+                flush(pending);
+                pending.clear();
+                firstEvent = 0;
+            }
+        }
+    }
+
+    //Confronta i nomi toccati con lo stato reale della cartella e invia solo le differenze
+    //più eventi sullo stesso file (es. creato e poi cancellato) si annullano a vicenda
+    private void flush(Set<String> pending) {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String name : pending) {
+            boolean exists = Files.isRegularFile(folder.resolve(name));
+            if (exists && files.add(name)) added.add(name);
+            else if (!exists && files.remove(name)) removed.add(name);
+        }
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            try {
+                listener.onDelta(added, removed);
+            } catch (RuntimeException e) {
+                System.err.println("[ERRORE] Aggiornamento delle risorse locali sul master non riuscito: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package Peer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//Cache locale delle posizioni delle risorse: per ogni risorsa i peer che la possiedono, come ricevuti dal master
+//un download ripetuto entro la durata della voce non chiede più i possessori al master. Una sorgente che fallisce
+//viene tolta dalla voce, e se non restano sorgenti la voce viene eliminata, così il tentativo successivo
+//chiede di nuovo al master
+public class LocationCache {
+
+    //voce della cache: sorgenti conosciute e momento di scadenza
+    private static final class Entry {
+        final List<SwarmDownloader.Source> sources; //non viene mai modificata: ogni cambiamento crea una nuova voce
+        final long expiresAt;
+
+        Entry(List<SwarmDownloader.Source> sources, long expiresAt) {
+            this.sources = sources;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis; //durata di una voce, 0 disattiva la cache
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public LocationCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    //Sorgenti conosciute della risorsa, null se non sono in cache o la voce è scaduta
+    public List<SwarmDownloader.Source> get(String resourceName) {
+        Entry entry = entries.get(resourceName);
+        if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+            hits.increment();
+            return entry.sources;
+        }
+        if (entry != null) entries.remove(resourceName, entry); //voce scaduta
+        misses.increment();
+        return null;
+    }
+
+    //Salva le sorgenti ricevute dal master
+    public void put(String resourceName, List<SwarmDownloader.Source> sources) {
+        if (ttlMillis <= 0 || sources.isEmpty()) return;
+        entries.put(resourceName, new Entry(List.copyOf(sources), System.currentTimeMillis() + ttlMillis));
+    }
+
+    //Toglie una sorgente che non ha fornito la risorsa; se non ne restano, elimina la voce
+    public void invalidate(String resourceName, String sourceName) {
+        entries.computeIfPresent(resourceName, (res, entry) -> {
+            List<SwarmDownloader.Source> remaining = new ArrayList<>(entry.sources);
+            remaining.removeIf(s -> s.name.equals(sourceName));
+            return remaining.isEmpty() ? null : new Entry(List.copyOf(remaining), entry.expiresAt);
+        });
+    }
+
+    //Elimina la voce della risorsa
+    public void invalidate(String resourceName) {
+        entries.remove(resourceName);
+    }
+
+    //Riepilogo mostrato dopo prefetch
+    public String stats() {
+        return "Posizioni in cache: " + entries.size() + ", hit: " + hits.sum() + ", miss: " + misses.sum();
+    }
+}
@@ -0,0 +1,175 @@
+package Peer;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Descrizione di una risorsa divisa in blocchi di dimensione fissa, con l'hash SHA-256 di ogni blocco
+//il peer che scarica controlla ogni blocco ricevuto con il suo hash: così un file troncato o corrotto non viene mai
+//registrato, e dopo un download fallito i blocchi già verificati nel file ".part" vengono tenuti e non riscaricati.
+//Il PeerServer tiene in memoria i manifest già calcolati e li ricalcola solo se il file cambia
+public class Manifest {
+
+    //dimensione di ogni blocco
+    static final int CHUNK_SIZE = 1024 * 1024;
+    //lunghezza di un hash SHA-256
+    private static final int HASH_BYTES = 32;
+    //limiti accettati per un manifest ricevuto da un altro peer, controllati prima di allocare qualsiasi buffer:
+    //blocchi di al massimo 16 MiB e al massimo 2^20 blocchi (32 MiB di hash, file fino a 1 TiB con i blocchi predefiniti)
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final long MAX_CHUNKS = 1 << 20;
+
+    //manifest già calcolati, per percorso del file
+    private static final ConcurrentHashMap<Path, Manifest> cache = new ConcurrentHashMap<>();
+
+    private final long size; //dimensione del file
+    private final int chunkSize; //dimensione dei blocchi
+    private final byte[] hashes; //hash dei blocchi, uno dopo l'altro
+    private final long lastModified; //data di modifica del file da cui è stato calcolato (solo per la cache)
+
+    private Manifest(long size, int chunkSize, byte[] hashes, long lastModified) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.hashes = hashes;
+        this.lastModified = lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    //Numero di blocchi (l'ultimo può essere più corto)
+    public int getChunkCount() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    //Posizione e lunghezza del blocco indicato
+    public long chunkOffset(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    public int chunkLength(int chunk) {
+        return (int) Math.min(chunkSize, size - chunkOffset(chunk));
+    }
+
+    //Manifest del file locale, preso dalla cache se il file non è cambiato dall'ultimo calcolo
+    //il calcolo di un file grande richiede molto tempo, quindi si fa senza il lock sul file: chi chiama controlla poi
+    //con isCurrent, tenendo il lock in lettura, che il file non sia cambiato nel frattempo
+    static Manifest of(Path file) throws IOException {
+        long size = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        Manifest cached = cache.get(file);
+        if (cached != null && cached.size == size && cached.lastModified == lastModified) return cached;
+        Manifest computed = compute(file, size, lastModified);
+        cache.put(file, computed);
+        return computed;
+    }
+
+    //true se il file ha ancora la dimensione e la data di modifica da cui è stato calcolato il manifest
+    boolean isCurrent(Path file) throws IOException {
+        return Files.size(file) == size && Files.getLastModifiedTime(file).toMillis() == lastModified;
+    }
+
+    //Salva nella cache il manifest di un file appena scaricato e verificato, così non va ricalcolato quando
+    //questo peer diventa a sua volta sorgente
+    static void remember(Path file, Manifest manifest) {
+        try {
+            cache.put(file, new Manifest(manifest.size, manifest.chunkSize, manifest.hashes,
+                    Files.getLastModifiedTime(file).toMillis()));
+        } catch (IOException ignored) {}
+    }
+
+    //Calcola gli hash di tutti i blocchi del file
+    private static Manifest compute(Path file, long size, long lastModified) throws IOException {
+        Manifest shape = new Manifest(size, CHUNK_SIZE, null, lastModified);
+        byte[] hashes = new byte[shape.getChunkCount() * HASH_BYTES];
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int i = 0; i < shape.getChunkCount(); i++) {
+                byte[] hash = hashRegion(channel, shape.chunkOffset(i), shape.chunkLength(i), buffer);
+                if (hash == null) throw new IOException("file accorciato durante il calcolo del manifest");
+                System.arraycopy(hash, 0, hashes, i * HASH_BYTES, HASH_BYTES);
+            }
+        }
+        return new Manifest(size, CHUNK_SIZE, hashes, lastModified);
+    }
+
+    //Controlla che il blocco indicato, già scritto in channel, abbia l'hash atteso
+    //(usato alla ripresa di un download per i blocchi del file ".part")
+    boolean verify(FileChannel channel, int chunk, ByteBuffer buffer) throws IOException {
+        byte[] hash = hashRegion(channel, chunkOffset(chunk), chunkLength(chunk), buffer);
+        return hash != null && Arrays.equals(hash, 0, HASH_BYTES, hashes, chunk * HASH_BYTES, (chunk + 1) * HASH_BYTES);
+    }
+
+    //Controlla che i byte del blocco ricevuti in memoria (dalla posizione al limite di data) abbiano l'hash atteso
+    //così il blocco viene verificato prima di scriverlo, senza rileggerlo dal disco
+    boolean matches(int chunk, ByteBuffer data) {
+        if (data.remaining() != chunkLength(chunk)) return false;
+        MessageDigest digest = sha256();
+        digest.update(data.duplicate());
+        return Arrays.equals(digest.digest(), 0, HASH_BYTES, hashes, chunk * HASH_BYTES, (chunk + 1) * HASH_BYTES);
+    }
+
+    //Hash SHA-256 di length byte a partire da offset, oppure null se il file è più corto
+    private static byte[] hashRegion(FileChannel channel, long offset, int length, ByteBuffer buffer) throws IOException {
+        MessageDigest digest = sha256();
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) return null;
+        }
+        buffer.flip();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //SHA-256 è sempre disponibile nella JVM
+        }
+    }
+
+    //Invia il manifest: dimensione (8 byte), dimensione dei blocchi (4 byte) e gli hash
+    void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + hashes.length);
+        buffer.putLong(size).putInt(chunkSize).put(hashes).flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    //Legge il manifest inviato da writeTo; ritorna null se il peer sorgente non possiede la risorsa (dimensione -1)
+    //i valori ricevuti vengono controllati prima di allocare gli hash e i buffer dei blocchi
+    static Manifest readFrom(ReadableByteChannel channel) throws IOException {
+        long size = readFully(channel, ByteBuffer.allocate(Long.BYTES)).getLong();
+        if (size == -1) return null;
+        int chunkSize = readFully(channel, ByteBuffer.allocate(Integer.BYTES)).getInt();
+        if (size < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("manifest non valido (dimensione " + size + ", blocchi da " + chunkSize + " byte)");
+        }
+        long chunks = size / chunkSize + (size % chunkSize == 0 ? 0 : 1);
+        if (chunks > MAX_CHUNKS) throw new IOException("manifest con troppi blocchi: " + chunks);
+        byte[] hashes = new byte[(int) chunks * HASH_BYTES];
+        readFully(channel, ByteBuffer.wrap(hashes));
+        return new Manifest(size, chunkSize, hashes, 0);
+    }
+
+    private static ByteBuffer readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("manifest incompleto dal peer");
+        }
+        return buffer.flip();
+    }
+}
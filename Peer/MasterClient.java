@@ -0,0 +1,349 @@
+package Peer;
+import Protocol.Wire;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Connessione del peer verso il master con richieste in pipeline
+//ogni comando viene inviato come "#<id> <comando>" e le righe di risposta tornano con lo stesso prefisso:
+//un thread lettore le smista alla richiesta giusta, quindi più comandi possono essere in corso insieme
+//sulla stessa connessione e le risposte possono arrivare in qualsiasi ordine
+//
+//Se il formato binario è attivo (predefinito), hello chiede al master "proto=<versione>": se il master risponde con
+//"PROTO <versione>" da lì in poi i comandi vengono inviati come frame binari (Protocol.Wire) e le risposte vengono
+//riconvertite nelle stesse righe di testo, così il resto del peer non cambia. Un master che non conosce il formato
+//ignora l'opzione e la connessione resta in testo. Durante l'handshake gli altri comandi aspettano la risposta a hello
+public class MasterClient implements Closeable {
+
+    //stato della connessione: testo, hello con "proto" inviato e risposta non ancora arrivata, binario
+    private static final int TEXT = 0;
+    private static final int HANDSHAKE = 1;
+    private static final int BINARY = 2;
+
+    //se false hello non chiede il formato binario (opzione --protocol=text del peer)
+    private static volatile boolean binaryRequested = true;
+
+    private final Socket socket; // socket di connessione al master
+    private final OutputStream out; // stream di output verso il master (bufferizzato, un flush per comando)
+    private final Wire.Reader in; // stream di input dal master (righe di testo e frame binari)
+    private final AtomicLong nextId = new AtomicLong(); //identificativo della prossima richiesta
+    //richieste in attesa di risposta, con le righe ricevute finora
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private volatile boolean connected = true; //diventa false quando la connessione cade
+    private int mode = TEXT; //protetto dal lock su out
+
+    //righe ricevute per una richiesta e risultato da completare all'arrivo di END
+    private static class Pending {
+        final List<String> lines = new ArrayList<>();
+        final CompletableFuture<List<String>> result = new CompletableFuture<>();
+        boolean handshake; //hello che ha chiesto il formato binario
+        int op; //codice del comando inviato in formato binario
+        String[] parts; //parole del comando, usate per ricostruire le righe della risposta binaria
+    }
+
+    public MasterClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new Wire.Reader(socket.getInputStream());
+        Thread reader = new Thread(this::readResponses, "master-reader");
+        reader.setDaemon(true); //non impedisce la terminazione del peer
+        reader.start();
+    }
+
+    //Sceglie il formato chiesto dalle connessioni aperte dopo la chiamata: "binary" (predefinito) o "text"
+    public static void setProtocol(String name) {
+        switch (name) {
+            case "binary" -> binaryRequested = true;
+            case "text" -> binaryRequested = false;
+            default -> throw new IllegalArgumentException("Protocollo sconosciuto: " + name);
+        }
+    }
+
+    //Invia un comando senza attendere la risposta
+    //il risultato si completa con le righe della risposta (senza END) quando il master la invia
+    public CompletableFuture<List<String>> send(String command) {
+        return send(command, List.of());
+    }
+
+    //Invia un comando seguito da righe di dati (es. i nomi delle risorse di ADD_BATCH)
+    //comando e righe vengono scritti insieme, senza che altre richieste si inseriscano in mezzo
+    public CompletableFuture<List<String>> send(String command, List<String> dataLines) {
+        long id = nextId.incrementAndGet();
+        Pending p = new Pending();
+        pending.put(id, p);
+        try {
+            synchronized (out) {
+                while (mode == HANDSHAKE && connected) out.wait(); //aspetta la risposta a hello
+                if (!connected) throw new IOException("connessione al master chiusa");
+                if (mode == BINARY) {
+                    encode(id, command, dataLines, p).writeTo(out);
+                } else {
+                    String line = "#" + id + " " + command;
+                    if (binaryRequested && isHello(command)) {
+                        line += " proto=" + Wire.VERSION;
+                        p.handshake = true;
+                        mode = HANDSHAKE;
+                    }
+                    writeLine(line);
+                    for (String data : dataLines) writeLine(data);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            p.result.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.remove(id);
+            p.result.completeExceptionally(new InterruptedIOException("invio interrotto"));
+        }
+        if (p.op == Wire.QUIT) { //il master chiude la connessione senza rispondere
+            pending.remove(id);
+            p.result.complete(new ArrayList<>());
+        }
+        return p.result;
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    private static boolean isHello(String command) {
+        String[] parts = command.trim().split("\\s+");
+        return parts.length == 3 && parts[0].equalsIgnoreCase("hello");
+    }
+
+    //Invia un comando e attende la risposta
+    public List<String> request(String command) throws IOException {
+        return await(send(command));
+    }
+
+    //Attende il risultato di una richiesta inviata con send
+    public static List<String> await(CompletableFuture<List<String>> response) throws IOException {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("attesa della risposta interrotta");
+        }
+    }
+
+    //Indica se la connessione con il master è ancora attiva
+    public boolean isConnected() {
+        return connected;
+    }
+
+    //Ciclo del thread lettore: assegna ogni riga "#<id> ..." alla richiesta corrispondente
+    //dopo un handshake riuscito legge i frame binari dallo stesso stream
+    private void readResponses() {
+        try {
+            boolean binary = false;
+            String line;
+            while (!binary && (line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (!line.startsWith("#") || space < 0) continue; //riga senza identificativo: ignorata
+                long id;
+                try {
+                    id = Long.parseLong(line.substring(1, space));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                String content = line.substring(space + 1);
+                Pending p = pending.get(id);
+                if (p == null) continue;
+                if (content.equals("END")) { //risposta completa
+                    pending.remove(id);
+                    if (p.handshake) binary = finishHandshake(p.lines);
+                    p.result.complete(p.lines);
+                } else {
+                    p.lines.add(content);
+                }
+            }
+            while (binary && in.next()) {
+                int status = in.readByte();
+                long id = in.readVarint();
+                if (status == Wire.MORE) { //parte di una risposta lunga: le righe si accumulano fino al frame finale
+                    Pending p = pending.get(id);
+                    if (p != null) readLines(p.lines);
+                    continue;
+                }
+                Pending p = pending.remove(id);
+                if (p != null) p.result.complete(decode(status, p));
+            }
+        } catch (IOException ignored) {
+            //la connessione è caduta: le richieste in attesa falliscono qui sotto
+        } finally {
+            connected = false;
+            synchronized (out) {
+                out.notifyAll(); //sblocca i comandi in attesa dell'handshake
+            }
+            IOException closed = new IOException("connessione al master chiusa");
+            pending.values().forEach(p -> p.result.completeExceptionally(closed));
+            pending.clear();
+        }
+    }
+
+    //Risposta a hello con "proto": se contiene "PROTO <versione>" la connessione passa al formato binario
+    //la riga viene tolta dalla risposta, che resta uguale a quella di un hello normale
+    private boolean finishHandshake(List<String> lines) {
+        boolean accepted = lines.remove("PROTO " + Wire.VERSION);
+        synchronized (out) {
+            mode = accepted ? BINARY : TEXT;
+            out.notifyAll();
+        }
+        return accepted;
+    }
+
+    //Converte un comando testuale nel frame binario corrispondente (campi descritti in Protocol.Wire)
+    //i comandi non riconosciuti o con parametri non validi vengono inviati come TEXT e il master risponde come in testo
+    private static Wire.Writer encode(long id, String command, List<String> dataLines, Pending p) {
+        String[] q = command.trim().split("\\s+");
+        p.parts = q;
+        p.op = opcodeOf(q, dataLines);
+        Wire.Writer w = new Wire.Writer(p.op, id);
+        switch (p.op) {
+            case Wire.HELLO -> w.writeString(q[1]).writeVarint(Integer.parseInt(q[2]));
+            case Wire.HEARTBEAT, Wire.LISTPEER -> w.writeString(q[1]);
+            case Wire.ADD, Wire.DOWNLOAD, Wire.CHECK, Wire.UPDATEFAIL -> w.writeString(q[1]).writeString(q[2]);
+            case Wire.SOURCES -> w.writeString(q[1]).writeString(q[2])
+                    .writeVarint(q.length >= 4 && q[3].equalsIgnoreCase("lookup") ? 1 : 0);
+            case Wire.ADD_BATCH, Wire.REMOVE_BATCH -> writeLines(w.writeString(q[1]), dataLines);
+            case Wire.DOWNLOAD_RESULT -> w.writeString(q[1]).writeString(q[2]).writeString(q[3]).writeString(q[4]);
+            case Wire.LISTDATA -> {
+                String prefix = "";
+                int limit = 0;
+                String after = "";
+                for (int i = 1; i < q.length; i++) {
+                    if (q[i].startsWith("prefix=")) prefix = q[i].substring("prefix=".length());
+                    else if (q[i].startsWith("limit=")) limit = Integer.parseInt(q[i].substring("limit=".length()));
+                    else if (q[i].startsWith("after=")) after = q[i].substring("after=".length());
+                }
+                w.writeString(prefix).writeVarint(limit).writeString(after);
+            }
+            case Wire.TEXT -> writeLines(w.writeString(command), dataLines);
+            default -> { } //STATS e QUIT non hanno campi
+        }
+        return w;
+    }
+
+    //Codice binario del comando, TEXT se il comando va inviato come testo
+    private static int opcodeOf(String[] q, List<String> dataLines) {
+        int n = q.length;
+        switch (q[0].toLowerCase()) {
+            case "hello":
+                return n >= 3 && isNumber(q[2]) ? Wire.HELLO : Wire.TEXT;
+            case "heartbeat":
+                return n >= 2 ? Wire.HEARTBEAT : Wire.TEXT;
+            case "add":
+                return n >= 3 ? Wire.ADD : Wire.TEXT;
+            case "add_batch":
+                return n == 3 && q[2].equals(String.valueOf(dataLines.size())) ? Wire.ADD_BATCH : Wire.TEXT;
+            case "remove_batch":
+                return n == 3 && q[2].equals(String.valueOf(dataLines.size())) ? Wire.REMOVE_BATCH : Wire.TEXT;
+            case "download":
+                return n >= 3 ? Wire.DOWNLOAD : Wire.TEXT;
+            case "sources":
+                return n >= 3 ? Wire.SOURCES : Wire.TEXT;
+            case "check":
+                return n >= 3 ? Wire.CHECK : Wire.TEXT;
+            case "updatefail":
+                return n >= 3 ? Wire.UPDATEFAIL : Wire.TEXT;
+            case "download_result":
+                return n >= 5 ? Wire.DOWNLOAD_RESULT : Wire.TEXT;
+            case "listdata":
+                for (int i = 1; i < n; i++) {
+                    if (q[i].startsWith("limit=") && !isNumber(q[i].substring("limit=".length()))) return Wire.TEXT;
+                }
+                return Wire.LISTDATA;
+            case "listpeer":
+                return n >= 2 ? Wire.LISTPEER : Wire.TEXT;
+            case "stats":
+                return Wire.STATS;
+            case "quit":
+                return Wire.QUIT;
+            default:
+                return Wire.TEXT;
+        }
+    }
+
+    private static boolean isNumber(String s) {
+        if (s.isEmpty() || s.length() > 9) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static void writeLines(Wire.Writer w, List<String> lines) {
+        w.writeVarint(lines.size());
+        for (String line : lines) w.writeString(line);
+    }
+
+    //Ricostruisce dalla risposta binaria le righe che il master avrebbe inviato in testo
+    //le righe si aggiungono a quelle degli eventuali frame MORE già ricevuti
+    private List<String> decode(int status, Pending p) throws IOException {
+        List<String> lines = p.lines;
+        String[] q = p.parts;
+        if (status == Wire.ERROR) {
+            lines.add(in.readString());
+            return lines;
+        }
+        switch (p.op) {
+            case Wire.HELLO -> {
+                lines.add("REGISTERED " + q[1]);
+                long lease = in.readVarint();
+                if (lease > 0) lines.add("LEASE " + lease);
+            }
+            case Wire.HEARTBEAT -> lines.add(status == Wire.OK ? "OK" : "ERRORE: Peer non registrato");
+            case Wire.ADD -> lines.add(in.readVarint() == 1
+                    ? "Risorsa '" + q[1] + "' ora associata al peer '" + q[2] + "'."
+                    : "Risorsa '" + q[1] + "' è già associata al peer '" + q[2] + "'.");
+            case Wire.ADD_BATCH, Wire.REMOVE_BATCH -> lines.add("BATCH_OK " + in.readVarint() + " " + in.readVarint());
+            case Wire.DOWNLOAD -> lines.add(readSource());
+            case Wire.SOURCES -> {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) lines.add(readSource());
+            }
+            case Wire.CHECK -> lines.add(status == Wire.OK ? "ASSOCIATED" : "NOT_ASSOCIATED");
+            case Wire.UPDATEFAIL -> lines.add("OK: Risorsa rimossa dal peer " + q[2]);
+            case Wire.DOWNLOAD_RESULT -> { } //nessuna risposta, come in testo
+            case Wire.LISTDATA -> {
+                readLines(lines);
+                String next = in.readString();
+                if (!next.isEmpty()) lines.add("NEXT " + next);
+            }
+            case Wire.LISTPEER -> {
+                readLines(lines);
+                if (lines.isEmpty()) lines.add("Nessuna risorsa associata al peer '" + q[1] + "'.");
+            }
+            default -> readLines(lines); //STATS e TEXT
+        }
+        return lines;
+    }
+
+    private String readSource() throws IOException {
+        return "PEER " + in.readString() + " " + in.readString() + " " + in.readVarint();
+    }
+
+    private void readLines(List<String> lines) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) lines.add(in.readString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        connected = false;
+        socket.close();
+    }
+}
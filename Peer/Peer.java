@@ -1,49 +1,118 @@
 package Peer;
 import java.io.*;
-import java.net.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Peer {// classe principale Peer
-    private static Socket socket;// socket di connessione al master
-    private static PrintWriter out;// stream di output verso il master
-    private static BufferedReader in;// stream di input dal master
-    private static boolean connectedToMaster = false; //booleano per verificare la connessione con il master
+    //connessione al master: i comandi viaggiano con un identificativo e possono essere in corso più richieste insieme
+    //con più master (opzione --shards) ogni comando viene inviato al master responsabile della risorsa
+    private static volatile ShardRouter master;
+    private static final List<String> masterAddresses = new ArrayList<>(); //"host:porta" dei master, usati per riconnettersi
+    //replica del master a cui inviare le richieste di sola lettura (sources, listdata, listpeer), null se non indicata
+    private static String readFrom;
+    private static volatile MasterClient reader;
+    //true se delle modifiche alla cartella non sono state inviate perché il master non era raggiungibile
+    private static volatile boolean deltasLost = false;
+    //indice in memoria delle risorse locali, aggiornato osservando la cartella
+    private static LocalIndex localIndex;
+    //posizioni delle risorse ricevute dal master, riusate dai download successivi finché non scadono
+    private static LocationCache locations;
+    private static volatile boolean connectedToMaster = false; //booleano per verificare la connessione con il master
     private static final String resourcesPath = "Peer/resources";//cartella risorse locali
     private static String peerName; //nome del peer
     private static int localPort; //porta del peer
+    //risorse chieste al master per ogni pagina di "listdata remote"
+    private static final int REMOTE_PAGE = 500;
+    //risorse al massimo in un ADD_BATCH o REMOVE_BATCH: gli elenchi più lunghi vengono divisi (il master ne accetta 100000)
+    private static final int BATCH_SIZE = 10_000;
 
     public static void main(String[] args) {// avvio del peer
         if (args.length < 4) {//controlla che ci siano almeno 4 elementi
-            System.err.println("[USO]: java Peer <host_master> <porta_master> <peerName> <porta_locale>");
+            System.err.println("[USO]: java Peer <host_master> <porta_master> <peerName> <porta_locale> [--max-upload=N]"
+                    + " [--compress=none|deflate-fast,deflate,...] [--cache-mb=N] [--cache-policy=lru|tinylfu]"
+                    + " [--location-ttl=<secondi>] [--shards=<host:porta>,...] [--read-from=<host:porta>]"
+                    + " [--protocol=binary|text]");
             return;
         }
 
         String host = args[0];//estrae l'indirizzo IP
         int port = Integer.parseInt(args[1]);//estrae la porta del master e la converte in int
+        masterAddresses.add(host + ":" + port);
         peerName = args[2];//estrae nome del peer
         localPort = Integer.parseInt(args[3]);// estrae porta del peer e la converte in int
+        int maxUploads = PeerServer.DEFAULT_MAX_UPLOADS; //upload contemporanei consentiti al PeerServer
+        long cacheMb = 0; //dimensione della cache dei file serviti (0 = disattivata)
+        String cachePolicy = "tinylfu"; //politica di rimpiazzo della cache
+        long locationTtl = 60; //durata in secondi delle posizioni delle risorse in cache (0 = disattivata)
+        for (int i = 4; i < args.length; i++) { //opzioni facoltative
+            if (args[i].startsWith("--max-upload=")) {
+                maxUploads = Integer.parseInt(args[i].substring("--max-upload=".length()));
+            } else if (args[i].startsWith("--compress=")) {
+                //codec accettati nei download, in ordine di preferenza
+                Compression.setAccepted(args[i].substring("--compress=".length()));
+            } else if (args[i].startsWith("--cache-mb=")) {
+                cacheMb = Long.parseLong(args[i].substring("--cache-mb=".length()));
+            } else if (args[i].startsWith("--cache-policy=")) {
+                cachePolicy = args[i].substring("--cache-policy=".length());
+            } else if (args[i].startsWith("--location-ttl=")) {
+                locationTtl = Long.parseLong(args[i].substring("--location-ttl=".length()));
+            } else if (args[i].startsWith("--shards=")) {
+                //altri master tra cui dividere le risorse, oltre a quello indicato per primo
+                for (String shard : args[i].substring("--shards=".length()).split(",")) {
+                    if (!shard.isBlank() && !masterAddresses.contains(shard.trim())) masterAddresses.add(shard.trim());
+                }
+            } else if (args[i].startsWith("--read-from=")) {
+                readFrom = args[i].substring("--read-from=".length());
+            } else if (args[i].startsWith("--protocol=")) {
+                //formato dei comandi verso il master: binario se il master lo supporta (predefinito) oppure testo
+                MasterClient.setProtocol(args[i].substring("--protocol=".length()));
+            } else {
+                System.err.println("[ERRORE] Opzione sconosciuta: " + args[i]);
+                return;
+            }
+        }
+
+        if (readFrom != null && masterAddresses.size() > 1) {
+            //le repliche seguono un solo primario: con più master le letture vanno ai master stessi
+            System.err.println("[ERRORE] --read-from non può essere usato insieme a --shards");
+            return;
+        }
 
+        locations = new LocationCache(locationTtl * 1000);
         try {
             // connessione al master
-            socket = new Socket(host, port);// crea la socket di connessione al master
-            out = new PrintWriter(socket.getOutputStream(), true);//stream di output verso il master
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));//stream di input dal master
+            master = new ShardRouter(masterAddresses);// crea le connessioni ai master e i thread che ne leggono le risposte
             connectedToMaster = true; //imposto il booleano per la verifica della connessione su true
-            System.out.println("Connesso al master su " + host + ":" + port + " come " + peerName); //messaggio informativo su console
+            if (master.size() == 1) {
+                System.out.println("Connesso al master su " + host + ":" + port + " come " + peerName); //messaggio informativo su console
+            } else {
+                System.out.println("Connesso a " + master.size() + " master (" + String.join(", ", masterAddresses) + ") come " + peerName);
+            }
 
-            PeerServer server = new PeerServer(localPort);//istanzia il server locale del peer con la porta locale
+            //cache in memoria dei file più richiesti, se attivata
+            ContentCache cache = cacheMb > 0 ? new ContentCache(cacheMb * 1024 * 1024, EvictionPolicy.forName(cachePolicy)) : null;
+            PeerServer server = new PeerServer(localPort, maxUploads, cache);//istanzia il server locale del peer con la porta locale
             new Thread(server).start();// avvia PeerServer in un thread separato: il peer può servire richieste contemporaneamente all'interazione con il master
 
 
             // invia al master il messaggio di registrazione con nome peer e porta local
-            out.println("hello " + peerName + " " + localPort);
-            out.flush();
-            receiveResponse(); //legge dal master la risposta
+            long leaseSeconds = register(true); //legge dal master la risposta, con l'eventuale durata del lease
+            if (readFrom != null) connectReader();
 
             // crea oggetto file relativo alla directory
             File folder = new File(resourcesPath);
             //se non esiste, la crea
             if (!folder.exists()) folder.mkdir();
+            //avvia l'osservazione della cartella: i file aggiunti o rimossi in seguito vengono comunicati al master
+            localIndex = new LocalIndex(resourcesPath, Peer::sendDelta);
+            localIndex.start();
+            //annuncia al master in un solo comando tutte le risorse già presenti nella cartella
+            announceLocalResources(true);
+            //se il master usa i lease, li rinnova periodicamente con heartbeat
+            if (leaseSeconds > 0) startHeartbeat(leaseSeconds);
             //Scanner per leggere i comandi da console
             Scanner scanner = new Scanner(System.in);
             //flag per il ciclo principale dei comandi
@@ -58,8 +127,10 @@ public class Peer {// classe principale Peer
                 switch (parts[0].toLowerCase()) { //switch sul comando
                     //Comando quit
                     case "quit": // termina il peer
-                        out.println("quit " + peerName); //invia al master il comando di disconnessione per questo peer
-                        socket.close(); //chiude il socket verso il master
+                        master.send("quit " + peerName); //invia al master il comando di disconnessione per questo peer
+                        master.close(); //chiude il socket verso il master
+                        if (reader != null) reader.close(); //e quello verso la replica
+                        localIndex.stop(); //smette di osservare la cartella delle risorse
                         server.stopServer(); //chiama stopServer che termina il peerServer e chiude la sua ServerSocket
                         running = false; //imposta il flag per uscire dal loop
                         scanner.close();//chiude lo scanner
@@ -70,11 +141,11 @@ public class Peer {// classe principale Peer
                     case "listdata":
                         if (parts.length < 2) {
                             //se manca l'argomento, ritorna l'uso corretto
-                            System.out.println("Uso: listdata local|remote");
+                            System.out.println("Uso: listdata local|remote [prefisso]");
                             break;
                         }
                         if (parts[1].equalsIgnoreCase("local")) {
-                            //se local chiama listLocalResources() per elencare le risorse nella cartella locale
+                            //se local chiama listLocalResources() per elencare le risorse locali dall'indice in memoria
                             listLocalResources();
                         } else if (parts[1].equalsIgnoreCase("remote")) {
                             //se remote
@@ -83,9 +154,8 @@ public class Peer {// classe principale Peer
                                 System.err.println("[ERRORE] Il master non è raggiungibile. Operazione non disponibile.");
                                 break;
                             }
-                            out.println("listdata remote"); //invia il comando al master
-                            out.flush();
-                            boolean hasRemote = receiveResponse(); //legge la risposta con receiveResponse()
+                            //chiede al master le risorse una pagina alla volta, eventualmente solo quelle con il prefisso indicato
+                            boolean hasRemote = listRemoteResources(parts.length >= 3 ? parts[2].trim() : "");
                             if (!hasRemote) System.out.println("Nessuna risorsa remota."); //se non stampa nulla, informa l'utente
                         }
                         break;
@@ -125,6 +195,39 @@ public class Peer {// classe principale Peer
                         }
                         break;
 
+                    //Comando listpeer: mostra le risorse che il master associa a un peer (di default questo peer)
+                    case "listpeer":
+                        if (!connectedToMaster) {
+                            System.err.println("[ERRORE] Il master non è raggiungibile. Operazione non disponibile.");
+                            break;
+                        }
+                        try {
+                            printResponse(lookup("listpeer " + (parts.length >= 2 ? parts[1] : peerName)));
+                        } catch (IOException e) {
+                            System.err.println("[ERRORE] Connessione al master persa.");
+                            connectedToMaster = false;
+                        }
+                        break;
+
+                    //Comando prefetch: chiede al master in un colpo solo i possessori di più risorse e li salva in cache
+                    case "prefetch":
+                        if (!connectedToMaster) {
+                            System.err.println("[ERRORE] Il master non è raggiungibile. Operazione non disponibile.");
+                            break;
+                        }
+                        String names = command.substring(parts[0].length()).trim();
+                        if (names.isEmpty()) {
+                            System.out.println("Uso: prefetch <nome> [nome...]");
+                        } else {
+                            prefetch(names.split("\\s+"));
+                        }
+                        break;
+
+                    //Comando cache: mostra lo stato della cache dei file serviti
+                    case "cache":
+                        System.out.println(cache == null ? "Cache disattivata (opzione --cache-mb)." : cache.stats());
+                        break;
+
                     default:
                         System.out.println("Comando sconosciuto.");
                 }
@@ -134,24 +237,208 @@ public class Peer {// classe principale Peer
             System.err.println("Connessione al master persa o chiusa: " + e.getMessage());
             // chiusura della socket, ignorando eccezioni
             try {
-                if (socket != null && !socket.isClosed()) socket.close();
+                if (master != null) master.close();
             } catch (IOException ignored) {
             }
             System.out.println("Terminazione del peer a causa della disconnessione dal master.");
             System.exit(0); //ferma il loop e termina il programma
         }
     }
+    //Metodo che registra il peer sul master con hello e ne stampa la risposta
+    //restituisce la durata del lease in secondi (riga "LEASE <secondi>"), 0 se il master non usa i lease
+    //con verbose false (registrazioni fatte in background dal thread degli heartbeat) stampa solo gli errori,
+    //così la console dell'utente non riceve righe mentre sta scrivendo un comando
+    private static long register(boolean verbose) throws IOException {
+        long leaseSeconds = 0;
+        for (String line : master.request("hello " + peerName + " " + localPort)) {
+            if (line.startsWith("LEASE ")) leaseSeconds = Long.parseLong(line.substring("LEASE ".length()).trim());
+            else if (verbose || line.startsWith("ERRORE")) System.out.println(line);
+        }
+        return leaseSeconds;
+    }
+
+    //Metodo che avvia l'invio periodico di heartbeat al master, tre volte per ogni durata del lease
+    //se il master risponde che il peer non è registrato (lease scaduto), il peer si registra di nuovo e riannuncia le risorse
+    //se la connessione è caduta (ad esempio il master è stato riavviato), il peer prova a riconnettersi
+    private static void startHeartbeat(long leaseSeconds) {
+        long period = Math.max(1, leaseSeconds / 3);
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heartbeat");
+            t.setDaemon(true); //non impedisce la terminazione del peer
+            return t;
+        });
+        heartbeat.scheduleAtFixedRate(() -> {
+            //la replica per le letture viene ricollegata se la connessione è caduta
+            if (readFrom != null && (reader == null || !reader.isConnected())) connectReader();
+            if (!master.isConnected()) {
+                try {
+                    reconnect();
+                } catch (IOException e) {
+                    connectedToMaster = false; //il master non è ancora tornato, si riprova al prossimo heartbeat
+                }
+                return;
+            }
+            try {
+                List<String> response = master.request("heartbeat " + peerName);
+                if (!response.isEmpty() && response.get(0).startsWith("ERRORE")) {
+                    register(false);
+                    announceLocalResources(false);
+                }
+            } catch (IOException e) {
+                connectedToMaster = false; //il master non è più raggiungibile
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    //Metodo che stampa le risorse remote chiedendole al master a pagine di REMOTE_PAGE righe
+    //ogni pagina termina con "NEXT <token>" se ce ne sono altre; ritorna true se è stata stampata almeno una risorsa
+    private static boolean listRemoteResources(String prefix) {
+        boolean printed = false;
+        String after = null;
+        try {
+            do {
+                List<String> lines = lookup("listdata remote limit=" + REMOTE_PAGE
+                        + (prefix.isEmpty() ? "" : " prefix=" + prefix) + (after == null ? "" : " after=" + after));
+                after = null;
+                if (!lines.isEmpty() && lines.get(lines.size() - 1).startsWith("NEXT ")) {
+                    after = lines.remove(lines.size() - 1).substring("NEXT ".length());
+                }
+                printed |= printResponse(lines);
+            } while (after != null);
+        } catch (IOException e) {
+            System.err.println("[ERRORE] Connessione al master persa.");
+            connectedToMaster = false;
+        }
+        return printed;
+    }
+
+    //Metodo che estrae le sorgenti dalle righe "PEER <nome> <ip> <porta>" della risposta a sources
+    private static List<SwarmDownloader.Source> parseSources(List<String> lines) {
+        List<SwarmDownloader.Source> sources = new ArrayList<>();
+        for (String line : lines) {
+            String[] parts = line.split("\\s+");
+            if (parts.length >= 4 && parts[0].equals("PEER")) {
+                sources.add(new SwarmDownloader.Source(parts[1], parts[2], Integer.parseInt(parts[3])));
+            }
+        }
+        return sources;
+    }
+
+    //Metodo che riempie la cache delle posizioni per più risorse
+    //le richieste partono tutte insieme sulla connessione con il master e le risposte vengono attese alla fine
+    private static void prefetch(String[] names) throws IOException {
+        Map<String, CompletableFuture<List<String>>> pending = new LinkedHashMap<>();
+        for (String name : names) pending.put(name, lookupAsync("sources " + name + " " + peerName + " lookup"));
+        int found = 0;
+        for (Map.Entry<String, CompletableFuture<List<String>>> e : pending.entrySet()) {
+            List<SwarmDownloader.Source> sources = parseSources(MasterClient.await(e.getValue()));
+            if (sources.isEmpty()) continue;
+            locations.put(e.getKey(), sources);
+            found++;
+        }
+        System.out.println("Posizioni di " + found + "/" + pending.size() + " risorse salvate in cache. " + locations.stats());
+    }
+
+    //Metodo che apre la connessione con la replica indicata da --read-from
+    //se la replica non è raggiungibile le letture vanno al master, e si riprova al prossimo heartbeat
+    private static void connectReader() {
+        int colon = readFrom.lastIndexOf(':');
+        try {
+            reader = new MasterClient(readFrom.substring(0, colon), Integer.parseInt(readFrom.substring(colon + 1)));
+        } catch (IOException e) {
+            reader = null;
+        }
+    }
+
+    //Metodo che invia una richiesta di sola lettura: alla replica se è collegata, altrimenti al master.
+    //Si chiede al master anche se la replica non risponde o risponde con un errore: una replica non sincronizzata
+    //rifiuta le letture, e una replica indietro di qualche modifica può non conoscere ancora una risorsa
+    private static CompletableFuture<List<String>> lookupAsync(String command) {
+        MasterClient r = reader;
+        if (r == null || !r.isConnected()) return master.send(command);
+        return r.send(command)
+                .handle((lines, e) -> e == null && (lines.isEmpty() || !lines.get(0).startsWith("ERRORE"))
+                        ? CompletableFuture.completedFuture(lines) : master.send(command))
+                .thenCompose(f -> f);
+    }
+
+    private static List<String> lookup(String command) throws IOException {
+        return MasterClient.await(lookupAsync(command));
+    }
+
+    //Metodo che apre una nuova connessione con il master e registra di nuovo il peer
+    //se il master ha ripristinato il suo stato dal disco conosce già il peer e le sue risorse (heartbeat risponde OK):
+    //in quel caso basta hello per legare la nuova connessione, senza riannunciare tutte le risorse
+    private static void reconnect() throws IOException {
+        ShardRouter client = new ShardRouter(masterAddresses);
+        ShardRouter old = master;
+        master = client;
+        old.close();
+        List<String> response = master.request("heartbeat " + peerName);
+        boolean known = !response.isEmpty() && !response.get(0).startsWith("ERRORE");
+        register(false);
+        connectedToMaster = true;
+        System.out.println("Riconnesso al master" + (known ? ", risorse già note al master." : "."));
+        //le modifiche alla cartella avvenute mentre il master non era raggiungibile vanno comunque comunicate
+        if (!known || deltasLost) {
+            deltasLost = false;
+            announceLocalResources(true);
+        }
+    }
+
     //Metodo che mostra tutte le risorse salvate localmente nella cartella resources
+    //i nomi vengono letti dall'indice in memoria, senza rileggere la cartella
     private static void listLocalResources() {
-        File folder = new File(resourcesPath); //crea oggetto file
-        File[] files = folder.listFiles(); //ottiene la lista di tutti i file presenti nella cartella
-        if (files == null || files.length == 0) { //se la cartella è vuota o non esiste
+        List<String> files = localIndex.list(); //ottiene la lista di tutti i file presenti nella cartella
+        if (files.isEmpty()) { //se la cartella è vuota
             System.out.println("Nessuna risorsa locale."); //stampa avviso
             return;
         }
         //altrimenti, stampa il nome di ogni file trovato nella cartella locale
         System.out.println("Risorse locali:");
-        for (File f : files) System.out.println("- " + f.getName());
+        for (String f : files) System.out.println("- " + f);
+    }
+
+    //Metodo chiamato da LocalIndex quando file compaiono o spariscono dalla cartella senza passare dai comandi del peer
+    //le differenze vengono inviate al master con un ADD_BATCH e un REMOVE_BATCH, senza attendere le risposte
+    private static void sendDelta(List<String> added, List<String> removed) {
+        if (!connectedToMaster || !master.isConnected()) {
+            deltasLost = true; //verranno riannunciate alla riconnessione
+            return;
+        }
+        sendBatches("ADD_BATCH", added);
+        sendBatches("REMOVE_BATCH", removed);
+    }
+
+    //Invia l'elenco di risorse con uno o più comandi ADD_BATCH o REMOVE_BATCH di al massimo BATCH_SIZE righe
+    private static List<CompletableFuture<List<String>>> sendBatches(String command, List<String> names) {
+        List<CompletableFuture<List<String>>> replies = new ArrayList<>();
+        for (int from = 0; from < names.size(); from += BATCH_SIZE) {
+            List<String> chunk = names.subList(from, Math.min(names.size(), from + BATCH_SIZE));
+            replies.add(master.send(command + " " + peerName + " " + chunk.size(), chunk));
+        }
+        return replies;
+    }
+
+    //Metodo che registra sul master tutte le risorse presenti nella cartella locale con ADD_BATCH
+    //i file temporanei ".part" dei download non completati non vengono annunciati
+    //con verbose false il riepilogo non viene stampato (solo le risposte di errore)
+    private static void announceLocalResources(boolean verbose) throws IOException {
+        List<String> names = localIndex.list();
+        if (names.isEmpty()) return;
+        long added = 0, total = 0;
+        for (CompletableFuture<List<String>> reply : sendBatches("ADD_BATCH", names)) {
+            List<String> response = MasterClient.await(reply);
+            //risposta attesa: "BATCH_OK <nuove> <totale>"
+            String[] parts = response.isEmpty() ? new String[0] : response.get(0).split("\\s+");
+            if (parts.length >= 3 && parts[0].equals("BATCH_OK")) {
+                added += Long.parseLong(parts[1]);
+                total += Long.parseLong(parts[2]);
+            } else {
+                printResponse(response);
+            }
+        }
+        if (verbose) System.out.println("Annunciate al master " + total + " risorse locali (" + added + " nuove).");
     }
 
     //Metodo per creare o registrare una risorsa localmente e comunicarlo al master
@@ -161,9 +448,7 @@ public class Peer {// classe principale Peer
         if (file.exists()) {
             System.out.println("Risorsa " + name + " già presente localmente."); //avvisa l'utente
             try { //invia messaggio al master per assicurarsi che la risorsa sia registrata anche nella sua tabella
-                out.println("add " + name + " " + peerName);
-                out.flush();
-                receiveResponse();
+                receiveResponse("add " + name + " " + peerName);
             } catch (Exception e) { //se c'è errore nella comunicazione, lo stampa
                 System.err.println("Errore nell'associare la risorsa: " + e.getMessage());
             }
@@ -178,31 +463,27 @@ public class Peer {// classe principale Peer
 
         // Se il file non esiste ma viene fornito il contenuto
         //crea un nuovo file con il contenuto passato e il nome indicato
+        //il lock in scrittura impedisce che il file venga inviato ad altri peer mentre viene creato
+        FileLocks.Held writeLock = FileLocks.acquireWrite(name);
         try (FileWriter writer = new FileWriter(file)) {
             writer.write(content[0]);
-            System.out.println("Risorsa " + name + " creata localmente.");//avvisa l'utente che la creazione è andata a buon fine
-
-            //invia add al master per registrare la risorsa
-            out.println("add " + name + " " + peerName);
-            out.flush();
-            receiveResponse();
         } catch (Exception e) {//se ci sono eccezioni, stampa errore
             System.err.println("Errore aggiunta risorsa: " + e.getMessage());
+            return;
+        } finally {
+            writeLock.release();
         }
+        localIndex.markPresent(name); //la registrazione sul master avviene qui sotto
+        System.out.println("Risorsa " + name + " creata localmente.");//avvisa l'utente che la creazione è andata a buon fine
+
+        //invia add al master per registrare la risorsa
+        receiveResponse("add " + name + " " + peerName);
     }
 
-    //Metodo che legge le risposte del master e restituisce true se ha stampato qualcosa
-    private static boolean receiveResponse() {
-        String line;
-        boolean printed = false; //flag
+    //Metodo che invia un comando al master, ne stampa la risposta e restituisce true se ha stampato qualcosa
+    private static boolean receiveResponse(String command) {
         try {
-            // Legge dal canale di input le righe ricevute fino a "END" e le stampa
-            while ((line = in.readLine()) != null && !line.equals("END")) {
-                System.out.println(line);
-                printed = true;
-            }
-            // Ritorna true se almeno una riga è stata stampata
-            return printed;
+            return printResponse(master.request(command));
             //se si verifica un errore, segnala la perdita di connessione e ritorna false
         } catch (IOException e) {
             // Se si verifica un errore di I/O, significa che il master non è più raggiungibile
@@ -212,18 +493,97 @@ public class Peer {// classe principale Peer
         }
     }
 
+    //Metodo che stampa le righe di una risposta del master (già senza "END")
+    private static boolean printResponse(List<String> lines) {
+        lines.forEach(System.out::println);
+        // Ritorna true se almeno una riga è stata stampata
+        return !lines.isEmpty();
+    }
+
+    //Metodo che prova a scaricare la risorsa da tutti i peer che la possiedono in parallelo
+    //ritorna true se la richiesta è stata gestita (download completato o errore definitivo),
+    //false se conviene ripiegare sul download da una sola sorgente
+    private static boolean downloadFromSwarm(String fileName) throws IOException {
+        //usa i possessori già in cache; altrimenti li chiede al master e li salva per i download successivi
+        List<SwarmDownloader.Source> sources = locations.get(fileName);
+        boolean cached = sources != null;
+        if (!cached) {
+            List<String> lines = lookup("sources " + fileName + " " + peerName);
+            for (String line : lines) {
+                if (line.startsWith("ERRORE")) {
+                    if (line.contains("possiede già la risorsa")) {
+                        System.out.println("Risorsa '" + fileName + "' già posseduta localmente. Download annullato.");
+                    } else {
+                        System.out.println("Nessun peer disponibile per la risorsa '" + fileName + "'.");
+                    }
+                    return true;
+                }
+            }
+            sources = parseSources(lines);
+            locations.put(fileName, sources);
+        }
+        //con una sola sorgente appena chiesta al master si usa il download classico, in cui il master sceglie il peer
+        //in base al carico; una sorgente in cache viene invece usata direttamente, senza contattare il master
+        if (sources.isEmpty() || (sources.size() < 2 && !cached)) return false;
+
+        System.out.println("Download di '" + fileName + "' da " + (sources.size() > 1 ? sources.size() + " peer in parallelo"
+                : sources.get(0).name) + (cached ? " (posizioni in cache)" : ""));
+        SwarmDownloader swarm = new SwarmDownloader(fileName, resourcesPath, sources);
+        boolean success = swarm.download();
+        if (success) localIndex.markPresent(fileName);
+
+        //segnala al master le sorgenti che non hanno fornito la risorsa
+        //le segnalazioni partono tutte insieme e si attendono le risposte solo alla fine
+        List<CompletableFuture<List<String>>> failures = new ArrayList<>();
+        for (String failed : swarm.getFailedSources()) {
+            locations.invalidate(fileName, failed); //la sorgente non verrà più usata dalla cache
+            failures.add(master.send("updatefail " + fileName + " " + failed));
+        }
+        for (CompletableFuture<List<String>> f : failures) MasterClient.await(f);
+        if (!success) {
+            //le posizioni potrebbero essere superate: il prossimo tentativo le chiede di nuovo al master
+            locations.invalidate(fileName);
+            System.out.println("Download parallelo non riuscito. Richiedo un singolo peer...");
+            return false;
+        }
+        //notifica il successo indicando tutte le sorgenti usate e registra la nuova risorsa
+        master.send("DOWNLOAD_RESULT " + fileName + " " + String.join(",", swarm.getUsedSources()) + " " + peerName + " success");
+        receiveResponse("add " + fileName + " " + peerName);
+        System.out.println("Download completato con successo da " + String.join(", ", swarm.getUsedSources()));
+        return true;
+    }
 
     //Metodo che gestisce l'intero processo di download di una risorsa, memorizzando i peer già contattati e lo stato di successo
     private static void downloadResource(String fileName) throws IOException {
+        if (localIndex.contains(fileName)) {
+            System.out.println("Risorsa '" + fileName + "' già posseduta localmente. Download annullato.");
+            return;
+        }
+        //un secondo download della stessa risorsa userebbe lo stesso file ".part" di quello in corso
+        if (!SwarmDownloader.begin(fileName)) {
+            System.out.println("Download di '" + fileName + "' già in corso.");
+            return;
+        }
+        try {
+            downloadWithRetries(fileName);
+        } finally {
+            SwarmDownloader.end(fileName);
+        }
+    }
+
+    //Scarica la risorsa, prima da tutti i possessori in parallelo e poi da un peer alla volta scelto dal master
+    private static void downloadWithRetries(String fileName) throws IOException {
+        //se più peer possiedono la risorsa, prova prima a scaricarla da tutti in parallelo
+        if (downloadFromSwarm(fileName)) return;
+
         Set<String> triedPeers = new HashSet<>(); // tiene traccia dei peer già contattati
         boolean success = false; //flag
 
         //invia al master la richiesta di download della risorsa
         while (!success) {
-            out.println("download " + fileName + " " + peerName);
-            out.flush();
-            //legge la risposta dal master
-            String response = in.readLine();
+            //legge la risposta dal master (la prima riga prima di END)
+            List<String> lines = master.request("download " + fileName + " " + peerName);
+            String response = lines.isEmpty() ? null : lines.get(0);
 
             // Gestione errori
             //se la risposta è nulla o è un errore
@@ -235,13 +595,11 @@ public class Peer {// classe principale Peer
                     // Questo gestisce il fallimento finale del Master
                     System.out.println("Nessun peer disponibile per la risorsa '" + fileName + "'.");
                 }
-                receiveResponse(); // svuota eventuali "END"
                 break; // esce dal ciclo
             }
             //se la risposta non è valida, stampa errore
             if (!response.startsWith("PEER")) {
                 System.err.println("[ERRORE] Risposta non valida dal master: " + response);
-                receiveResponse();
                 break;
             }
 
@@ -250,7 +608,6 @@ public class Peer {// classe principale Peer
             if (parts.length < 4) { //controlla che ci siano almeno 4 parti
                 //ritorna uso corretto
                 System.err.println("[ERRORE] Risposta non valida dal master: " + response);
-                receiveResponse();
                 break;
             }
 
@@ -258,11 +615,11 @@ public class Peer {// classe principale Peer
             String peerAddress = parts[2]; //estra l'IP
             int peerPort = Integer.parseInt(parts[3]);// estrae la porta del peer e la trasforma in int
 
-            receiveResponse(); // legge "END" dal master
-
             //  Evita di contattare lo stesso peer più volte
             if (triedPeers.contains(peerTarget)) { //se il peer è nella lista dei peer già contattati, stampa avviso
                 System.out.println("Tutti i peer per la risorsa '" + fileName + "' sono stati già provati.");
+                //chiude sul master il trasferimento appena assegnato, così non resta conteggiato come in corso
+                master.send("DOWNLOAD_RESULT " + fileName + " " + peerTarget + " " + peerName + " fail");
                 break;
             }
             triedPeers.add(peerTarget);//se non è ancora nella lista, lo aggiunge
@@ -271,20 +628,19 @@ public class Peer {// classe principale Peer
             System.out.println("Tentativo di download da " + peerTarget + " (" + peerAddress + ":" + peerPort + ")");
             //chiama PeerHandler.downloadFromPeer per scaricare il file dal peer indicato
             success = PeerHandler.downloadFromPeer(peerAddress, peerPort, fileName, resourcesPath);
+            if (success) localIndex.markPresent(fileName);
 
             if (success) {
-                //Se il download ha successo, notifica al master
-                out.println("DOWNLOAD_RESULT " + fileName + " " + peerTarget + " " + peerName + " success");
-                //registra la nuova risorsa
-                out.println("add " + fileName + " " + peerName);
-                out.flush();
-                receiveResponse();
+                //Se il download ha successo, notifica al master senza attendere la conferma
+                master.send("DOWNLOAD_RESULT " + fileName + " " + peerTarget + " " + peerName + " success");
+                //registra la nuova risorsa: le due richieste viaggiano insieme sulla connessione
+                receiveResponse("add " + fileName + " " + peerName);
                 System.out.println("Download completato con successo da " + peerTarget);
             } else {
                 //Se fallisce, notifica al master e ripete il ciclo
-                out.println("updatefail " + fileName + " " + peerTarget);
-                out.flush();
-                receiveResponse();
+                //si attende la conferma perché la prossima richiesta di download non deve più ricevere questo peer
+                locations.invalidate(fileName, peerTarget);
+                receiveResponse("updatefail " + fileName + " " + peerTarget);
                 System.out.println("Il peer " + peerTarget + " non ha fornito la risorsa. Richiedo un altro peer...");
             }
         }
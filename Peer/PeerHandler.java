@@ -1,94 +1,371 @@
 package Peer;
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 
 //Gestore delle richieste individuali che arrivano da altri Peer
 public class PeerHandler implements Runnable { // gestisce le richieste in arrivo da altri peer
 
-    private final Socket clientSocket; //socket di connessione del peer richiedente
+    //prefisso della richiesta in modalità binaria: "GET <nome>"
+    static final String BINARY_REQUEST = "GET";
+    //richiesta della sola dimensione del file: "SIZE <nome>"
+    static final String SIZE_REQUEST = "SIZE";
+    //richiesta del manifest (dimensione e hash dei blocchi): "MANIFEST <nome>"
+    static final String MANIFEST_REQUEST = "MANIFEST";
+    //dimensione inviata al posto della lunghezza quando il file non esiste
+    static final long NOT_FOUND_SIZE = -1L;
+    //lunghezza massima della riga di richiesta, per non leggere all'infinito da un peer malformato
+    private static final int MAX_REQUEST_LINE = 4096;
+    //tentativi di calcolo del manifest se il file cambia mentre viene letto
+    private static final int MANIFEST_ATTEMPTS = 3;
+
+    private final SocketChannel clientChannel; //canale di connessione del peer richiedente
     private final String resourcesPath; //percorso della cartella delle risorse
-    private final Semaphore mutex; //lock per garantire mutua esclusione
+    private final Semaphore uploadSlots; //limita il numero di upload contemporanei del PeerServer
+    private final ContentCache cache; //contenuto dei file serviti più spesso, null se la cache è disattivata
 
     // Costruttore per la gestione lato server
-    public PeerHandler(Socket clientSocket, String resourcesPath, Semaphore mutex) {
-        this.clientSocket = clientSocket;
+    public PeerHandler(SocketChannel clientChannel, String resourcesPath, Semaphore uploadSlots, ContentCache cache) {
+        this.clientChannel = clientChannel;
         this.resourcesPath = resourcesPath;
-        this.mutex = mutex;
+        this.uploadSlots = uploadSlots;
+        this.cache = cache;
     }
 
     // Costruttore statico per la gestione lato client (downloadFromPeer)
     public PeerHandler() {
-        this.clientSocket = null;
+        this.clientChannel = null;
         this.resourcesPath = null;
-        this.mutex = null;
+        this.uploadSlots = null;
+        this.cache = null;
     }
 
     @Override
     public void run() {
-        handleClient(clientSocket); //avvia la logica di gestione della richiesta nel thread
+        handleClient(clientChannel); //avvia la logica di gestione della richiesta nel thread
     }
     // gestisce la richiesta di un peer (eseguito in un thread separato)
-    private void handleClient(Socket clientSocket) {
+    //dopo MANIFEST e dopo un GET con intervallo la connessione resta aperta per la richiesta successiva: chi scarica
+    //da più sorgenti usa una sola connessione per sorgente, chiedendo un blocco alla volta; la connessione si chiude
+    //quando il richiedente la chiude. Il posto di upload viene tenuto solo durante una richiesta
+    private void handleClient(SocketChannel clientChannel) {
+        boolean acquired = false;
         try {
-            mutex.acquire();// garantisce la mutua esclusione
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream())); //legge le richieste inviate dal peer
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true); //invia le risposte al peer richiedente
-
-            String fileName = in.readLine();// legge dal peer il nome del file richiesto
-            File file = new File(resourcesPath + "/" + fileName);// costruisce il percorso del file
-
-            if (!file.exists()) { //se il file non esiste
-                out.println("NOT_FOUND");
-            } else { //altrimenti, risponde OK
-                out.println("OK");
-                //apre il file e lo legge riga per riga
-                try (BufferedReader fileReader = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    while ((line = fileReader.readLine()) != null) {
-                        //manda ogni riga al peer richiedente
-                        out.println(line);
-                    }
-                }
-                out.println("END");
+            //la riga di richiesta viene letta direttamente dal canale, senza buffer,
+            //così i byte successivi (in modalità binaria) non vengono consumati per errore
+            String request;
+            while ((request = readLine(clientChannel)) != null) {
+                //occupa uno dei posti di upload: oltre il limite configurato le richieste attendono
+                uploadSlots.acquire();
+                acquired = true;
+                boolean keepOpen = serve(clientChannel, request);
+                uploadSlots.release();
+                acquired = false;
+                if (!keepOpen) break;
             }
-
         } catch (Exception e) {
             //se si verifica errore, lo stampa
             System.err.println("[PeerServer] Errore: " + e.getMessage());
         } finally {
-            mutex.release();// rilascia il semaforo e chiude il socket del client
-            try { clientSocket.close(); } catch (IOException ignored) {}
+            if (acquired) uploadSlots.release();// libera il posto di upload e chiude il socket del client
+            try { clientChannel.close(); } catch (IOException ignored) {}
         }
     }
 
-    //Metodo per stabilire connessione diretta tra due peer
-    //prende in input l'IP del peer sorgente, la porta del peer sorgente, il nome della risorsa e il path della cartella dove salvare il file
-    public static boolean downloadFromPeer(String peerAddress, int peerPort, String resourceName, String destinationPath) {//
-        //crea socket TCP verso il peer sorgente, il try assicura che tutto venga chiuso alla fine automaticamente
-        try (Socket socket = new Socket(peerAddress, peerPort);// connessione al peer remoto
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true); //crea lo stream per inviare dati
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) { //crea stream per leggere le risposte inviate dal peer sorgente
+    //Esegue una richiesta, ritorna true se la connessione può ricevere un'altra richiesta
+    private boolean serve(SocketChannel clientChannel, String request) throws IOException {
+        String[] parts = request.trim().split("\\s+");
+        if (parts.length >= 2 && parts[0].equals(BINARY_REQUEST)) {
+            //modalità binaria: lunghezza (8 byte) seguita dai byte grezzi
+            //con "GET <nome> <offset> <lunghezza>" viene inviato solo l'intervallo richiesto (download da più sorgenti)
+            //con "... ACCEPT <codec,...>" il richiedente accetta i dati compressi
+            long offset = parts.length >= 4 ? Long.parseLong(parts[2]) : 0;
+            long length = parts.length >= 4 ? Long.parseLong(parts[3]) : Long.MAX_VALUE;
+            String accept = parts.length >= 6 && parts[4].equals(Compression.ACCEPT) ? parts[5] : null;
+            sendBinary(clientChannel, parts[1], offset, length, accept);
+            return parts.length >= 4;
+        } else if (parts.length >= 2 && parts[0].equals(SIZE_REQUEST)) {
+            //restituisce solo la dimensione del file, usata per dividerlo in blocchi
+            sendSize(clientChannel, parts[1]);
+            return false;
+        } else if (parts.length >= 2 && parts[0].equals(MANIFEST_REQUEST)) {
+            //restituisce dimensione e hash dei blocchi, usati da chi scarica per verificare e riprendere il download
+            sendManifest(clientChannel, parts[1]);
+            return true;
+        } else {
+            //modalità testuale originale, mantenuta per i peer che inviano solo il nome del file
+            sendText(clientChannel, request);
+            return false;
+        }
+    }
+
+    //Invia il file (o l'intervallo [offset, offset + length)) in formato binario con lunghezza in testa
+    //il contenuto passa dal file al socket con transferTo, senza copie nello heap e senza decodifica dei caratteri
+    //se il richiedente ha indicato i codec accettati, dopo la lunghezza viene inviato un byte con il codec scelto
+    //e, se il codec non è NONE, i dati vengono compressi mentre vengono letti dal file
+    private void sendBinary(SocketChannel channel, String fileName, long offset, long length, String accept) throws IOException {
+        File file = new File(resourcesPath + "/" + fileName);// costruisce il percorso del file
+        if (!file.isFile() || offset < 0 || length < 0) { //se il file non esiste, risponde con lunghezza -1
+            writeSize(channel, NOT_FOUND_SIZE);
+            return;
+        }
+        //il lock in lettura permette più upload dello stesso file ma esclude chi lo sta riscrivendo
+        FileLocks.Held readLock = FileLocks.acquireRead(fileName);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            //l'intervallo viene limitato alla dimensione reale del file
+            long end = Math.min(fileChannel.size(), offset + Math.min(length, Long.MAX_VALUE - offset));
+            long count = Math.max(0, end - offset);
+            writeSize(channel, count);
+            if (accept != null) {
+                byte codec = count > 0 ? Compression.choose(accept, file.toPath()) : Compression.NONE;
+                writeCodec(channel, codec);
+                if (codec != Compression.NONE) {
+                    Compression.compress(fileChannel, offset, count, channel, codec);
+                    return;
+                }
+            }
+            //se il file è in cache (o ci entra ora), l'intervallo viene inviato dalla memoria
+            if (cache != null && count > 0) {
+                ByteBuffer content = cache.get(ContentCache.keyOf(file.toPath()), fileChannel,
+                        fileChannel.size(), file.lastModified());
+                if (content != null) {
+                    content.position((int) offset).limit((int) end);
+                    while (content.hasRemaining()) channel.write(content);
+                    return;
+                }
+            }
+            long position = offset;
+            //transferTo può trasferire meno byte di quelli richiesti, quindi si ripete fino alla fine
+            while (position < end) {
+                long sent = fileChannel.transferTo(position, end - position, channel);
+                if (sent <= 0) throw new IOException("trasferimento interrotto a " + position + "/" + end + " byte");
+                position += sent;
+            }
+        } finally {
+            readLock.release();
+        }
+    }
 
-            out.println(resourceName);//il peer richiedente invia riga con nome della risorsa
-            String response = in.readLine();// il peer sorgente risponde con NOT_FOUND o OK
+    //Invia la dimensione del file, oppure -1 se il file non esiste
+    private void sendSize(SocketChannel channel, String fileName) throws IOException {
+        File file = new File(resourcesPath + "/" + fileName);
+        FileLocks.Held readLock = FileLocks.acquireRead(fileName);
+        try {
+            writeSize(channel, file.isFile() ? file.length() : NOT_FOUND_SIZE);
+        } finally {
+            readLock.release();
+        }
+    }
 
-            //se la risposta è NOT FOUND o qualsiasi cosa diversa da OK, allora il download è fallito
-            if ("NOT_FOUND".equals(response)) return false;
-            if (!"OK".equals(response)) return false;
+    //Invia il manifest del file, oppure -1 se il file non esiste
+    //il manifest viene calcolato solo la prima volta o se il file è cambiato; il calcolo avviene senza lock, così
+    //hashare un file di qualche GB non blocca chi deve scriverlo. Con il lock in lettura si controlla solo che il file
+    //non sia cambiato nel frattempo, altrimenti il calcolo viene ripetuto
+    private void sendManifest(SocketChannel channel, String fileName) throws IOException {
+        File file = new File(resourcesPath + "/" + fileName);
+        for (int attempt = 1; ; attempt++) {
+            Manifest manifest = null;
+            if (file.isFile()) {
+                try {
+                    manifest = Manifest.of(file.toPath());
+                } catch (IOException e) { //file sostituito o accorciato durante il calcolo
+                    if (attempt >= MANIFEST_ATTEMPTS) throw e;
+                    continue;
+                }
+            }
+            FileLocks.Held readLock = FileLocks.acquireRead(fileName);
+            try {
+                if (!file.isFile()) {
+                    writeSize(channel, NOT_FOUND_SIZE);
+                    return;
+                }
+                if (manifest == null || !manifest.isCurrent(file.toPath())) {
+                    if (attempt >= MANIFEST_ATTEMPTS) throw new IOException("file '" + fileName + "' modificato durante il calcolo del manifest");
+                    continue;
+                }
+            } finally {
+                readLock.release();
+            }
+            //il manifest corrisponde al file attuale: può essere inviato senza tenere il lock
+            manifest.writeTo(channel);
+            return;
+        }
+    }
 
-            //crea un nuovo file (se esiste già lo sovrascrive) nella cartella resources, con il nome della risorsa richiesta
-            File file = new File(destinationPath + "/" + resourceName);
-            try (FileWriter fw = new FileWriter(file)) {// scrive il contenuto ricevuto, contenuto nel file, riga per riga fino a "end"
+    //Invia il file riga per riga terminato da "END" (protocollo testuale originale)
+    private void sendText(SocketChannel channel, String fileName) throws IOException {
+        PrintWriter out = new PrintWriter(channel.socket().getOutputStream(), true); //invia le risposte al peer richiedente
+        File file = new File(resourcesPath + "/" + fileName);// costruisce il percorso del file
+
+        if (!file.exists()) { //se il file non esiste
+            out.println("NOT_FOUND");
+        } else { //altrimenti, risponde OK
+            out.println("OK");
+            //apre il file e lo legge riga per riga, con il lock in lettura sul file
+            FileLocks.Held readLock = FileLocks.acquireRead(fileName);
+            try (BufferedReader fileReader = new BufferedReader(new FileReader(file))) {
                 String line;
-                while ((line = in.readLine()) != null && !line.equals("END")) {//
-                    fw.write(line + System.lineSeparator());
+                while ((line = fileReader.readLine()) != null) {
+                    //manda ogni riga al peer richiedente
+                    out.println(line);
                 }
+            } finally {
+                readLock.release();
             }
-            return true;
+            out.println("END");
+        }
+    }
+
+    //Scrive sul canale la lunghezza del file come long (big endian)
+    private static void writeSize(SocketChannel channel, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(size);
+        header.flip();
+        while (header.hasRemaining()) channel.write(header);
+    }
 
-        } catch (IOException e) { //per qualsiasi eccezione, il metodo fallisce
+    //Scrive sul canale il codice del codec usato per i dati che seguono
+    private static void writeCodec(SocketChannel channel, byte codec) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(new byte[]{codec});
+        while (b.hasRemaining()) channel.write(b);
+    }
+
+    //Legge una riga terminata da '\n' un byte alla volta
+    //ritorna null se il canale viene chiuso prima di ricevere qualcosa
+    static String readLine(ReadableByteChannel channel) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            byte b = one.get(0);
+            if (b == '\n') break;
+            if (b != '\r') line.write(b);
+            if (line.size() > MAX_REQUEST_LINE) throw new IOException("riga di richiesta troppo lunga");
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    //Metodo per stabilire connessione diretta tra due peer
+    //prende in input l'IP del peer sorgente, la porta del peer sorgente, il nome della risorsa e il path della cartella dove salvare il file
+    //con una sola sorgente SwarmDownloader scarica il file con un solo trasferimento; se il download si interrompe
+    //i byte ricevuti restano nel file ".part" e il tentativo successivo li verifica con il manifest (vedi SwarmDownloader)
+    public static boolean downloadFromPeer(String peerAddress, int peerPort, String resourceName, String destinationPath) {//
+        SwarmDownloader.Source source = new SwarmDownloader.Source(peerAddress + ":" + peerPort, peerAddress, peerPort);
+        return new SwarmDownloader(resourceName, destinationPath, List.of(source)).download();
+    }
+
+    //Sostituisce il file definitivo con quello temporaneo appena completato
+    //la sostituzione avviene con il lock in scrittura, così nessun upload legge il file mentre cambia
+    static boolean commitPartial(Path partial, Path target, String resourceName) {
+        FileLocks.Held writeLock = FileLocks.acquireWrite(resourceName);
+        try {
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
             return false;
+        } finally {
+            writeLock.release();
+            deletePartial(partial);
+        }
+    }
+
+    //Apre una connessione verso il peer sorgente, da usare per più richieste (fetchManifest e fetchChunk)
+    static SocketChannel connect(String peerAddress, int peerPort) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(peerAddress, peerPort));
+    }
+
+    //Chiede al peer sorgente il manifest della risorsa sulla connessione indicata, che resta aperta
+    //ritorna null se il peer non la possiede
+    static Manifest fetchManifest(SocketChannel channel, String resourceName) throws IOException {
+        writeRequest(channel, MANIFEST_REQUEST + " " + resourceName);
+        return Manifest.readFrom(channel);
+    }
+
+    //Scarica in memoria i byte [offset, offset + into.remaining()) della risorsa sulla connessione indicata, che resta
+    //aperta per il blocco successivo; lancia IOException se il peer non ha la risorsa o ne invia un'altra lunghezza
+    static void fetchChunk(SocketChannel channel, String resourceName, long offset, ByteBuffer into) throws IOException {
+        String accept = Compression.getAccepted();
+        writeRequest(channel, BINARY_REQUEST + " " + resourceName + " " + offset + " " + into.remaining()
+                + (accept != null ? " " + Compression.ACCEPT + " " + accept : ""));
+        long size = readSize(channel);
+        if (size < 0) throw new IOException("risorsa non più disponibile sul peer");
+        if (size != into.remaining()) throw new IOException("ricevuti " + size + " byte invece di " + into.remaining());
+        byte codec = accept != null ? readCodec(channel) : Compression.NONE;
+        if (codec != Compression.NONE) {
+            Compression.decompress(channel, codec, into);
+            return;
+        }
+        while (into.hasRemaining()) {
+            if (channel.read(into) < 0) throw new EOFException("connessione chiusa con " + into.remaining() + " byte mancanti");
+        }
+    }
+
+    //Scarica l'intervallo [offset, offset + length) della risorsa e lo scrive in out a partire da filePosition
+    //ritorna il numero di byte ricevuti, -1 se il peer non possiede la risorsa
+    //lancia IOException se la connessione cade prima che arrivino tutti i byte annunciati
+    static long fetchRange(String peerAddress, int peerPort, String resourceName, long offset, long length,
+                           FileChannel out, long filePosition) throws IOException {
+        //apre il canale TCP verso il peer sorgente, il try assicura che venga chiuso alla fine automaticamente
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(peerAddress, peerPort))) {
+            //il peer richiedente invia la riga con la richiesta binaria, il nome della risorsa e l'intervallo
+            //e, se la compressione è attiva, i codec che accetta
+            String accept = Compression.getAccepted();
+            writeRequest(channel, BINARY_REQUEST + " " + resourceName + " " + offset + " " + length
+                    + (accept != null ? " " + Compression.ACCEPT + " " + accept : ""));
+
+            //il peer sorgente risponde con la lunghezza dei dati, oppure -1 se non possiede il file
+            long size = readSize(channel);
+            if (size < 0) return NOT_FOUND_SIZE;
+            if (accept != null) {
+                //byte con il codec scelto dal peer sorgente: se non è NONE i dati arrivano compressi
+                byte codec = readCodec(channel);
+                if (codec != Compression.NONE) return Compression.decompress(channel, codec, size, out, filePosition);
+            }
+
+            long received = 0;
+            while (received < size) {
+                long n = out.transferFrom(channel, filePosition + received, size - received);
+                //con un canale bloccante transferFrom ritorna 0 solo se il peer ha chiuso la connessione
+                if (n <= 0) throw new IOException("connessione chiusa dopo " + received + "/" + size + " byte");
+                received += n;
+            }
+            return received;
         }
     }
-}
\ No newline at end of file
+
+    //Invia una riga di richiesta al peer sorgente
+    private static void writeRequest(SocketChannel channel, String request) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((request + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    //Legge la lunghezza (8 byte) inviata dal peer sorgente
+    private static long readSize(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) throw new EOFException("risposta incompleta dal peer");
+        }
+        return header.flip().getLong();
+    }
+
+    //Legge il byte con il codec scelto dal peer sorgente
+    private static byte readCodec(SocketChannel channel) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1);
+        while (b.hasRemaining()) {
+            if (channel.read(b) < 0) throw new EOFException("risposta incompleta dal peer");
+        }
+        return b.get(0);
+    }
+
+    //Elimina il file temporaneo di un download non completato
+    static void deletePartial(Path partial) {
+        try { Files.deleteIfExists(partial); } catch (IOException ignored) {}
+    }
+}
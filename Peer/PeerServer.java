@@ -1,6 +1,8 @@
 package Peer;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.Semaphore;
 
 //Ogni peer ha un server interno che può accettare richieste da altri peer
@@ -8,33 +10,62 @@ import java.util.concurrent.Semaphore;
 public class PeerServer implements Runnable {
 
     private final int port; //porta del peer
-    private final String resourcesPath = "Peer/resources"; //cartella locale delle risorse
-    private final Semaphore mutex = new Semaphore(1);// semaforo binario per garantire che venga eseguito un solo download per volta
+    private final String resourcesPath; //cartella locale delle risorse
+    //numero di upload contemporanei usato se non viene indicato all'avvio
+    public static final int DEFAULT_MAX_UPLOADS = 8;
+    private final Semaphore uploadSlots;// semaforo contatore che limita gli upload in corso nello stesso momento
+    private final ContentCache cache; //cache in memoria dei file serviti più spesso, null se disattivata
     private boolean running = true; //controlla se il server continua a funzionare o si chiude
-    private ServerSocket serverSocket; //oggetto che accetta connessioni TCP da altri peer
+    private ServerSocketChannel serverChannel; //canale che accetta connessioni TCP da altri peer
 
     public PeerServer(int port) { //
+        this(port, DEFAULT_MAX_UPLOADS);
+    }
+
+    //costruttore con il numero massimo di upload contemporanei
+    //gli upload dello stesso file si sincronizzano tramite FileLocks, non più con un unico semaforo globale
+    public PeerServer(int port, int maxUploads) {
+        this(port, maxUploads, null);
+    }
+
+    //costruttore con la cache del contenuto dei file (null per leggere sempre dal disco)
+    public PeerServer(int port, int maxUploads, ContentCache cache) {
+        this(port, maxUploads, cache, "Peer/resources");
+    }
+
+    //costruttore con la cartella da cui servire le risorse (usato anche dai benchmark)
+    public PeerServer(int port, int maxUploads, ContentCache cache, String resourcesPath) {
         this.port = port;
+        this.resourcesPath = resourcesPath;
+        this.uploadSlots = new Semaphore(maxUploads);
+        this.cache = cache;
+    }
+
+    //Cache del contenuto dei file, null se disattivata
+    public ContentCache getCache() {
+        return cache;
     }
 
     @Override
     public void run() {
-        //crea un serverSocket che ascolta sulla porta del peer
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        //crea un ServerSocketChannel che ascolta sulla porta del peer
+        //si usano i canali NIO così che PeerHandler possa inviare i file con FileChannel.transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
             //assegna l'oggetto alla variabile
-            this.serverSocket = serverSocket;
+            this.serverChannel = serverChannel;
             //stampa sul terminale che il server è attivo
             System.out.println("[PeerServer] In ascolto sulla porta " + port);
 
             //resta attivo finchè running è true
             while (running) {
                 //accept() blocca il thread finchè un altro peer non si connette
-                Socket clientSocket = serverSocket.accept();
-                //quando qualcuno si connette, si crea un nuovo thread che esegue handleClient(clientSocket)
-                new Thread(new PeerHandler(clientSocket, resourcesPath, mutex)).start(); // delega la gestione al PeerHandler
+                SocketChannel clientChannel = serverChannel.accept();
+                //quando qualcuno si connette, si crea un nuovo thread che esegue handleClient(clientChannel)
+                new Thread(new PeerHandler(clientChannel, resourcesPath, uploadSlots, cache)).start(); // delega la gestione al PeerHandler
             }
         } catch (IOException e) {
-            System.err.println(e.getMessage());
+            if (running) System.err.println(e.getMessage()); //la chiusura del canale in stopServer non è un errore
         }
     }
 
@@ -43,7 +74,7 @@ public class PeerServer implements Runnable {
     public void stopServer() {
         running = false; //imposta running = false per terminare il ciclo
         try {
-            if (serverSocket != null) serverSocket.close(); //chiude il serverSocket, sbloccando accept() in attesa
+            if (serverChannel != null) serverChannel.close(); //chiude il canale del server, sbloccando accept() in attesa
         } catch (IOException ignored) {}
     }
 }
\ No newline at end of file
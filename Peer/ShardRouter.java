@@ -0,0 +1,230 @@
+package Peer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+//Instradamento dei comandi del peer verso più master (shard), ognuno responsabile di una parte delle risorse
+//i nomi delle risorse vengono divisi con un hash consistente: ogni master occupa VIRTUAL_NODES punti su un anello
+//e una risorsa appartiene al primo punto che segue il suo hash. Aggiungere un master sposta solo le risorse
+//dei punti che occupa, e tutti i peer calcolano lo stesso proprietario senza chiedere nulla ai master.
+//I comandi su una risorsa (add, download, sources, check, updatefail, DOWNLOAD_RESULT) vanno al suo master;
+//hello, heartbeat e quit vanno a tutti, perché ogni master deve conoscere i peer per indicarli come sorgenti;
+//ADD_BATCH e REMOVE_BATCH vengono divisi per master; listdata e listpeer chiedono a tutti e uniscono le risposte.
+//Con un solo master ogni comando passa direttamente alla sua connessione
+//Tutti i peer devono usare gli stessi indirizzi dei master, altrimenti calcolano anelli diversi
+public class ShardRouter implements Closeable {
+
+    //punti di ogni master sull'anello: con più punti le risorse si dividono in parti più uguali
+    private static final int VIRTUAL_NODES = 160;
+
+    private final List<String> addresses; //"host:porta" di ogni master, in ordine alfabetico
+    private final List<MasterClient> shards = new ArrayList<>();
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>(); //punto sull'anello -> indice del master
+
+    //Apre una connessione verso ogni master; se un master non è raggiungibile chiude le connessioni già aperte
+    public ShardRouter(List<String> masterAddresses) throws IOException {
+        addresses = new ArrayList<>(masterAddresses);
+        Collections.sort(addresses); //l'anello non dipende dall'ordine in cui i master sono stati indicati
+        try {
+            for (String address : addresses) {
+                int colon = address.lastIndexOf(':');
+                shards.add(new MasterClient(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(shards);
+            throw e;
+        }
+        for (int s = 0; s < addresses.size(); s++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) ring.put(hash(addresses.get(s) + "#" + v), s);
+        }
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    //Indirizzo del master a cui appartiene la risorsa
+    public String ownerOf(String resourceName) {
+        return addresses.get(shardOf(resourceName));
+    }
+
+    private int shardOf(String resourceName) {
+        if (shards.size() == 1) return 0;
+        Map.Entry<Integer, Integer> e = ring.ceilingEntry(hash(resourceName));
+        return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+    //hash di String (uguale su tutte le JVM) rimescolato, così nomi simili finiscono lontani sull'anello
+    private static int hash(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    //Invia un comando senza attendere la risposta (come MasterClient.send)
+    public CompletableFuture<List<String>> send(String command) {
+        return send(command, List.of());
+    }
+
+    //Invia un comando con le sue righe di dati al master o ai master interessati
+    public CompletableFuture<List<String>> send(String command, List<String> dataLines) {
+        if (shards.size() == 1) return shards.get(0).send(command, dataLines);
+        String[] parts = command.trim().split("\\s+");
+        String name = parts[0].toLowerCase();
+        switch (name) {
+            case "add", "download", "sources", "check", "updatefail", "download_result":
+                if (parts.length < 2) break;
+                return shards.get(shardOf(parts[1])).send(command, dataLines);
+            case "hello", "heartbeat", "quit":
+                return broadcast(command, ShardRouter::firstOrError);
+            case "add_batch", "remove_batch":
+                return sendBatch(parts, dataLines);
+            case "listdata":
+                return listData(command, parts);
+            case "listpeer":
+                return broadcast(command, ShardRouter::mergePeerResources);
+        }
+        return shards.get(0).send(command, dataLines); //comandi senza risorsa: basta un master
+    }
+
+    //Invia un comando e attende la risposta
+    public List<String> request(String command) throws IOException {
+        return MasterClient.await(send(command));
+    }
+
+    //true solo se le connessioni con tutti i master sono attive
+    public boolean isConnected() {
+        for (MasterClient shard : shards) {
+            if (!shard.isConnected()) return false;
+        }
+        return true;
+    }
+
+    //Invia lo stesso comando a tutti i master e unisce le risposte con merge, nell'ordine dei master
+    private CompletableFuture<List<String>> broadcast(String command, Function<List<List<String>>, List<String>> merge) {
+        List<CompletableFuture<List<String>>> replies = new ArrayList<>();
+        for (MasterClient shard : shards) replies.add(shard.send(command));
+        return all(replies).thenApply(merge);
+    }
+
+    //Attende tutte le risposte; fallisce se una fallisce
+    private static CompletableFuture<List<List<String>>> all(List<CompletableFuture<List<String>>> replies) {
+        CompletableFuture<List<List<String>>> results = CompletableFuture.completedFuture(new ArrayList<>());
+        for (CompletableFuture<List<String>> r : replies) {
+            results = results.thenCombine(r, (list, lines) -> {
+                list.add(lines);
+                return list;
+            });
+        }
+        return results;
+    }
+
+    //hello/heartbeat: la risposta di un master che segnala un errore (es. lease scaduto), altrimenti quella del primo
+    private static List<String> firstOrError(List<List<String>> replies) {
+        for (List<String> r : replies) {
+            if (!r.isEmpty() && r.get(0).startsWith("ERRORE")) return r;
+        }
+        return replies.get(0);
+    }
+
+    //ADD_BATCH/REMOVE_BATCH: ogni master riceve solo le sue risorse, la risposta somma i "BATCH_OK <nuove> <totale>"
+    private CompletableFuture<List<String>> sendBatch(String[] parts, List<String> names) {
+        List<List<String>> perShard = new ArrayList<>();
+        for (int s = 0; s < shards.size(); s++) perShard.add(new ArrayList<>());
+        for (String n : names) perShard.get(shardOf(n)).add(n);
+        List<CompletableFuture<List<String>>> replies = new ArrayList<>();
+        for (int s = 0; s < shards.size(); s++) {
+            List<String> batch = perShard.get(s);
+            if (!batch.isEmpty()) replies.add(shards.get(s).send(parts[0] + " " + parts[1] + " " + batch.size(), batch));
+        }
+        return all(replies).thenApply(results -> {
+            long changed = 0;
+            long total = 0;
+            for (List<String> r : results) {
+                String[] ok = r.isEmpty() ? new String[0] : r.get(0).split("\\s+");
+                if (ok.length < 3 || !ok[0].equals("BATCH_OK")) return r; //errore di un master: viene riportato
+                changed += Long.parseLong(ok[1]);
+                total += Long.parseLong(ok[2]);
+            }
+            return new ArrayList<>(List.of("BATCH_OK " + changed + " " + total));
+        });
+    }
+
+    //listdata: chiede a tutti i master e unisce le righe in ordine di nome
+    //con limit=N ogni master restituisce al più N righe dopo il token; l'unione tiene le prime N e, se ne restano,
+    //aggiunge "NEXT <token>" con il nome dell'ultima riga inviata (stesso formato dei token del master),
+    //così la pagina successiva riparte dallo stesso punto su tutti i master
+    private CompletableFuture<List<String>> listData(String command, String[] parts) {
+        int limit = 0;
+        for (String p : parts) {
+            if (p.startsWith("limit=")) limit = Integer.parseInt(p.substring("limit=".length()));
+        }
+        int pageSize = limit;
+        return broadcast(command, replies -> {
+            List<String> merged = new ArrayList<>();
+            boolean more = false;
+            for (List<String> r : replies) {
+                for (String line : r) {
+                    if (line.startsWith("NEXT ")) more = true;
+                    else merged.add(line);
+                }
+            }
+            merged.sort(Comparator.comparing(ShardRouter::resourceOf));
+            if (pageSize > 0 && merged.size() > pageSize) {
+                merged = new ArrayList<>(merged.subList(0, pageSize));
+                more = true;
+            }
+            if (pageSize > 0 && more && !merged.isEmpty()) {
+                String last = resourceOf(merged.get(merged.size() - 1));
+                merged.add("NEXT " + Base64.getUrlEncoder().withoutPadding()
+                        .encodeToString(last.getBytes(StandardCharsets.UTF_8)));
+            }
+            return merged;
+        });
+    }
+
+    //nome della risorsa in una riga "risorsa: peer1, peer2"
+    private static String resourceOf(String line) {
+        int colon = line.indexOf(": ");
+        return colon < 0 ? line : line.substring(0, colon);
+    }
+
+    //listpeer: le risorse del peer su tutti i master, in ordine di nome
+    private static List<String> mergePeerResources(List<List<String>> replies) {
+        List<String> merged = new ArrayList<>();
+        for (List<String> r : replies) {
+            for (String line : r) {
+                if (!line.startsWith("Nessuna risorsa")) merged.add(line);
+            }
+        }
+        if (merged.isEmpty()) return replies.get(0); //messaggio "Nessuna risorsa associata"
+        Collections.sort(merged);
+        return merged;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeAll(shards);
+    }
+
+    private static void closeAll(List<MasterClient> shards) {
+        for (MasterClient shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package Peer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Scarica una risorsa da più peer sorgente contemporaneamente
+//il file viene diviso in blocchi di dimensione fissa: ogni sorgente ha un thread che preleva il blocco successivo
+//da una coda condivisa, quindi le sorgenti lente ricevono naturalmente meno lavoro di quelle veloci.
+//Ogni thread apre una sola connessione verso la sua sorgente e chiede i blocchi uno dopo l'altro su di essa
+//(la prima sorgente invia anche il manifest sulla stessa connessione).
+//Se un blocco fallisce torna nella coda e viene preso da un'altra sorgente, mentre la sorgente che ha fallito viene scartata.
+//I blocchi sono quelli del manifest della risorsa: ogni blocco viene ricevuto in memoria e confrontato con il suo hash
+//prima di scriverlo, e se il download non si completa il file ".part" resta sul disco, così il tentativo successivo
+//scarica solo i blocchi mancanti.
+//Con una sola sorgente e nessun file ".part" da riprendere non serve dividere il file: arriva con un solo
+//trasferimento (PeerHandler.fetchRange, scritto con transferFrom), senza manifest.
+//Il file ".part" è uno solo per risorsa: due download contemporanei della stessa risorsa scriverebbero nello stesso
+//file, quindi chi avvia un download lo registra prima con begin (il secondo viene rifiutato)
+public class SwarmDownloader {
+
+    //ogni quanto un thread senza blocchi da scaricare ricontrolla la coda
+    private static final long POLL_MILLIS = 100;
+
+    //risorse con un download in corso in questo processo
+    private static final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+
+    //informazioni su un peer sorgente ricevute dal master (riga "PEER <nome> <ip> <porta>")
+    public static class Source {
+        final String name;
+        final String address;
+        final int port;
+
+        Source(String name, String address, int port) {
+            this.name = name;
+            this.address = address;
+            this.port = port;
+        }
+    }
+
+    private final String resourceName; //nome della risorsa da scaricare
+    private final String destinationPath; //cartella in cui salvare il file
+    private final List<Source> sources; //peer che possiedono la risorsa
+    private final Set<String> failedSources = ConcurrentHashMap.newKeySet(); //sorgenti che non hanno fornito la risorsa
+    private final Set<String> usedSources = ConcurrentHashMap.newKeySet(); //sorgenti che hanno inviato almeno un blocco
+
+    public SwarmDownloader(String resourceName, String destinationPath, List<Source> sources) {
+        this.resourceName = resourceName;
+        this.destinationPath = destinationPath;
+        this.sources = sources;
+    }
+
+    //Registra l'inizio del download della risorsa, ritorna false se ce n'è già uno in corso
+    //a ogni begin riuscito deve seguire end, anche se il download fallisce
+    public static boolean begin(String resourceName) {
+        return inProgress.add(resourceName);
+    }
+
+    //Registra la fine del download della risorsa
+    public static void end(String resourceName) {
+        inProgress.remove(resourceName);
+    }
+
+    //Esegue il download, ritorna true se tutti i blocchi sono stati ricevuti e il file è stato salvato
+    public boolean download() {
+        Path target = Paths.get(destinationPath, resourceName);
+        Path partial = Paths.get(destinationPath, resourceName + ".part");
+        if (sources.size() == 1 && !Files.exists(partial)) return downloadWhole(sources.get(0), target, partial);
+
+        //chiede il manifest alla prima sorgente che risponde; la sua connessione resta aperta per i blocchi
+        Manifest manifest = null;
+        SocketChannel first = null;
+        List<Source> alive = new ArrayList<>();
+        for (Source s : sources) {
+            if (manifest == null) {
+                try {
+                    first = PeerHandler.connect(s.address, s.port);
+                    manifest = PeerHandler.fetchManifest(first, resourceName);
+                } catch (IOException e) {
+                    manifest = null;
+                }
+                if (manifest == null) { //la sorgente non è raggiungibile o non ha il file
+                    close(first);
+                    first = null;
+                    failedSources.add(s.name);
+                    continue;
+                }
+            }
+            alive.add(s);
+        }
+        if (manifest == null) return false;
+        //un file vuoto non ha blocchi: la sorgente che ha risposto è l'unica usata
+        if (manifest.getSize() == 0) usedSources.add(alive.get(0).name);
+
+        boolean completed = false;
+        //il file ".part" non viene troncato: contiene i blocchi di un eventuale tentativo precedente
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //coda dei blocchi ancora da scaricare: i blocchi già presenti e con l'hash giusto vengono tenuti
+            BlockingQueue<Integer> pending = new LinkedBlockingQueue<>();
+            //la dimensione dei blocchi arriva dalla sorgente, ma readFrom la limita a Manifest.MAX_CHUNK_SIZE
+            ByteBuffer buffer = ByteBuffer.allocate(manifest.getChunkSize());
+            for (int i = 0; i < manifest.getChunkCount(); i++) {
+                boolean present = manifest.chunkOffset(i) + manifest.chunkLength(i) <= out.size() && manifest.verify(out, i, buffer);
+                if (!present) pending.add(i);
+            }
+            int kept = manifest.getChunkCount() - pending.size();
+            if (kept > 0) System.out.println("Ripresa del download di '" + resourceName + "': " + kept + "/"
+                    + manifest.getChunkCount() + " blocchi già presenti.");
+            AtomicInteger remaining = new AtomicInteger(pending.size());
+
+            //un thread per sorgente, ognuno con la propria connessione
+            ExecutorService workers = Executors.newFixedThreadPool(alive.size());
+            for (Source s : alive) {
+                final Manifest m = manifest;
+                final SocketChannel channel = s == alive.get(0) ? first : null;
+                workers.execute(() -> fetchChunks(s, channel, m, pending, remaining, out));
+            }
+            first = null; //ora appartiene al thread della prima sorgente, che la chiude
+            workers.shutdown();
+            //i thread terminano quando i blocchi sono finiti o quando la loro sorgente fallisce
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                //attende la fine di tutti i thread
+            }
+            //se restano blocchi, tutte le sorgenti sono fallite prima di completare il file
+            if (remaining.get() > 0) return false;
+            //un file ".part" precedente potrebbe essere più lungo della risorsa
+            out.truncate(manifest.getSize());
+            out.force(false);
+            completed = true;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            close(first);
+        }
+
+        //il file definitivo viene sostituito solo quando tutti i blocchi sono arrivati e sono stati verificati
+        if (!completed || !PeerHandler.commitPartial(partial, target, resourceName)) return false;
+        //il manifest è già noto: quando questo peer farà da sorgente non dovrà ricalcolarlo
+        Manifest.remember(target, manifest);
+        return true;
+    }
+
+    //Scarica tutto il file dall'unica sorgente con un solo trasferimento
+    //se la connessione cade, i byte ricevuti restano nel file ".part": il tentativo successivo passa dal manifest,
+    //verifica i blocchi già presenti e scarica solo gli altri
+    private boolean downloadWhole(Source source, Path target, Path partial) {
+        long received;
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            received = PeerHandler.fetchRange(source.address, source.port, resourceName, 0, Long.MAX_VALUE, out, 0);
+        } catch (IOException e) {
+            failedSources.add(source.name);
+            return false;
+        }
+        if (received < 0) { //il peer sorgente non possiede la risorsa
+            PeerHandler.deletePartial(partial);
+            failedSources.add(source.name);
+            return false;
+        }
+        usedSources.add(source.name);
+        //il file definitivo viene sostituito solo quando tutti i byte annunciati sono arrivati
+        return PeerHandler.commitPartial(partial, target, resourceName);
+    }
+
+    //Ciclo eseguito dal thread di una sorgente: preleva blocchi dalla coda finché ce ne sono e li chiede tutti sulla
+    //stessa connessione (channel, già aperta per la prima sorgente, altrimenti null e viene aperta qui)
+    private void fetchChunks(Source source, SocketChannel channel, Manifest manifest, BlockingQueue<Integer> pending,
+                             AtomicInteger remaining, FileChannel out) {
+        ByteBuffer buffer = ByteBuffer.allocate(manifest.getChunkSize()); //blocco ricevuto, verificato prima di scriverlo
+        Integer chunk = null;
+        try {
+            if (channel == null) channel = PeerHandler.connect(source.address, source.port);
+            while (remaining.get() > 0) {
+                //se la coda è vuota, altri thread potrebbero ancora restituire blocchi falliti
+                chunk = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (chunk == null) continue;
+
+                long offset = manifest.chunkOffset(chunk);
+                buffer.clear().limit(manifest.chunkLength(chunk));
+                PeerHandler.fetchChunk(channel, resourceName, offset, buffer);
+                buffer.flip();
+                //un blocco con l'hash sbagliato viene trattato come un blocco non ricevuto
+                if (!manifest.matches(chunk, buffer)) throw new IOException("blocco " + chunk + " corrotto");
+                while (buffer.hasRemaining()) out.write(buffer, offset + buffer.position());
+                usedSources.add(source.name);
+                remaining.decrementAndGet();
+                chunk = null;
+            }
+        } catch (IOException e) {
+            //il blocco torna in coda per un'altra sorgente e questa sorgente non viene più usata
+            if (chunk != null) pending.add(chunk);
+            failedSources.add(source.name);
+        } catch (InterruptedException e) {
+            if (chunk != null) pending.add(chunk);
+        } finally {
+            close(channel);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel == null) return;
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    //Nomi delle sorgenti che non hanno fornito la risorsa (da segnalare al master con updatefail)
+    public Set<String> getFailedSources() {
+        return failedSources;
+    }
+
+    //Nomi delle sorgenti che hanno contribuito al download
+    public Set<String> getUsedSources() {
+        return usedSources;
+    }
+}
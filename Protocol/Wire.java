@@ -0,0 +1,248 @@
+package Protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//Formato binario dei messaggi tra peer e master, usato al posto del testo quando entrambi lo supportano
+//la modalità binaria viene concordata con hello: il peer aggiunge "proto=<versione>" e il master, se la conosce,
+//risponde anche con "PROTO <versione>"; dopo la risposta a hello entrambi passano ai frame binari.
+//Un frame è: lunghezza (varint) seguita da tipo (1 byte), identificativo della richiesta (varint) e campi.
+//Nelle richieste il tipo è il codice del comando, nelle risposte è l'esito (OK, ERROR, NO).
+//I numeri sono varint (7 bit per byte, il bit alto indica che segue un altro byte), le stringhe sono lunghezza
+//(varint) e byte UTF-8. Il master legge ogni frame in un buffer riusato e i campi con un cursore, senza dividere righe
+//e senza espressioni regolari
+public final class Wire {
+    //versione del formato binario annunciata in hello
+    public static final int VERSION = 1;
+    //dimensione massima di un frame (un ADD_BATCH molto grande sta comunque sotto questo limite)
+    public static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    //codici dei comandi
+    public static final int HELLO = 1;           //nome, porta -> lease in secondi
+    public static final int HEARTBEAT = 2;       //nome -> OK oppure NO (peer non registrato)
+    public static final int ADD = 3;             //risorsa, peer -> 1 se nuova, 0 se già associata
+    public static final int ADD_BATCH = 4;       //peer, n, n risorse -> modificate, n
+    public static final int REMOVE_BATCH = 5;    //peer, n, n risorse -> modificate, n
+    public static final int DOWNLOAD = 6;        //risorsa, peer -> nome, ip, porta della sorgente
+    public static final int SOURCES = 7;         //risorsa, peer, lookup (0/1) -> n, n volte nome, ip, porta
+    public static final int CHECK = 8;           //risorsa, peer -> OK (associato) oppure NO
+    public static final int UPDATEFAIL = 9;      //risorsa, peer -> OK
+    public static final int DOWNLOAD_RESULT = 10; //risorsa, sorgenti, richiedente, esito -> OK
+    public static final int LISTDATA = 11;       //prefisso, limite (0 = tutte, in più frame MORE), token ("" = prima pagina) -> n righe, token
+    public static final int LISTPEER = 12;       //peer -> n risorse
+    public static final int STATS = 13;          //-> n righe di testo
+    public static final int QUIT = 14;           //nessuna risposta
+    public static final int TEXT = 15;           //comando testuale qualsiasi -> n righe di testo
+
+    //esiti delle risposte
+    public static final int OK = 0;
+    public static final int ERROR = 1; //segue il messaggio di errore
+    public static final int NO = 2;
+    //parte di una risposta lunga (n righe): seguono altri frame con lo stesso identificativo, l'ultimo con l'esito
+    public static final int MORE = 3;
+
+    private static final String[] NAMES = {"?", "hello", "heartbeat", "add", "add_batch", "remove_batch", "download",
+            "sources", "check", "updatefail", "download_result", "listdata", "listpeer", "stats", "quit", "text"};
+
+    private Wire() {}
+
+    //Nome del comando (usato per le metriche)
+    public static String nameOf(int opcode) {
+        return opcode > 0 && opcode < NAMES.length ? NAMES[opcode] : "altro";
+    }
+
+    //Legge da uno stream sia righe di testo (prima e durante l'handshake) sia frame binari
+    //ha un proprio buffer di lettura, così passando ai frame non si perdono i byte già letti dal socket;
+    //il buffer del frame viene riusato da un frame all'altro e cresce man mano che arrivano i byte, non in base alla
+    //lunghezza annunciata (un frame che dichiara MAX_FRAME e poi si interrompe non occupa 64 MiB).
+    //Dopo un frame più grande di KEEP_BUFFER il buffer torna piccolo al frame successivo
+    public static final class Reader {
+        private static final int INITIAL_BUFFER = 4096;
+        private static final int KEEP_BUFFER = 64 * 1024;
+
+        private final InputStream in;
+        private final byte[] input = new byte[8192]; //byte letti dal socket e non ancora usati
+        private int inputPos;
+        private int inputLimit;
+        private byte[] buf = new byte[INITIAL_BUFFER]; //frame attuale (o riga attuale)
+        private int pos;
+        private int limit;
+
+        public Reader(InputStream in) {
+            this.in = in;
+        }
+
+        //Legge una riga di testo (senza \n e \r finali); ritorna null se lo stream è finito
+        public String readLine() throws IOException {
+            shrink();
+            int length = 0;
+            while (true) {
+                if (inputPos == inputLimit && !fill()) {
+                    if (length == 0) return null;
+                    break;
+                }
+                //cerca la fine della riga nei byte già letti
+                int end = inputPos;
+                while (end < inputLimit && input[end] != '\n') end++;
+                int n = end - inputPos;
+                if (length + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + n));
+                System.arraycopy(input, inputPos, buf, length, n);
+                length += n;
+                inputPos = end;
+                if (end < inputLimit) {
+                    inputPos++; //salta \n
+                    break;
+                }
+            }
+            if (length > 0 && buf[length - 1] == '\r') length--;
+            return new String(buf, 0, length, StandardCharsets.UTF_8);
+        }
+
+        //Legge il frame successivo; ritorna false se lo stream è finito
+        public boolean next() throws IOException {
+            int first = read();
+            if (first < 0) return false;
+            long length = first & 0x7F;
+            int shift = 7;
+            int b = first;
+            while ((b & 0x80) != 0) {
+                b = read();
+                if (b < 0) throw new EOFException("frame interrotto");
+                length |= (long) (b & 0x7F) << shift;
+                shift += 7;
+                if (shift > 35) throw new IOException("lunghezza del frame non valida");
+            }
+            if (length > MAX_FRAME) throw new IOException("frame troppo grande: " + length + " byte");
+            shrink();
+            int read = 0;
+            while (read < length) {
+                //il buffer raddoppia solo quando è pieno, fino alla lunghezza del frame
+                if (read == buf.length) buf = Arrays.copyOf(buf, (int) Math.min(length, buf.length * 2L));
+                int room = (int) Math.min(length, buf.length) - read;
+                if (inputPos == inputLimit) {
+                    //frame grande: i byte mancanti vengono letti direttamente nel buffer del frame
+                    int n = in.read(buf, read, room);
+                    if (n < 0) throw new EOFException("frame interrotto");
+                    read += n;
+                } else {
+                    int n = Math.min(inputLimit - inputPos, room);
+                    System.arraycopy(input, inputPos, buf, read, n);
+                    inputPos += n;
+                    read += n;
+                }
+            }
+            pos = 0;
+            limit = (int) length;
+            return true;
+        }
+
+        //Riporta il buffer alla dimensione iniziale dopo un frame (o una riga) molto grande
+        private void shrink() {
+            if (buf.length > KEEP_BUFFER) buf = new byte[INITIAL_BUFFER];
+        }
+
+        private int read() throws IOException {
+            if (inputPos == inputLimit && !fill()) return -1;
+            return input[inputPos++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(input, 0, input.length);
+            if (n <= 0) return false;
+            inputPos = 0;
+            inputLimit = n;
+            return true;
+        }
+
+        public int readByte() throws IOException {
+            if (pos >= limit) throw new EOFException("campo mancante");
+            return buf[pos++] & 0xFF;
+        }
+
+        public long readVarint() throws IOException {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 63) throw new IOException("varint non valido");
+                b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        public int readInt() throws IOException {
+            long v = readVarint();
+            if (v > Integer.MAX_VALUE) throw new IOException("numero fuori intervallo: " + v);
+            return (int) v;
+        }
+
+        public String readString() throws IOException {
+            int length = readInt();
+            if (length > limit - pos) throw new EOFException("stringa interrotta");
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        public boolean hasMore() {
+            return pos < limit;
+        }
+    }
+
+    //Costruisce un frame in memoria; writeTo lo scrive preceduto dalla lunghezza
+    public static final class Writer {
+        private byte[] buf = new byte[64];
+        private int size;
+
+        //Inizia un frame con tipo (comando o esito) e identificativo della richiesta
+        public Writer(int type, long id) {
+            buf[size++] = (byte) type;
+            writeVarint(id);
+        }
+
+        //Cambia il tipo del frame (l'esito di una risposta è noto solo dopo aver eseguito il comando)
+        public void setType(int type) {
+            buf[0] = (byte) type;
+        }
+
+        public Writer writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+            return this;
+        }
+
+        public Writer writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        //Scrive lunghezza e contenuto del frame (senza flush)
+        public void writeTo(OutputStream out) throws IOException {
+            int length = size;
+            while ((length & ~0x7F) != 0) {
+                out.write((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            out.write(length);
+            out.write(buf, 0, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package Bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Avvio dei benchmark JMH per più numeri di thread: JMH accetta un solo valore di -t per esecuzione,
+//quindi i benchmark vengono eseguiti una volta per ogni valore di --threads (predefinito 1,4,8)
+//Le altre opzioni sono quelle di JMH, ad esempio un filtro sui benchmark o -p size=1000
+//Uso: java -jar jmh/target/benchmarks.jar [--threads=1,4,8] [ResourceServiceJmh|TransferJmh] [opzioni JMH]
+public class JmhMain {
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = {1, 4, 8};
+        List<String> rest = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) threadCounts = ResourceServiceBench.parseList(arg.substring("--threads=".length()));
+            else rest.add(arg);
+        }
+        CommandLineOptions options = new CommandLineOptions(rest.toArray(new String[0]));
+        if (options.shouldHelp() || options.shouldList()) { //aiuto ed elenco dei benchmark li gestisce JMH
+            org.openjdk.jmh.Main.main(rest.toArray(new String[0]));
+            return;
+        }
+        for (int threads : threadCounts) {
+            new Runner(new OptionsBuilder().parent(options).threads(threads).build()).run();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package Bench;
+
+import Master.ResourceService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//Versione JMH di ResourceServiceBench: addResource, handleDownload, isAssociated e una pagina di listdata
+//(listResources, che ha sostituito getAllResources) con tabelle di dimensioni diverse.
+//Lo stato ha Scope.Benchmark, quindi tutti i thread del benchmark lavorano sulla stessa tabella (contesa);
+//JMH ricrea lo stato per ogni benchmark e ogni valore di size, quindi ogni operazione parte da una tabella appena riempita
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceServiceJmh {
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private ResourceService service;
+    private String[] resources;
+    private String[] peers;
+    //le risposte vengono scritte ma scartate
+    private PrintWriter discard;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        service = ResourceServiceBench.populate(size);
+        resources = new String[size];
+        for (int i = 0; i < size; i++) resources[i] = "r" + i;
+        peers = new String[ResourceServiceBench.PEERS];
+        for (int i = 0; i < peers.length; i++) peers[i] = "p" + i;
+        discard = new PrintWriter(Writer.nullWriter());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        discard.close();
+    }
+
+    @Benchmark
+    public void addResource() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        service.addResource(resources[random.nextInt(size)], peers[random.nextInt(peers.length)], discard);
+    }
+
+    @Benchmark
+    public void handleDownload() {
+        service.handleDownload(resources[ThreadLocalRandom.current().nextInt(size)], "bench", discard);
+    }
+
+    @Benchmark
+    public boolean isAssociated() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return service.isAssociated(resources[random.nextInt(size)], peers[random.nextInt(peers.length)]);
+    }
+
+    @Benchmark
+    public int listResources() {
+        return service.listResources("", ResourceServiceBench.PAGE, null).lines.size();
+    }
+}
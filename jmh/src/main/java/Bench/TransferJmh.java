@@ -0,0 +1,110 @@
+package Bench;
+
+import Peer.ContentCache;
+import Peer.EvictionPolicy;
+import Peer.PeerHandler;
+import Peer.PeerServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+//Versione JMH di TransferBench: download in loopback da un PeerServer con PeerHandler.downloadFromPeer
+//(manifest, blocchi verificati, file ".part") per diverse dimensioni di file, con e senza la cache del contenuto.
+//Il risultato è in download al secondo: i MB/s sono score * sizeKb / 1024.
+//Ogni thread scarica in una sua cartella, così più thread misurano il server sotto contesa
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferJmh {
+
+    @Param({"4", "256", "4096", "65536"})
+    public int sizeKb;
+
+    @Param({"false", "true"})
+    public boolean cache;
+
+    private Path root;
+    private String file;
+    private int port;
+    private PeerServer server;
+    private Thread serverThread;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("transfer-jmh");
+        Path served = Files.createDirectories(root.resolve("served"));
+        byte[] data = new byte[sizeKb * 1024];
+        new Random(42).nextBytes(data);
+        file = "file" + sizeKb;
+        Files.write(served.resolve(file), data);
+
+        //cache grande abbastanza per il file (un file può occupare al massimo un ottavo della cache)
+        ContentCache contentCache = cache ? new ContentCache((long) sizeKb * 1024 * 8 + 1, EvictionPolicy.forName("lru")) : null;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new PeerServer(port, PeerServer.DEFAULT_MAX_UPLOADS, contentCache, served.toString());
+        serverThread = new Thread(server, "jmh-peer-server");
+        serverThread.start();
+        Thread.sleep(200); //attende che il server sia in ascolto
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stopServer();
+        serverThread.join();
+        delete(root);
+    }
+
+    //Cartella di destinazione di un thread
+    @State(Scope.Thread)
+    public static class Destination {
+        Path dir;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("transfer-jmh-dest");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            delete(dir);
+        }
+    }
+
+    @Benchmark
+    public void download(Destination destination) throws IOException {
+        Files.deleteIfExists(destination.dir.resolve(file));
+        if (!PeerHandler.downloadFromPeer("127.0.0.1", port, file, destination.dir.toString())) {
+            throw new IOException("download di " + file + " non riuscito");
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package Master;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Ripristino dello stato dal journal dopo un crash (il salvataggio non viene chiuso)
+class StateStoreTest {
+    @TempDir
+    Path dir;
+
+    //stato minimo: peer con indirizzo e associazioni "risorsa peer"
+    static class State implements StateStore.Apply {
+        final Map<String, String> peers = new ConcurrentSkipListMap<>();
+        final Set<String> associations = new ConcurrentSkipListSet<>();
+
+        @Override
+        public void peer(String name, String ip, int port) {
+            peers.put(name, ip + ":" + port);
+        }
+
+        @Override
+        public void peerGone(String name) {
+            peers.remove(name);
+            associations.removeIf(a -> a.endsWith(" " + name));
+        }
+
+        @Override
+        public void add(String resource, String peer) {
+            associations.add(resource + " " + peer);
+        }
+
+        @Override
+        public void remove(String resource, String peer) {
+            associations.remove(resource + " " + peer);
+        }
+
+        void writeTo(StateStore.Apply sink) {
+            peers.forEach((name, address) -> {
+                int colon = address.lastIndexOf(':');
+                sink.peer(name, address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            });
+            for (String a : associations) {
+                int space = a.lastIndexOf(' ');
+                sink.add(a.substring(0, space), a.substring(space + 1));
+            }
+        }
+    }
+
+    //Applica la riga allo stato in memoria e la accoda al journal, come fa il ResourceService
+    private static StateStore.Entry change(StateStore store, State live, String record) {
+        assertTrue(StateStore.applyRecord(record, live));
+        return store.append(record);
+    }
+
+    @Test
+    void riapplicaIlJournalDopoUnCrash() throws Exception {
+        State live = new State();
+        StateStore crashed = new StateStore(dir, live::writeTo);
+        assertEquals(0, crashed.restore(new State()));
+
+        StateStore.Entry first = change(crashed, live, StateStore.record('P', "p1", "10.0.0.1", "9000"));
+        change(crashed, live, StateStore.record('P', "peer due", "10.0.0.2", "9001"));
+        change(crashed, live, StateStore.record('A', "r1", "p1"));
+        change(crashed, live, StateStore.record('A', "file con spazi%.txt", "peer due"));
+        change(crashed, live, StateStore.record('A', "r2", "p1"));
+        StateStore.Entry last = change(crashed, live, StateStore.record('D', "r2", "p1"));
+        assertTrue(crashed.awaitWritten(first, last));
+
+        //una seconda serie di modifiche, scritta mentre il primo snapshot può essere in corso
+        first = change(crashed, live, StateStore.record('P', "p3", "10.0.0.3", "9002"));
+        change(crashed, live, StateStore.record('A', "r3", "p3"));
+        last = change(crashed, live, StateStore.record('U', "p1"));
+        assertTrue(crashed.awaitWritten(first, last));
+
+        //il crash interrompe una riga a metà: senza a capo non deve essere riapplicata
+        Path journal;
+        try (Stream<Path> files = Files.list(dir)) {
+            journal = files.filter(p -> p.getFileName().toString().startsWith("journal-"))
+                    .max((a, b) -> Long.compare(generation(a), generation(b))).orElseThrow();
+        }
+        Files.write(journal, "A r4 p".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        //niente close: un nuovo salvataggio sulla stessa cartella riparte da snapshot e journal
+        State restored = new State();
+        StateStore reopened = new StateStore(dir, restored::writeTo);
+        try {
+            reopened.restore(restored);
+            assertEquals(live.peers, restored.peers);
+            assertEquals(live.associations, restored.associations);
+            assertEquals(Set.of("file con spazi%.txt peer due", "r3 p3"), restored.associations);
+        } finally {
+            reopened.close();
+            crashed.close();
+        }
+    }
+
+    @Test
+    void rigaSenzaACapoIgnorata() throws IOException {
+        Files.writeString(dir.resolve("journal-1.log"), "P p1 10.0.0.1 9000\nA r1 p1\nA r2 p");
+        State restored = new State();
+        StateStore store = new StateStore(dir, restored::writeTo);
+        try {
+            assertEquals(2, store.restore(restored));
+            assertEquals(Map.of("p1", "10.0.0.1:9000"), restored.peers);
+            assertEquals(Set.of("r1 p1"), restored.associations);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void recordConservaSpaziEPercentuali() {
+        State state = new State();
+        String record = StateStore.record('A', "a b%20c\td", "peer\n1");
+        assertEquals(3, record.split(" ").length); //il tipo e due campi, separati da spazi
+        assertTrue(StateStore.applyRecord(record, state));
+        assertEquals(Set.of("a b%20c\td peer\n1"), state.associations);
+        assertFalse(StateStore.applyRecord("X qualcosa", state));
+        assertFalse(StateStore.applyRecord("P p1 10.0.0.1 nonumero", state));
+    }
+
+    private static long generation(Path journal) {
+        String name = journal.getFileName().toString();
+        return Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+    }
+}
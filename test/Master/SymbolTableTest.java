@@ -0,0 +1,73 @@
+package Master;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Riuso degli identificativi della SymbolTable
+class SymbolTableTest {
+
+    @Test
+    void assegnaIdentificativiInOrdine() {
+        SymbolTable table = new SymbolTable();
+        assertEquals(0, table.intern("a"));
+        assertEquals(1, table.intern("b"));
+        assertEquals(0, table.intern("a")); //lo stesso nome mantiene l'identificativo
+        assertEquals(1, table.idOf("b"));
+        assertEquals(-1, table.idOf("c"));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    void rilascioTogliIlNome() {
+        SymbolTable table = new SymbolTable();
+        int id = table.intern("a");
+        long before = table.releases();
+        table.release(id);
+        assertNull(table.nameOf(id));
+        assertEquals(-1, table.idOf("a"));
+        assertEquals(before + 1, table.releases());
+        assertEquals(0, table.size());
+        //un secondo rilascio dello stesso identificativo non cambia nulla
+        table.release(id);
+        assertEquals(before + 1, table.releases());
+    }
+
+    @Test
+    void riusaGliIdentificativiNellOrdineDiRilascio() {
+        SymbolTable table = new SymbolTable();
+        for (int i = 0; i < 4; i++) table.intern("n" + i);
+        table.release(2);
+        table.release(0);
+        assertEquals(2, table.intern("x"));
+        assertEquals(0, table.intern("y"));
+        assertEquals(4, table.intern("z")); //nessun identificativo libero: ne assegna uno nuovo
+        assertEquals("x", table.nameOf(2));
+        assertEquals("y", table.nameOf(0));
+        assertEquals(5, table.assigned());
+    }
+
+    @Test
+    void laCodaDeiLiberiCresceMantenendoLOrdine() {
+        SymbolTable table = new SymbolTable();
+        int n = 200; //più della capacità iniziale della coda (64)
+        for (int i = 0; i < n; i++) table.intern("n" + i);
+        for (int i = n - 1; i >= 0; i--) table.release(i);
+        for (int i = n - 1; i >= 0; i--) assertEquals(i, table.intern("m" + i));
+        assertEquals(n, table.assigned());
+        assertEquals(n, table.size());
+    }
+
+    @Test
+    void clearRicominciaDaZero() {
+        SymbolTable table = new SymbolTable();
+        table.intern("a");
+        table.intern("b");
+        long before = table.releases();
+        table.clear();
+        assertTrue(table.releases() > before);
+        assertNull(table.nameOf(0));
+        assertEquals(0, table.intern("c"));
+        assertEquals(1, table.size());
+    }
+}
@@ -0,0 +1,94 @@
+package Peer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Hash dei blocchi del manifest
+class ManifestTest {
+    @TempDir
+    Path dir;
+
+    //file di due blocchi e mezzo, con contenuto casuale ma sempre uguale
+    private Path file(String name) throws IOException {
+        byte[] data = new byte[Manifest.CHUNK_SIZE * 2 + Manifest.CHUNK_SIZE / 2];
+        new Random(42).nextBytes(data);
+        return Files.write(dir.resolve(name), data);
+    }
+
+    @Test
+    void dividePerBlocchi() throws IOException {
+        Manifest manifest = Manifest.of(file("a.bin"));
+        assertEquals(3, manifest.getChunkCount());
+        assertEquals(2L * Manifest.CHUNK_SIZE, manifest.chunkOffset(2));
+        assertEquals(Manifest.CHUNK_SIZE / 2, manifest.chunkLength(2));
+    }
+
+    @Test
+    void matchesControllaContenutoELunghezza() throws IOException {
+        Path file = file("a.bin");
+        Manifest manifest = Manifest.of(file);
+        byte[] data = Files.readAllBytes(file);
+        ByteBuffer last = ByteBuffer.wrap(data, 2 * Manifest.CHUNK_SIZE, Manifest.CHUNK_SIZE / 2);
+        assertTrue(manifest.matches(2, last));
+        assertEquals(2 * Manifest.CHUNK_SIZE, last.position()); //la posizione del buffer non cambia
+        assertFalse(manifest.matches(1, last)); //il blocco giusto al posto sbagliato
+        assertFalse(manifest.matches(2, ByteBuffer.wrap(data, 2 * Manifest.CHUNK_SIZE, Manifest.CHUNK_SIZE / 2 - 1)));
+        data[2 * Manifest.CHUNK_SIZE + 10] ^= 1;
+        assertFalse(manifest.matches(2, ByteBuffer.wrap(data, 2 * Manifest.CHUNK_SIZE, Manifest.CHUNK_SIZE / 2)));
+    }
+
+    @Test
+    void verifyControllaIBlocchiDelFile() throws IOException {
+        Path file = file("a.bin");
+        Manifest manifest = Manifest.of(file);
+        //copia con il secondo blocco modificato e l'ultimo troncato
+        byte[] data = Files.readAllBytes(file);
+        data[Manifest.CHUNK_SIZE] ^= 1;
+        Path partial = Files.write(dir.resolve("a.bin.part"), Arrays.copyOf(data, data.length - 1));
+        ByteBuffer buffer = ByteBuffer.allocate(manifest.getChunkSize());
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.READ)) {
+            assertTrue(manifest.verify(channel, 0, buffer));
+            assertFalse(manifest.verify(channel, 1, buffer));
+            assertFalse(manifest.verify(channel, 2, buffer));
+        }
+    }
+
+    @Test
+    void inviatoERicevutoUguale() throws IOException {
+        Path file = file("a.bin");
+        Manifest manifest = Manifest.of(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.writeTo(Channels.newChannel(bytes));
+        Manifest received = Manifest.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(manifest.getSize(), received.getSize());
+        assertEquals(manifest.getChunkSize(), received.getChunkSize());
+        byte[] data = Files.readAllBytes(file);
+        for (int i = 0; i < received.getChunkCount(); i++) {
+            assertTrue(received.matches(i, ByteBuffer.wrap(data, (int) received.chunkOffset(i), received.chunkLength(i))));
+        }
+    }
+
+    @Test
+    void manifestRicevutoNonValido() throws IOException {
+        //blocchi più grandi del limite: rifiutato prima di allocare gli hash
+        ByteBuffer header = ByteBuffer.allocate(12).putLong(100).putInt(Manifest.MAX_CHUNK_SIZE + 1).flip();
+        assertThrows(IOException.class, () -> Manifest.readFrom(Channels.newChannel(new ByteArrayInputStream(header.array()))));
+        //dimensione -1: la sorgente non possiede la risorsa
+        ByteBuffer missing = ByteBuffer.allocate(8).putLong(-1).flip();
+        assertNull(Manifest.readFrom(Channels.newChannel(new ByteArrayInputStream(missing.array()))));
+    }
+}
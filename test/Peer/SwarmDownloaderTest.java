@@ -0,0 +1,147 @@
+package Peer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Download a blocchi da un PeerServer locale: ripresa dal file ".part" e blocchi rimessi in coda quando una sorgente fallisce
+class SwarmDownloaderTest {
+    @TempDir
+    Path dir;
+    private Path resources; //cartella servita dal PeerServer
+    private Path downloads; //cartella di destinazione del download
+    private PeerServer server;
+    private int port;
+    private byte[] content;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        resources = Files.createDirectory(dir.resolve("resources"));
+        downloads = Files.createDirectory(dir.resolve("downloads"));
+        content = new byte[Manifest.CHUNK_SIZE * 3 + 1000];
+        new Random(7).nextBytes(content);
+        Files.write(resources.resolve("file.bin"), content);
+
+        port = freePort();
+        server = new PeerServer(port, PeerServer.DEFAULT_MAX_UPLOADS, null, resources.toString());
+        Thread thread = new Thread(server);
+        thread.setDaemon(true);
+        thread.start();
+        //attende che il server sia in ascolto
+        for (int i = 0; ; i++) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                break;
+            } catch (IOException e) {
+                if (i == 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stopServer();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private SwarmDownloader downloader(SwarmDownloader.Source... sources) {
+        return new SwarmDownloader("file.bin", downloads.toString(), List.of(sources));
+    }
+
+    private SwarmDownloader.Source source() {
+        return new SwarmDownloader.Source("sorgente", "localhost", port);
+    }
+
+    @Test
+    void scaricaDaUnaSorgente() throws IOException {
+        SwarmDownloader download = downloader(source());
+        assertTrue(download.download());
+        assertArrayEquals(content, Files.readAllBytes(downloads.resolve("file.bin")));
+        assertFalse(Files.exists(downloads.resolve("file.bin.part")));
+        assertEquals(Set.of("sorgente"), download.getUsedSources());
+    }
+
+    @Test
+    void ripresaConTuttiIBlocchiPresenti() throws IOException {
+        //il ".part" è già completo (e più lungo): nessun blocco viene richiesto alla sorgente
+        byte[] partial = Arrays.copyOf(content, content.length + 500);
+        Files.write(downloads.resolve("file.bin.part"), partial);
+        SwarmDownloader download = downloader(source());
+        assertTrue(download.download());
+        assertArrayEquals(content, Files.readAllBytes(downloads.resolve("file.bin")));
+        assertTrue(download.getUsedSources().isEmpty());
+    }
+
+    @Test
+    void ripresaRiscaricaSoloIBlocchiSbagliati() throws IOException {
+        //secondo blocco corrotto e file interrotto a metà del terzo
+        byte[] partial = Arrays.copyOf(content, Manifest.CHUNK_SIZE * 2 + 100);
+        partial[Manifest.CHUNK_SIZE + 5] ^= 1;
+        Files.write(downloads.resolve("file.bin.part"), partial);
+        SwarmDownloader download = downloader(source());
+        assertTrue(download.download());
+        assertArrayEquals(content, Files.readAllBytes(downloads.resolve("file.bin")));
+        assertEquals(Set.of("sorgente"), download.getUsedSources());
+        assertFalse(Files.exists(downloads.resolve("file.bin.part")));
+    }
+
+    @Test
+    void sorgenteSenzaLaRisorsa() {
+        SwarmDownloader download = new SwarmDownloader("manca.bin", downloads.toString(), List.of(source()));
+        assertFalse(download.download());
+        assertEquals(Set.of("sorgente"), download.getFailedSources());
+        assertFalse(Files.exists(downloads.resolve("manca.bin")));
+    }
+
+    @Test
+    void bloccoDiUnaSorgenteCadutaRimessoInCoda() throws Exception {
+        //file con molti blocchi: la sorgente che chiude la connessione ne preleva almeno uno prima che l'altra finisca
+        byte[] large = new byte[Manifest.CHUNK_SIZE * 12];
+        new Random(11).nextBytes(large);
+        Files.write(resources.resolve("grande.bin"), large);
+        AtomicInteger requests = new AtomicInteger();
+        try (ServerSocket broken = new ServerSocket(0)) {
+            //sorgente che accetta la connessione, legge la richiesta del blocco e chiude senza rispondere
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    try (Socket client = broken.accept()) {
+                        if (client.getInputStream().read() >= 0) requests.incrementAndGet();
+                    } catch (IOException e) {
+                        return; //server chiuso alla fine del test
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            SwarmDownloader download = new SwarmDownloader("grande.bin", downloads.toString(), List.of(
+                    source(),
+                    new SwarmDownloader.Source("caduta", "localhost", broken.getLocalPort()),
+                    new SwarmDownloader.Source("spenta", "localhost", freePort())));
+            assertTrue(download.download());
+            assertArrayEquals(large, Files.readAllBytes(downloads.resolve("grande.bin")));
+            assertTrue(requests.get() > 0); //la sorgente caduta aveva prelevato un blocco
+            assertEquals(Set.of("caduta", "spenta"), download.getFailedSources());
+            assertEquals(Set.of("sorgente"), download.getUsedSources());
+        }
+    }
+}